@@ -11,9 +11,23 @@ import android.content.IntentFilter;
 import android.os.Build;
 import android.widget.Toast;
 
+import com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys;
+import com.nuuneoi.lib.contacttracer.encounter.CrowdEstimator;
+import com.nuuneoi.lib.contacttracer.encounter.DailyRollups;
+import com.nuuneoi.lib.contacttracer.encounter.ExposureRiskScorer;
+import com.nuuneoi.lib.contacttracer.event.PausedEventBuffer;
 import com.nuuneoi.lib.contacttracer.mock.User;
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.PeerIdDecoderRegistry;
+import com.nuuneoi.lib.contacttracer.scan.ScanRateGovernor;
+import com.nuuneoi.lib.contacttracer.scan.ScanTraceRecorder;
 import com.nuuneoi.lib.contacttracer.service.TracerService;
+import com.nuuneoi.lib.contacttracer.service.UploadService;
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+import com.nuuneoi.lib.contacttracer.timeline.Timeline;
+import com.nuuneoi.lib.contacttracer.timeline.TimelineStore;
 import com.nuuneoi.lib.contacttracer.utils.BluetoothUtils;
+import com.nuuneoi.lib.contacttracer.utils.Constants;
 import com.facebook.react.bridge.ActivityEventListener;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
@@ -22,9 +36,20 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import javax.crypto.SecretKey;
+
 import androidx.annotation.NonNull;
 
 public class ContactTracerModule extends ReactContextBaseJavaModule implements ActivityEventListener, LifecycleEventListener {
@@ -34,30 +59,40 @@ public class ContactTracerModule extends ReactContextBaseJavaModule implements A
 
     BluetoothAdapter bluetoothAdapter;
     User user;
+    PeerIdInterner peerIdInterner;
 
     private BroadcastReceiver advertiserMessageReceiver;
     private BroadcastReceiver nearbyDeviceFoundReceiver;
+    private BroadcastReceiver riskThresholdCrossedReceiver;
+    private BroadcastReceiver crowdThresholdExceededReceiver;
 
     private boolean isAdvertiserMessageReceiverRegistered = false;
     private boolean isNearbyDeviceFoundReceiverRegistered = false;
+    private boolean isRiskThresholdCrossedReceiverRegistered = false;
+    private boolean isCrowdThresholdExceededReceiverRegistered = false;
+
+    // Number of JS subscriptions, as reported by NativeEventEmitter
+    private volatile int listenerCount = 0;
+
+    // Events are held here instead of crossing the bridge while the host is paused
+    private final PausedEventBuffer pausedEventBuffer = new PausedEventBuffer();
+    private boolean isHostPaused = false;
 
     public ContactTracerModule(ReactApplicationContext reactContext) {
         super(reactContext);
         reactContext.addActivityEventListener(this);
-//        reactContext.addLifecycleEventListener(this);
+        reactContext.addLifecycleEventListener(this);
 
         user = new User(getReactApplicationContext());
+        peerIdInterner = PeerIdInterner.getInstance();
+        peerIdInterner.addHolder(pausedEventBuffer);
 
         initBluetoothInstances();
 
         initAdvertiserReceiver();
         initScannerReceiver();
-
-        IntentFilter advertiserMessageFilter = new IntentFilter(TracerService.ADVERTISING_MESSAGE);
-        getReactApplicationContext().registerReceiver(advertiserMessageReceiver, advertiserMessageFilter);
-
-        IntentFilter nearbyDeviceFoundFilter = new IntentFilter(TracerService.NEARBY_DEVICE_FOUND_MESSAGE);
-        getReactApplicationContext().registerReceiver(nearbyDeviceFoundReceiver, nearbyDeviceFoundFilter);
+        initRiskReceiver();
+        initCrowdReceiver();
     }
 
     @NonNull
@@ -168,6 +203,51 @@ public class ContactTracerModule extends ReactContextBaseJavaModule implements A
         }
     }
 
+    /**
+     * Turns raw scan recording on or off, restarting the service if it runs. Traces are sealed
+     * with the store key, so nothing is recorded where the Keystore cannot hold it; see
+     * exportScanTrace to take one off the device.
+     */
+    @ReactMethod
+    public void setScanRecordingEnabled(boolean enabled, final Promise promise) {
+        TracerService.setRecordingEnabled(getReactApplicationContext(), enabled);
+        if (TracerService.isEnabled(getReactApplicationContext())) {
+            _stopTracerService(getReactApplicationContext());
+            _startTracerService(getReactApplicationContext());
+        }
+        promise.resolve(null);
+    }
+
+    /**
+     * Decrypts the recorded scan trace into a file in the clear, which the tests'
+     * ScanTraceReplayer plays back, and resolves its path, or null if nothing was recorded.
+     * The last few minutes are missing while the service runs. The file is deleted when
+     * recording is turned off.
+     */
+    @ReactMethod
+    public void exportScanTrace(final Promise promise) {
+        SecretKey storageKey;
+        try {
+            storageKey = KeystoreKeys.getOrCreateKey(Constants.STORAGE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            promise.reject("E_STORAGE_UNAVAILABLE", "Secure storage unavailable: " + e.getMessage());
+            return;
+        }
+        File trace = TracerService.getScanTraceDirectory(getReactApplicationContext());
+        if (storageKey == null || !trace.isDirectory()) {
+            promise.resolve(null);
+            return;
+        }
+        File export = TracerService.getScanTraceExportFile(getReactApplicationContext());
+        try {
+            ScanTraceRecorder.export(trace, storageKey, export);
+        } catch (IOException e) {
+            promise.reject("E_EXPORT_FAILED", "Cannot export the scan trace: " + e.getMessage());
+            return;
+        }
+        promise.resolve(export.getAbsolutePath());
+    }
+
     @ReactMethod
     public void stopTracerService(final Promise promise) {
         _stopTracerService(getReactApplicationContext());
@@ -185,20 +265,346 @@ public class ContactTracerModule extends ReactContextBaseJavaModule implements A
         context.stopService(new Intent(context, TracerService.class));
     }
 
+    // Contact Statistics
+
+    /**
+     * Resolves the contact rollup of a local day given as yyyy-MM-dd (today if null),
+     * or null if there is no data for that day.
+     */
+    @ReactMethod
+    public void getDailySummary(String day, final Promise promise) {
+        long timestamp = System.currentTimeMillis();
+        if (day != null) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+                format.setLenient(false);
+                Date date = format.parse(day);
+                timestamp = date.getTime();
+            } catch (ParseException e) {
+                promise.reject("E_INVALID_DAY", "Day must be formatted as yyyy-MM-dd: " + day);
+                return;
+            }
+        }
+
+        DailyRollups rollups = DailyRollups.getInstance();
+        if (!rollups.isLoaded())
+            restoreIfServiceNotRunning(rollups);
+
+        DailyRollups.Day rollup = rollups.getDay(DailyRollups.dayIndexOf(timestamp));
+        if (rollup == null) {
+            promise.resolve(null);
+            return;
+        }
+
+        WritableArray hours = Arguments.createArray();
+        for (DailyRollups.Rollup hour : rollup.hours)
+            hours.pushMap(rollupToMap(hour));
+
+        WritableMap summary = rollupToMap(rollup);
+        summary.putString("day", day != null ? day : new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(timestamp)));
+        summary.putArray("hours", hours);
+        promise.resolve(summary);
+    }
+
+    /**
+     * Resolves the RSSI samples of a peer between from and to (milliseconds since epoch)
+     * as an array of { timestamp, rssi }.
+     */
+    @ReactMethod
+    public void getPeerTimeline(String peerId, double from, double to, final Promise promise) {
+        SecretKey storageKey;
+        try {
+            storageKey = KeystoreKeys.getOrCreateKey(Constants.STORAGE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            promise.reject("E_STORAGE_UNAVAILABLE", "Secure storage unavailable: " + e.getMessage());
+            return;
+        }
+        TimelineStore timelineStore = TimelineStore.getInstance(new File(getReactApplicationContext().getFilesDir(),
+                Constants.TIMELINE_DIRECTORY), storageKey);
+        Timeline timeline = timelineStore.getTimeline(peerId, (long) from, (long) to);
+
+        WritableArray samples = Arguments.createArray();
+        for (int i = 0; i < timeline.size(); i++) {
+            WritableMap sample = Arguments.createMap();
+            sample.putDouble("timestamp", timeline.getTimestamp(i));
+            sample.putInt("rssi", timeline.getRssi(i));
+            samples.pushMap(sample);
+        }
+        promise.resolve(samples);
+    }
+
+    /**
+     * Resolves the risk alerts raised while nothing in JS received them, as an array of
+     * { name, exposureMinutes, proximity, timestamp }, and forgets them.
+     */
+    @ReactMethod
+    public void getPendingRiskAlerts(final Promise promise) {
+        ExposureRiskScorer scorer = ExposureRiskScorer.getInstance();
+        if (!scorer.isLoaded())
+            restoreIfServiceNotRunning(scorer);
+
+        WritableArray alerts = Arguments.createArray();
+        for (ExposureRiskScorer.Alert alert : scorer.getPendingAlerts()) {
+            alerts.pushMap(riskAlertToMap(alert.peer, alert.exposureMinutes, alert.proximity, alert.timestamp));
+            scorer.markDelivered(alert.peer);
+        }
+        if (alerts.size() > 0)
+            saveIfServiceNotRunning(scorer);
+        promise.resolve(alerts);
+    }
+
+    /**
+     * Resolves scan scheduling counters: scans started, starts deferred to stay under the OS
+     * rate limit, silent scan windows and suspected OS throttling incidents.
+     */
+    @ReactMethod
+    public void getScanMetrics(final Promise promise) {
+        ScanRateGovernor scanRateGovernor = ScanRateGovernor.getInstance();
+
+        WritableMap metrics = Arguments.createMap();
+        metrics.putDouble("scansStarted", scanRateGovernor.getScansStarted());
+        metrics.putDouble("scansDeferred", scanRateGovernor.getScansDeferred());
+        metrics.putDouble("silentScans", scanRateGovernor.getSilentScans());
+        metrics.putDouble("throttleIncidents", scanRateGovernor.getThrottleIncidents());
+        promise.resolve(metrics);
+    }
+
+    /**
+     * Resolves hit and parse failure counters of every installed peer id decoder.
+     */
+    @ReactMethod
+    public void getDecoderStats(final Promise promise) {
+        WritableArray stats = Arguments.createArray();
+        for (PeerIdDecoderRegistry.Entry entry : PeerIdDecoderRegistry.getInstance().getEntries()) {
+            WritableMap map = Arguments.createMap();
+            map.putString("serviceUuid", entry.decoder.getServiceUuid().toString());
+            map.putString("name", entry.decoder.getName());
+            map.putDouble("hits", entry.hits.get());
+            map.putDouble("failures", entry.failures.get());
+            stats.pushMap(map);
+        }
+        promise.resolve(stats);
+    }
+
+    /**
+     * Resolves the estimated number of distinct peers seen in the last 5, 15 and 60 minutes.
+     */
+    @ReactMethod
+    public void getCrowdEstimate(final Promise promise) {
+        CrowdEstimator crowdEstimator = CrowdEstimator.getInstance();
+        if (!crowdEstimator.isLoaded())
+            restoreIfServiceNotRunning(crowdEstimator);
+        long now = System.currentTimeMillis();
+
+        WritableMap estimate = Arguments.createMap();
+        estimate.putInt("last5Minutes", crowdEstimator.getEstimate(5, now));
+        estimate.putInt("last15Minutes", crowdEstimator.getEstimate(15, now));
+        estimate.putInt("last60Minutes", crowdEstimator.getEstimate(60, now));
+        promise.resolve(estimate);
+    }
+
+    /**
+     * Reads the section from the state checkpoint when the service has not run in this
+     * process, so the state it last saved is reported rather than an empty one.
+     */
+    private void restoreIfServiceNotRunning(StateCheckpoint.Section section) {
+        if (TracerService.isRunningInProcess())
+            return;
+        SecretKey storageKey;
+        try {
+            storageKey = KeystoreKeys.getOrCreateKey(Constants.STORAGE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            return; // Nothing was saved either
+        }
+        StateCheckpoint checkpoint = new StateCheckpoint(new File(getReactApplicationContext().getFilesDir(),
+                Constants.STATE_CHECKPOINT_FILE), storageKey);
+        checkpoint.addSection(section);
+        checkpoint.restore();
+    }
+
+    /**
+     * Writes the section back to the state checkpoint when the service is not running, so
+     * a change made here (e.g. delivered alerts) is not undone by the next restore. The
+     * service saves its own sections otherwise.
+     */
+    private void saveIfServiceNotRunning(StateCheckpoint.Section section) {
+        if (TracerService.isRunningInProcess())
+            return;
+        SecretKey storageKey;
+        try {
+            storageKey = KeystoreKeys.getOrCreateKey(Constants.STORAGE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            return;
+        }
+        StateCheckpoint checkpoint = new StateCheckpoint(new File(getReactApplicationContext().getFilesDir(),
+                Constants.STATE_CHECKPOINT_FILE), storageKey);
+        checkpoint.addSection(section);
+        checkpoint.update();
+    }
+
+    /**
+     * Emit CrowdThresholdExceeded when the estimate over windowMinutes (5, 15 or 60) reaches threshold.
+     * A threshold of 0 disables the event.
+     */
+    @ReactMethod
+    public void setCrowdThreshold(int threshold, int windowMinutes, final Promise promise) {
+        if (windowMinutes != 5 && windowMinutes != 15 && windowMinutes != 60) {
+            promise.reject("E_INVALID_WINDOW", "Window must be 5, 15 or 60 minutes");
+            return;
+        }
+        TracerService.setCrowdThreshold(getReactApplicationContext(), threshold, windowMinutes);
+        promise.resolve(null);
+    }
+
+    private WritableMap rollupToMap(DailyRollups.Rollup rollup) {
+        WritableMap map = Arguments.createMap();
+        map.putInt("distinctPeers", rollup.distinctPeers);
+        map.putDouble("exposureMinutes", rollup.exposureMillis / 60000.0);
+        map.putDouble("closeContactMinutes", rollup.closeContactMillis / 60000.0);
+        return map;
+    }
+
+    // Upload
+
+    /**
+     * Starts uploading the encounter timeline to endpoint (the user must have consented),
+     * in the background while the device is charging and online. Only https endpoints are
+     * accepted, contact data never goes over plain http.
+     */
+    @ReactMethod
+    public void startUpload(String endpoint, final Promise promise) {
+        if (!UploadService.isSecureEndpoint(endpoint)) {
+            promise.reject("E_INVALID_ENDPOINT", "Endpoint must be an https URL: " + endpoint);
+            return;
+        }
+        UploadService.start(getReactApplicationContext(), endpoint);
+        promise.resolve(null);
+    }
+
+    @ReactMethod
+    public void stopUpload(final Promise promise) {
+        UploadService.stop(getReactApplicationContext());
+        promise.resolve(null);
+    }
+
+    /**
+     * Resolves { endpoint, uploadedUntil, acknowledgedChunks, stagedChunks, skippedRanges },
+     * endpoint being null when uploads are stopped and skippedRanges an array of { from, until }
+     * whose samples were dropped after the server kept rejecting them.
+     */
+    @ReactMethod
+    public void getUploadStatus(final Promise promise) {
+        int[] progress = UploadService.getPendingProgress(getReactApplicationContext());
+
+        WritableMap status = Arguments.createMap();
+        status.putString("endpoint", UploadService.getEndpoint(getReactApplicationContext()));
+        status.putDouble("uploadedUntil", UploadService.getUploadedUntil(getReactApplicationContext()));
+        status.putInt("acknowledgedChunks", progress[0]);
+        status.putInt("stagedChunks", progress[1]);
+        WritableArray skippedRanges = Arguments.createArray();
+        for (long[] range : UploadService.getSkippedRanges(getReactApplicationContext())) {
+            WritableMap skipped = Arguments.createMap();
+            skipped.putDouble("from", range[0]);
+            skipped.putDouble("until", range[1]);
+            skippedRanges.pushMap(skipped);
+        }
+        status.putArray("skippedRanges", skippedRanges);
+        promise.resolve(status);
+    }
+
     // Broadcast Receiver and Event Emitter
 
+    /**
+     * Called by NativeEventEmitter when JS subscribes to one of our events.
+     * Receivers are only registered while there is at least one subscription.
+     */
+    @ReactMethod
+    public void addListener(String eventName) {
+        listenerCount++;
+        if (listenerCount == 1)
+            registerReceivers();
+    }
+
+    /**
+     * Called by NativeEventEmitter when JS subscriptions are removed.
+     */
+    @ReactMethod
+    public void removeListeners(int count) {
+        listenerCount = Math.max(0, listenerCount - count);
+        if (listenerCount == 0)
+            unregisterReceivers();
+    }
+
+    private boolean hasListeners() {
+        return listenerCount > 0;
+    }
+
+    private void registerReceivers() {
+        if (!isAdvertiserMessageReceiverRegistered) {
+            IntentFilter advertiserMessageFilter = new IntentFilter(TracerService.ADVERTISING_MESSAGE);
+            getReactApplicationContext().registerReceiver(advertiserMessageReceiver, advertiserMessageFilter);
+            isAdvertiserMessageReceiverRegistered = true;
+        }
+
+        if (!isNearbyDeviceFoundReceiverRegistered) {
+            IntentFilter nearbyDeviceFoundFilter = new IntentFilter(TracerService.NEARBY_DEVICE_FOUND_MESSAGE);
+            getReactApplicationContext().registerReceiver(nearbyDeviceFoundReceiver, nearbyDeviceFoundFilter);
+            isNearbyDeviceFoundReceiverRegistered = true;
+        }
+
+        if (!isRiskThresholdCrossedReceiverRegistered) {
+            IntentFilter riskThresholdCrossedFilter = new IntentFilter(TracerService.RISK_THRESHOLD_CROSSED_MESSAGE);
+            getReactApplicationContext().registerReceiver(riskThresholdCrossedReceiver, riskThresholdCrossedFilter);
+            isRiskThresholdCrossedReceiverRegistered = true;
+        }
+
+        if (!isCrowdThresholdExceededReceiverRegistered) {
+            IntentFilter crowdThresholdExceededFilter = new IntentFilter(TracerService.CROWD_THRESHOLD_EXCEEDED_MESSAGE);
+            getReactApplicationContext().registerReceiver(crowdThresholdExceededReceiver, crowdThresholdExceededFilter);
+            isCrowdThresholdExceededReceiverRegistered = true;
+        }
+    }
+
+    private void unregisterReceivers() {
+        if (isAdvertiserMessageReceiverRegistered) {
+            getReactApplicationContext().unregisterReceiver(advertiserMessageReceiver);
+            isAdvertiserMessageReceiverRegistered = false;
+        }
+
+        if (isNearbyDeviceFoundReceiverRegistered) {
+            getReactApplicationContext().unregisterReceiver(nearbyDeviceFoundReceiver);
+            isNearbyDeviceFoundReceiverRegistered = false;
+        }
+
+        if (isRiskThresholdCrossedReceiverRegistered) {
+            getReactApplicationContext().unregisterReceiver(riskThresholdCrossedReceiver);
+            isRiskThresholdCrossedReceiverRegistered = false;
+        }
+
+        if (isCrowdThresholdExceededReceiverRegistered) {
+            getReactApplicationContext().unregisterReceiver(crowdThresholdExceededReceiver);
+            isCrowdThresholdExceededReceiverRegistered = false;
+        }
+    }
 
     private void initAdvertiserReceiver() {
         advertiserMessageReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                if (!hasListeners())
+                    return;
+
                 String message = intent.getStringExtra(TracerService.ADVERTISING_MESSAGE_EXTRA_MESSAGE);
 
+                if (!canEmit()) {
+                    pausedEventBuffer.addAdvertiserMessage(message);
+                    return;
+                }
+
                 WritableMap params = Arguments.createMap();
                 params.putString("message", message);
 
-                getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit("AdvertiserMessage", params);
+                emit("AdvertiserMessage", params);
             }
         };
     }
@@ -208,33 +614,163 @@ public class ContactTracerModule extends ReactContextBaseJavaModule implements A
         nearbyDeviceFoundReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                String name = intent.getStringExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_NAME);
+                if (!hasListeners())
+                    return;
+
+                int peer = intent.getIntExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_PEER, PeerIdInterner.NO_PEER);
                 int rssi = intent.getIntExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_RSSI, 0);
+                int smoothedRssi = intent.getIntExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_SMOOTHED_RSSI, rssi);
+                int proximity = intent.getIntExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_PROXIMITY,
+                        ExposureRiskScorer.proximityOf(rssi));
+                long now = System.currentTimeMillis();
+                long encounterStart = intent.getLongExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_ENCOUNTER_START, now);
+
+                if (!canEmit()) {
+                    pausedEventBuffer.addNearbyDevice(peer, rssi, now, encounterStart);
+                    return;
+                }
 
                 WritableMap params = Arguments.createMap();
-                params.putString("name", name);
+                params.putString("name", peerIdInterner.getString(peer));
                 params.putInt("rssi", rssi);
+                params.putInt("smoothedRssi", smoothedRssi);
+                params.putString("proximity", ExposureRiskScorer.proximityName(proximity));
+                params.putDouble("encounterStart", encounterStart);
+
+                emit("NearbyDeviceFound", params);
+            }
+        };
+    }
+
+    private void initRiskReceiver() {
+        riskThresholdCrossedReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!hasListeners())
+                    return;
+
+                int peer = intent.getIntExtra(TracerService.RISK_THRESHOLD_CROSSED_EXTRA_PEER, PeerIdInterner.NO_PEER);
+                float exposureMinutes = intent.getFloatExtra(TracerService.RISK_THRESHOLD_CROSSED_EXTRA_EXPOSURE_MINUTES, 0);
+                int proximity = intent.getIntExtra(TracerService.RISK_THRESHOLD_CROSSED_EXTRA_PROXIMITY,
+                        ExposureRiskScorer.PROXIMITY_FAR);
+
+                if (!canEmit()) {
+                    pausedEventBuffer.addRiskAlert(peer, exposureMinutes, proximity, System.currentTimeMillis());
+                    return;
+                }
+
+                emit("ExposureRiskThresholdCrossed", riskAlertToMap(peer, exposureMinutes, proximity,
+                        System.currentTimeMillis()));
+                ExposureRiskScorer.getInstance().markDelivered(peer);
+            }
+        };
+    }
+
+    private void initCrowdReceiver() {
+        crowdThresholdExceededReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // Not buffered while paused, getCrowdEstimate gives the current value on resume
+                if (!hasListeners() || !canEmit())
+                    return;
 
-                getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                        .emit("NearbyDeviceFound", params);
+                WritableMap params = Arguments.createMap();
+                params.putInt("estimate", intent.getIntExtra(TracerService.CROWD_THRESHOLD_EXCEEDED_EXTRA_ESTIMATE, 0));
+                params.putInt("threshold", intent.getIntExtra(TracerService.CROWD_THRESHOLD_EXCEEDED_EXTRA_THRESHOLD, 0));
+                params.putInt("windowMinutes", intent.getIntExtra(TracerService.CROWD_THRESHOLD_EXCEEDED_EXTRA_WINDOW_MINUTES, 0));
+
+                emit("CrowdThresholdExceeded", params);
             }
         };
     }
 
+    private WritableMap riskAlertToMap(int peer, float exposureMinutes, int proximity, long timestamp) {
+        WritableMap params = Arguments.createMap();
+        params.putString("name", peerIdInterner.getString(peer));
+        params.putDouble("exposureMinutes", exposureMinutes);
+        params.putString("proximity", ExposureRiskScorer.proximityName(proximity));
+        params.putDouble("timestamp", timestamp);
+        return params;
+    }
+
+    private boolean canEmit() {
+        return !isHostPaused && getReactApplicationContext().hasActiveCatalystInstance();
+    }
+
+    private void emit(String eventName, WritableMap params) {
+        getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(eventName, params);
+    }
+
+    /**
+     * Deliver everything buffered while paused as a single BufferedEvents event.
+     */
+    private void drainPausedEvents() {
+        PausedEventBuffer.Snapshot snapshot = pausedEventBuffer.drain();
+        if (snapshot.isEmpty() || !hasListeners())
+            return;
+
+        WritableArray nearbyDevices = Arguments.createArray();
+        for (PausedEventBuffer.NearbyDevice device : snapshot.nearbyDevices) {
+            WritableMap params = Arguments.createMap();
+            params.putString("name", peerIdInterner.getString(device.peer));
+            params.putInt("rssi", device.rssi);
+            params.putInt("maxRssi", device.maxRssi);
+            params.putInt("count", device.count);
+            params.putDouble("firstSeen", device.firstSeen);
+            params.putDouble("lastSeen", device.lastSeen);
+            params.putDouble("encounterStart", device.encounterStart);
+            nearbyDevices.pushMap(params);
+        }
+
+        WritableArray advertiserMessages = Arguments.createArray();
+        for (String message : snapshot.advertiserMessages)
+            advertiserMessages.pushString(message);
+
+        WritableArray riskAlerts = Arguments.createArray();
+        for (PausedEventBuffer.RiskAlert alert : snapshot.riskAlerts)
+            riskAlerts.pushMap(riskAlertToMap(alert.peer, alert.exposureMinutes, alert.proximity, alert.timestamp));
+
+        WritableMap params = Arguments.createMap();
+        params.putArray("nearbyDevices", nearbyDevices);
+        params.putArray("advertiserMessages", advertiserMessages);
+        params.putArray("riskAlerts", riskAlerts);
+        params.putInt("droppedDevices", snapshot.droppedDevices);
+        params.putInt("droppedMessages", snapshot.droppedMessages);
+        params.putInt("droppedRiskAlerts", snapshot.droppedRiskAlerts);
+
+        emit("BufferedEvents", params);
+        // Alerts dropped from the buffer stay pending for getPendingRiskAlerts
+        for (PausedEventBuffer.RiskAlert alert : snapshot.riskAlerts)
+            ExposureRiskScorer.getInstance().markDelivered(alert.peer);
+        if (!snapshot.riskAlerts.isEmpty())
+            saveIfServiceNotRunning(ExposureRiskScorer.getInstance());
+    }
+
     // Life Cycle
 
     @Override
     public void onHostResume() {
-
+        isHostPaused = false;
+        if (canEmit())
+            drainPausedEvents();
     }
 
     @Override
     public void onHostPause() {
-
+        isHostPaused = true;
     }
 
     @Override
     public void onHostDestroy() {
+        isHostPaused = true;
+    }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        listenerCount = 0;
+        unregisterReceivers();
+        peerIdInterner.removeHolder(pausedEventBuffer);
+        super.onCatalystInstanceDestroy();
     }
 }
@@ -0,0 +1,90 @@
+package com.nuuneoi.lib.contacttracer.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * AES-GCM sealing of whole chunks of data: {@code iv || ciphertext || tag}.
+ * <p>
+ * The position of the chunk in its file is authenticated along with it, so chunks cannot be
+ * swapped or replayed at another position. The IV is generated by the provider on each seal,
+ * as Android Keystore keys refuse caller-supplied IVs for encryption.
+ * <p>
+ * With a null key chunks are passed through as is, see {@link KeystoreKeys}.
+ */
+public class ChunkCipher {
+
+    public static final int IV_SIZE = 12;
+    public static final int TAG_SIZE = 16;
+    // Bytes added to a chunk by seal()
+    public static final int OVERHEAD = IV_SIZE + TAG_SIZE;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final SecretKey key;
+    // Sealing and opening happen on different threads, each has its own Cipher
+    private final Object sealLock = new Object();
+    private final Object openLock = new Object();
+    private Cipher sealCipher;
+    private Cipher openCipher;
+
+    public ChunkCipher(SecretKey key) {
+        this.key = key;
+    }
+
+    public boolean isEncrypted() {
+        return key != null;
+    }
+
+    public byte[] seal(long position, byte[] plain, int offset, int length) throws GeneralSecurityException {
+        if (key == null)
+            return Arrays.copyOfRange(plain, offset, offset + length);
+
+        synchronized (sealLock) {
+            if (sealCipher == null)
+                sealCipher = Cipher.getInstance(TRANSFORMATION);
+            sealCipher.init(Cipher.ENCRYPT_MODE, key);
+            byte[] iv = sealCipher.getIV();
+            if (iv == null || iv.length != IV_SIZE)
+                throw new GeneralSecurityException("Unexpected GCM IV");
+            sealCipher.updateAAD(associatedData(position));
+
+            byte[] sealed = new byte[IV_SIZE + sealCipher.getOutputSize(length)];
+            System.arraycopy(iv, 0, sealed, 0, IV_SIZE);
+            int written = sealCipher.doFinal(plain, offset, length, sealed, IV_SIZE);
+            return written == sealed.length - IV_SIZE ? sealed : Arrays.copyOf(sealed, IV_SIZE + written);
+        }
+    }
+
+    /**
+     * @throws GeneralSecurityException if the chunk was tampered with, sealed at another
+     *                                  position or with another key
+     */
+    public byte[] open(long position, byte[] sealed, int offset, int length) throws GeneralSecurityException {
+        if (key == null)
+            return Arrays.copyOfRange(sealed, offset, offset + length);
+        if (length < OVERHEAD)
+            throw new GeneralSecurityException("Chunk too short");
+
+        synchronized (openLock) {
+            if (openCipher == null)
+                openCipher = Cipher.getInstance(TRANSFORMATION);
+            openCipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * 8, sealed, offset, IV_SIZE));
+            openCipher.updateAAD(associatedData(position));
+            return openCipher.doFinal(sealed, offset + IV_SIZE, length - IV_SIZE);
+        }
+    }
+
+    private static byte[] associatedData(long position) {
+        byte[] data = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            data[i] = (byte) position;
+            position >>>= 8;
+        }
+        return data;
+    }
+}
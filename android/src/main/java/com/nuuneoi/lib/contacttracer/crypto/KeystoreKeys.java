@@ -0,0 +1,55 @@
+package com.nuuneoi.lib.contacttracer.crypto;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * AES keys held by the Android Keystore, so they never leave the secure hardware (where there
+ * is one) and are lost with the app data.
+ * <p>
+ * The Keystore only holds symmetric keys from API 23. Below that no key is returned and data
+ * is stored unencrypted in the app's private files, as before. From API 23 a Keystore that
+ * fails is reported to the caller, which must not fall back to storing data unencrypted.
+ */
+public class KeystoreKeys {
+
+    private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+
+    /**
+     * @return the 256 bit AES-GCM key stored under the alias, created on first use, or null
+     * below API 23
+     * @throws GeneralSecurityException if the Keystore cannot load or create the key
+     */
+    public static synchronized SecretKey getOrCreateKey(String alias) throws GeneralSecurityException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+            return null;
+        try {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+            keyStore.load(null);
+            Key key = keyStore.getKey(alias, null);
+            if (key instanceof SecretKey)
+                return (SecretKey) key;
+
+            KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEY_STORE);
+            generator.init(new KeyGenParameterSpec.Builder(alias,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setKeySize(256)
+                    .build());
+            return generator.generateKey();
+        } catch (IOException e) {
+            throw new KeyStoreException(e);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.nuuneoi.lib.contacttracer.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Append-only log of small records, encrypted in chunks of up to {@link #CHUNK_SIZE} bytes.
+ * <p>
+ * Records are addressed by their position in the plaintext stream. {@link #append} only copies
+ * the record into the current chunk; full chunks are sealed and written by a background
+ * executor, so the caller (the scan path) never waits for crypto or disk. A record never
+ * spans two chunks, and {@link #read} decrypts only the chunk holding the record, keeping the
+ * last one decrypted for neighbouring reads.
+ * <p>
+ * Each chunk is framed as {@code [long start][int plainLength][int storedLength][byte sealed]}
+ * followed by the stored bytes. The frames are plaintext so the log can be reopened without
+ * decrypting it; a frame cut short by a crash is dropped on open. Chunks written without a key
+ * stay readable once one is available, while sealed chunks are unreadable without their key.
+ */
+public class SealedChunkLog {
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    // Partially filled chunks older than this are written anyway, see commitIfOlderThan()
+    public static final long MAX_CHUNK_AGE = 5 * 60 * 1000;
+
+    private static final int FRAME_SIZE = 8 + 4 + 4 + 1;
+
+    public interface ChunkVisitor {
+        void onChunk(long start, byte[] plain, int length);
+    }
+
+    /**
+     * Single daemon thread to seal and write chunks on.
+     */
+    public static ExecutorService newSealingExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SealedChunkLog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static class Chunk {
+        final long start;
+        final int plainLength;
+        // Set once written
+        long fileOffset = -1;
+        int storedLength;
+        boolean sealed;
+        // Plaintext until written, null after
+        byte[] plain;
+
+        Chunk(long start, int plainLength, byte[] plain) {
+            this.start = start;
+            this.plainLength = plainLength;
+            this.plain = plain;
+        }
+    }
+
+    private final File file;
+    private final ChunkCipher cipher;
+    private final ExecutorService executor;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private int bufferLength = 0;
+    private long bufferStart = 0;
+    private long bufferOpenedAt = 0;
+    private Future<?> lastWrite;
+
+    private Chunk cachedChunk;
+    private byte[] cachedPlain;
+
+    public SealedChunkLog(File file, ChunkCipher cipher, ExecutorService executor) {
+        this.file = file;
+        this.cipher = cipher;
+        this.executor = executor;
+    }
+
+    /**
+     * Indexes the chunks already in the file and truncates a torn last frame.
+     */
+    public synchronized void open() throws IOException {
+        chunks.clear();
+        long offset = 0;
+        if (file.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                while (true) {
+                    long start = in.readLong();
+                    int plainLength = in.readInt();
+                    int storedLength = in.readInt();
+                    boolean sealed = in.readByte() != 0;
+                    if (plainLength < 0 || plainLength > CHUNK_SIZE || storedLength < 0
+                            || storedLength > CHUNK_SIZE + ChunkCipher.OVERHEAD)
+                        break;
+                    if (in.skipBytes(storedLength) < storedLength)
+                        break;
+
+                    Chunk chunk = new Chunk(start, plainLength, null);
+                    chunk.fileOffset = offset + FRAME_SIZE;
+                    chunk.storedLength = storedLength;
+                    chunk.sealed = sealed;
+                    chunks.add(chunk);
+                    offset += FRAME_SIZE + storedLength;
+                }
+            } catch (EOFException e) {
+                // End of file
+            } finally {
+                in.close();
+            }
+            if (offset < file.length()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(offset);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+
+        Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        bufferStart = last != null ? last.start + last.plainLength : 0;
+        bufferLength = 0;
+    }
+
+    /**
+     * @return the position of the record, to {@link #read} it back
+     */
+    public synchronized long append(byte[] record, int offset, int length, long now) {
+        if (length > CHUNK_SIZE)
+            throw new IllegalArgumentException("Record larger than a chunk: " + length);
+        if (bufferLength + length > CHUNK_SIZE)
+            submit();
+        if (bufferLength == 0)
+            bufferOpenedAt = now;
+
+        long position = bufferStart + bufferLength;
+        System.arraycopy(record, offset, buffer, bufferLength, length);
+        bufferLength += length;
+        if (bufferLength == CHUNK_SIZE)
+            submit();
+        return position;
+    }
+
+    /**
+     * Writes the current chunk if it has been filling for more than {@link #MAX_CHUNK_AGE},
+     * bounding what a killed process loses.
+     */
+    public synchronized void commitIfOlderThan(long maxAge, long now) {
+        if (bufferLength > 0 && now - bufferOpenedAt >= maxAge)
+            submit();
+    }
+
+    /**
+     * Writes the current chunk and waits until everything appended so far is on disk.
+     */
+    public void sync() {
+        Future<?> write;
+        synchronized (this) {
+            submit();
+            write = lastWrite;
+        }
+        if (write == null)
+            return;
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // write() handles its own failures
+        }
+    }
+
+    private void submit() {
+        if (bufferLength == 0)
+            return;
+        final Chunk chunk = new Chunk(bufferStart, bufferLength, Arrays.copyOf(buffer, bufferLength));
+        chunks.add(chunk);
+        bufferStart += bufferLength;
+        bufferLength = 0;
+        lastWrite = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                write(chunk);
+            }
+        });
+    }
+
+    // Executor thread, which writes chunks one at a time and in order
+    private void write(Chunk chunk) {
+        byte[] stored;
+        try {
+            stored = cipher.seal(chunk.start, chunk.plain, 0, chunk.plainLength);
+        } catch (GeneralSecurityException e) {
+            stored = null;
+        }
+
+        long fileOffset = -1;
+        if (stored != null) {
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    long end = raf.length();
+                    byte[] frame = new byte[FRAME_SIZE];
+                    putLong(frame, 0, chunk.start);
+                    putInt(frame, 8, chunk.plainLength);
+                    putInt(frame, 12, stored.length);
+                    frame[16] = (byte) (cipher.isEncrypted() ? 1 : 0);
+                    raf.seek(end);
+                    raf.write(frame);
+                    raf.write(stored);
+                    fileOffset = end + FRAME_SIZE;
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                fileOffset = -1;
+            }
+        }
+
+        synchronized (this) {
+            if (fileOffset >= 0) {
+                chunk.fileOffset = fileOffset;
+                chunk.storedLength = stored.length;
+                chunk.sealed = cipher.isEncrypted();
+            } else {
+                // Lost, reads of its records return null
+                chunks.remove(chunk);
+            }
+            chunk.plain = null;
+        }
+    }
+
+    /**
+     * @return the record at the position, or null if its chunk was lost or cannot be decrypted
+     */
+    public byte[] read(long position, int length) {
+        Chunk chunk;
+        synchronized (this) {
+            if (position >= bufferStart) {
+                if (position + length > bufferStart + bufferLength)
+                    return null;
+                int offset = (int) (position - bufferStart);
+                return Arrays.copyOfRange(buffer, offset, offset + length);
+            }
+            chunk = find(position);
+            if (chunk == null || position + length > chunk.start + chunk.plainLength)
+                return null;
+            byte[] plain = chunk.plain != null ? chunk.plain : chunk == cachedChunk ? cachedPlain : null;
+            if (plain != null) {
+                int offset = (int) (position - chunk.start);
+                return Arrays.copyOfRange(plain, offset, offset + length);
+            }
+        }
+
+        byte[] plain = readChunk(chunk);
+        if (plain == null)
+            return null;
+        int offset = (int) (position - chunk.start);
+        return Arrays.copyOfRange(plain, offset, offset + length);
+    }
+
+    /**
+     * Position the next record will be appended at.
+     */
+    public synchronized long size() {
+        return bufferStart + bufferLength;
+    }
+
+    /**
+     * Plaintext of every chunk in order, e.g. to rebuild an index; each is decrypted once.
+     * Chunks that cannot be read are skipped.
+     */
+    public void scan(ChunkVisitor visitor) {
+        scan(0, visitor);
+    }
+
+    /**
+     * As {@link #scan(ChunkVisitor)}, leaving out the chunks that end before the position.
+     */
+    public void scan(long from, ChunkVisitor visitor) {
+        List<Chunk> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(chunks);
+        }
+        for (Chunk chunk : snapshot) {
+            if (chunk.start + chunk.plainLength <= from)
+                continue;
+            byte[] plain;
+            synchronized (this) {
+                plain = chunk.plain;
+            }
+            if (plain == null)
+                plain = readChunk(chunk);
+            if (plain != null)
+                visitor.onChunk(chunk.start, plain, chunk.plainLength);
+        }
+        byte[] pending;
+        long pendingStart;
+        synchronized (this) {
+            pending = Arrays.copyOf(buffer, bufferLength);
+            pendingStart = bufferStart;
+        }
+        if (pending.length > 0 && pendingStart + pending.length > from)
+            visitor.onChunk(pendingStart, pending, pending.length);
+    }
+
+    private byte[] readChunk(Chunk chunk) {
+        long fileOffset;
+        int storedLength;
+        boolean sealed;
+        synchronized (this) {
+            fileOffset = chunk.fileOffset;
+            storedLength = chunk.storedLength;
+            sealed = chunk.sealed;
+        }
+        if (fileOffset < 0)
+            return null;
+
+        byte[] stored = new byte[storedLength];
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(fileOffset);
+                raf.readFully(stored);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        byte[] plain;
+        if (!sealed) {
+            plain = stored;
+        } else if (!cipher.isEncrypted()) {
+            return null; // Key is gone
+        } else {
+            try {
+                plain = cipher.open(chunk.start, stored, 0, stored.length);
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+        }
+        if (plain.length != chunk.plainLength)
+            return null;
+
+        synchronized (this) {
+            cachedChunk = chunk;
+            cachedPlain = plain;
+        }
+        return plain;
+    }
+
+    private Chunk find(long position) {
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Chunk chunk = chunks.get(mid);
+            if (position < chunk.start)
+                high = mid - 1;
+            else if (position >= chunk.start + chunk.plainLength)
+                low = mid + 1;
+            else
+                return chunk;
+        }
+        return null;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.ScanProcessor;
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates how many distinct peers were seen in the last 5, 15 and 60 minutes with
+ * HyperLogLog sketches, in about 5 KB whatever the crowd size.
+ * <p>
+ * The short windows merge one minute buckets of 128 registers (standard error about 9%),
+ * the hour window five minute buckets of 256 registers (about 6.5%).
+ * <p>
+ * When a threshold is set, the estimate for its window is checked at most every
+ * {@link #THRESHOLD_CHECK_INTERVAL} and the {@link Listener} told when it rises to the
+ * threshold. It is told again only after the estimate has dropped below it.
+ */
+public class CrowdEstimator implements ScanProcessor.Listener, StateCheckpoint.Section {
+
+    public interface Listener {
+        void onCrowdThresholdExceeded(int estimate, int threshold, int windowMinutes);
+    }
+
+    public static final long THRESHOLD_CHECK_INTERVAL = 10 * 1000;
+
+    private static final long MINUTE = 60 * 1000;
+    private static final int CHECKPOINT_TAG = 5;
+
+    private static CrowdEstimator instance;
+
+    public static synchronized CrowdEstimator getInstance() {
+        if (instance == null)
+            instance = new CrowdEstimator(PeerIdInterner.getInstance());
+        return instance;
+    }
+
+    private final PeerIdInterner peerIdInterner;
+    private final SlidingHyperLogLog minutes = new SlidingHyperLogLog(MINUTE, 15, 7);
+    private final SlidingHyperLogLog fiveMinutes = new SlidingHyperLogLog(5 * MINUTE, 12, 8);
+
+    private Listener listener;
+    private int threshold = 0;
+    private int thresholdWindowMinutes = 15;
+    private boolean thresholdExceeded = false;
+    private long lastThresholdCheck = 0;
+    private boolean loaded = false;
+
+    CrowdEstimator(PeerIdInterner peerIdInterner) {
+        this.peerIdInterner = peerIdInterner;
+    }
+
+    /**
+     * Whether the sketches were restored from a checkpoint in this process.
+     */
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param threshold     number of distinct peers, 0 to disable
+     * @param windowMinutes 5, 15 or 60
+     */
+    public synchronized void setThreshold(int threshold, int windowMinutes) {
+        this.threshold = threshold;
+        this.thresholdWindowMinutes = windowMinutes;
+        this.thresholdExceeded = false;
+    }
+
+    @Override
+    public synchronized void onNearbyDeviceFound(int peer, int rssi, long timestamp) {
+        long hash = peerIdInterner.getHash(peer);
+        minutes.add(hash, timestamp);
+        fiveMinutes.add(hash, timestamp);
+
+        if (threshold > 0 && timestamp - lastThresholdCheck >= THRESHOLD_CHECK_INTERVAL) {
+            lastThresholdCheck = timestamp;
+            int estimate = getEstimate(thresholdWindowMinutes, timestamp);
+            if (estimate >= threshold && !thresholdExceeded) {
+                thresholdExceeded = true;
+                if (listener != null)
+                    listener.onCrowdThresholdExceeded(estimate, threshold, thresholdWindowMinutes);
+            } else if (estimate < threshold) {
+                thresholdExceeded = false;
+            }
+        }
+    }
+
+    /**
+     * @param windowMinutes up to 60; up to 15 is measured at one minute resolution
+     */
+    public synchronized int getEstimate(int windowMinutes, long now) {
+        SlidingHyperLogLog sketch = windowMinutes <= 15 ? minutes : fiveMinutes;
+        return (int) Math.round(sketch.estimate(windowMinutes * MINUTE, now));
+    }
+
+    // Checkpoint
+
+    @Override
+    public int getTag() {
+        return CHECKPOINT_TAG;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer out) {
+        minutes.write(out);
+        fiveMinutes.write(out);
+    }
+
+    @Override
+    public synchronized void read(ByteBuffer in) {
+        minutes.read(in);
+        fiveMinutes.read(in);
+        loaded = true;
+    }
+}
@@ -0,0 +1,274 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.ScanProcessor;
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Per-day and per-hour contact statistics, updated in O(1) for every sample:
+ * distinct peers, total exposure time and close contact time (RSSI at or above
+ * {@link #CLOSE_CONTACT_RSSI}).
+ * <p>
+ * Exposure is credited as the time since the previous sample of the same peer, as long as
+ * that gap is at most {@link #MAX_SAMPLE_GAP}. The last {@link #RETENTION_DAYS} days are kept
+ * in a ring, so {@link #getDay(int)} is a constant time lookup. Days are counted in local time.
+ */
+public class DailyRollups implements ScanProcessor.Listener, StateCheckpoint.Section, PeerIdInterner.Holder {
+
+    public static final int RETENTION_DAYS = 14;
+    public static final int CLOSE_CONTACT_RSSI = -65;
+    public static final long MAX_SAMPLE_GAP = 60 * 1000;
+
+    private static final int CHECKPOINT_TAG = 3;
+    private static final int MAX_CHECKPOINTED_PEERS = 1024;
+    private static final int INITIAL_CAPACITY = 256;
+
+    public static class Rollup {
+        public int distinctPeers;
+        public long exposureMillis;
+        public long closeContactMillis;
+
+        void clear() {
+            distinctPeers = 0;
+            exposureMillis = 0;
+            closeContactMillis = 0;
+        }
+    }
+
+    public static class Day extends Rollup {
+        public int day = -1;
+        public final Rollup[] hours = new Rollup[24];
+
+        Day() {
+            for (int i = 0; i < hours.length; i++)
+                hours[i] = new Rollup();
+        }
+
+        @Override
+        void clear() {
+            super.clear();
+            for (Rollup hour : hours)
+                hour.clear();
+        }
+    }
+
+    private static DailyRollups instance;
+
+    public static synchronized DailyRollups getInstance() {
+        if (instance == null)
+            instance = new DailyRollups(PeerIdInterner.getInstance());
+        return instance;
+    }
+
+    private final PeerIdInterner peerIdInterner;
+    private final Day[] days = new Day[RETENTION_DAYS];
+
+    // Per peer handle: local hour (since epoch) it was last counted in, and its last sample time
+    private int[] countedHour = new int[INITIAL_CAPACITY];
+    private long[] lastSample = new long[INITIAL_CAPACITY];
+
+    // Peers counted before a restart, by hash, until they are seen again
+    private final Set<Long> restoredDayPeers = new HashSet<>();
+    private final Set<Long> restoredHourPeers = new HashSet<>();
+    private int restoredHour = -1;
+
+    private boolean loaded = false;
+
+    private final LocalClock clock = new LocalClock();
+
+    DailyRollups(PeerIdInterner peerIdInterner) {
+        this.peerIdInterner = peerIdInterner;
+        for (int i = 0; i < days.length; i++)
+            days[i] = new Day();
+        Arrays.fill(countedHour, -1);
+    }
+
+    @Override
+    public synchronized void onNearbyDeviceFound(int peer, int rssi, long timestamp) {
+        ensureCapacity(peer);
+
+        int hourIndex = clock.hourIndex(timestamp);
+        int dayIndex = hourIndex / 24;
+        int hourOfDay = hourIndex - dayIndex * 24;
+
+        Day day = dayFor(dayIndex);
+        Rollup hour = day.hours[hourOfDay];
+
+        int previousHour = countedHour[peer];
+        if (previousHour != hourIndex) {
+            long hash = peerIdInterner.getHash(peer);
+            boolean restored = restoredHour >= 0 && restoredHour / 24 == dayIndex;
+            if ((previousHour < 0 || previousHour / 24 != dayIndex)
+                    && !(restored && restoredDayPeers.remove(hash)))
+                day.distinctPeers++;
+            if (!(restored && restoredHour == hourIndex && restoredHourPeers.remove(hash)))
+                hour.distinctPeers++;
+            countedHour[peer] = hourIndex;
+        }
+
+        long gap = timestamp - lastSample[peer];
+        if (lastSample[peer] > 0 && gap > 0 && gap <= MAX_SAMPLE_GAP) {
+            day.exposureMillis += gap;
+            hour.exposureMillis += gap;
+            if (rssi >= CLOSE_CONTACT_RSSI) {
+                day.closeContactMillis += gap;
+                hour.closeContactMillis += gap;
+            }
+        }
+        if (timestamp > lastSample[peer])
+            lastSample[peer] = timestamp;
+    }
+
+    /**
+     * @param dayIndex local days since epoch, see {@link #dayIndexOf(long)}
+     * @return the rollup of that day, or null if nothing was recorded or it is past retention
+     */
+    public synchronized Day getDay(int dayIndex) {
+        Day day = days[dayIndex % RETENTION_DAYS];
+        if (day.day != dayIndex)
+            return null;
+        Day copy = new Day();
+        copyRollup(day, copy);
+        copy.day = day.day;
+        for (int i = 0; i < 24; i++)
+            copyRollup(day.hours[i], copy.hours[i]);
+        return copy;
+    }
+
+    public static int dayIndexOf(long timestamp) {
+        return LocalClock.dayIndexOf(timestamp);
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Keeps peers counted today or still within an exposure run.
+     */
+    @Override
+    public synchronized void markLive(BitSet live, long now) {
+        int today = clock.dayIndex(now);
+        for (int peer = 0; peer < countedHour.length; peer++) {
+            if (countedHour[peer] < 0 && lastSample[peer] == 0)
+                continue;
+            if (countedHour[peer] / 24 >= today || now - lastSample[peer] <= MAX_SAMPLE_GAP) {
+                live.set(peer);
+            } else {
+                countedHour[peer] = -1;
+                lastSample[peer] = 0;
+            }
+        }
+    }
+
+    private Day dayFor(int dayIndex) {
+        Day day = days[dayIndex % RETENTION_DAYS];
+        if (day.day != dayIndex) {
+            day.clear();
+            day.day = dayIndex;
+        }
+        return day;
+    }
+
+    private void ensureCapacity(int peer) {
+        if (peer < countedHour.length)
+            return;
+        int oldCapacity = countedHour.length;
+        int capacity = Math.max(peer + 1, oldCapacity * 2);
+        countedHour = Arrays.copyOf(countedHour, capacity);
+        Arrays.fill(countedHour, oldCapacity, capacity, -1);
+        lastSample = Arrays.copyOf(lastSample, capacity);
+    }
+
+    private static void copyRollup(Rollup from, Rollup to) {
+        to.distinctPeers = from.distinctPeers;
+        to.exposureMillis = from.exposureMillis;
+        to.closeContactMillis = from.closeContactMillis;
+    }
+
+    // Checkpoint
+
+    @Override
+    public int getTag() {
+        return CHECKPOINT_TAG;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer out) {
+        for (Day day : days) {
+            out.putInt(day.day);
+            writeRollup(out, day);
+            for (Rollup hour : day.hours)
+                writeRollup(out, hour);
+        }
+
+        // Peers already counted in the latest hour and day, so they are not counted twice
+        // after a restart. Peers of the current hour go first.
+        int latestHour = -1;
+        for (int peer = 0; peer < countedHour.length; peer++)
+            latestHour = Math.max(latestHour, countedHour[peer]);
+        int latestDay = latestHour / 24;
+
+        out.putInt(latestHour);
+        int countsPosition = out.position();
+        out.putInt(0);
+        out.putInt(0);
+        int hourCount = 0;
+        int dayCount = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int peer = 0; peer < countedHour.length && dayCount < MAX_CHECKPOINTED_PEERS; peer++) {
+                boolean inHour = countedHour[peer] == latestHour;
+                boolean inDay = countedHour[peer] >= 0 && countedHour[peer] / 24 == latestDay;
+                if (pass == 0 ? !inHour : (inHour || !inDay))
+                    continue;
+                out.putLong(peerIdInterner.getHash(peer));
+                dayCount++;
+                if (inHour)
+                    hourCount++;
+            }
+        }
+        out.putInt(countsPosition, hourCount);
+        out.putInt(countsPosition + 4, dayCount);
+    }
+
+    @Override
+    public synchronized void read(ByteBuffer in) {
+        for (Day day : days) {
+            day.day = in.getInt();
+            readRollup(in, day);
+            for (Rollup hour : day.hours)
+                readRollup(in, hour);
+        }
+
+        restoredHour = in.getInt();
+        int hourCount = in.getInt();
+        int dayCount = in.getInt();
+        restoredHourPeers.clear();
+        restoredDayPeers.clear();
+        for (int i = 0; i < dayCount; i++) {
+            long hash = in.getLong();
+            restoredDayPeers.add(hash);
+            if (i < hourCount)
+                restoredHourPeers.add(hash);
+        }
+        loaded = true;
+    }
+
+    private static void writeRollup(ByteBuffer out, Rollup rollup) {
+        out.putInt(rollup.distinctPeers);
+        out.putLong(rollup.exposureMillis);
+        out.putLong(rollup.closeContactMillis);
+    }
+
+    private static void readRollup(ByteBuffer in, Rollup rollup) {
+        rollup.distinctPeers = in.getInt();
+        rollup.exposureMillis = in.getLong();
+        rollup.closeContactMillis = in.getLong();
+    }
+}
@@ -0,0 +1,139 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.ScanProcessor;
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Tracks the open encounter session of every peer: a run of sightings with no gap longer
+ * than {@link #SESSION_TIMEOUT}.
+ * <p>
+ * The start of the session is reported with every sighting, see {@link #getSessionStart(int)}.
+ * State lives in arrays indexed by peer handle, so a sample is O(1) with no allocation.
+ * Open sessions are saved as a {@link StateCheckpoint.Section} keyed by the raw peer id,
+ * since handles are only meaningful within one process, so an encounter that spans a restart
+ * of the service keeps its start.
+ */
+public class EncounterSessions implements ScanProcessor.Listener, StateCheckpoint.Section, PeerIdInterner.Holder {
+
+    public static final long SESSION_TIMEOUT = 5 * 60 * 1000;
+
+    private static final int CHECKPOINT_TAG = 1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final PeerIdInterner peerIdInterner;
+
+    private long[] sessionStart = new long[INITIAL_CAPACITY];
+    private long[] lastSeen = new long[INITIAL_CAPACITY];
+    private int[] sampleCount = new int[INITIAL_CAPACITY];
+    private int[] maxRssi = new int[INITIAL_CAPACITY];
+
+    public EncounterSessions(PeerIdInterner peerIdInterner) {
+        this.peerIdInterner = peerIdInterner;
+    }
+
+    @Override
+    public void onNearbyDeviceFound(int peer, int rssi, long timestamp) {
+        ensureCapacity(peer);
+
+        if (sampleCount[peer] == 0 || timestamp - lastSeen[peer] > SESSION_TIMEOUT) {
+            sessionStart[peer] = timestamp;
+            sampleCount[peer] = 0;
+            maxRssi[peer] = rssi;
+        }
+        if (timestamp > lastSeen[peer])
+            lastSeen[peer] = timestamp;
+        sampleCount[peer]++;
+        maxRssi[peer] = Math.max(maxRssi[peer], rssi);
+    }
+
+    /**
+     * Time of the first sighting of the peer's current session, 0 if it has none.
+     */
+    public long getSessionStart(int peer) {
+        return peer < sampleCount.length && sampleCount[peer] > 0 ? sessionStart[peer] : 0;
+    }
+
+    /**
+     * Closes sessions that timed out, so they are no longer checkpointed.
+     */
+    public void expire(long now) {
+        for (int peer = 0; peer < sampleCount.length; peer++) {
+            if (sampleCount[peer] > 0 && now - lastSeen[peer] > SESSION_TIMEOUT)
+                sampleCount[peer] = 0;
+        }
+    }
+
+    @Override
+    public void markLive(BitSet live, long now) {
+        expire(now);
+        for (int peer = 0; peer < sampleCount.length; peer++) {
+            if (sampleCount[peer] > 0)
+                live.set(peer);
+            else
+                lastSeen[peer] = 0;
+        }
+    }
+
+    private void ensureCapacity(int peer) {
+        if (peer < sampleCount.length)
+            return;
+        int capacity = Math.max(peer + 1, sampleCount.length * 2);
+        sessionStart = Arrays.copyOf(sessionStart, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        sampleCount = Arrays.copyOf(sampleCount, capacity);
+        maxRssi = Arrays.copyOf(maxRssi, capacity);
+    }
+
+    // Checkpoint
+
+    @Override
+    public int getTag() {
+        return CHECKPOINT_TAG;
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        int countPosition = out.position();
+        out.putInt(0);
+        int count = 0;
+        for (int peer = 0; peer < sampleCount.length; peer++) {
+            if (sampleCount[peer] == 0)
+                continue;
+            byte[] id = peerIdInterner.getBytes(peer);
+            if (id.length > 255)
+                continue;
+            // Stop before overflowing so the sessions written so far are kept
+            if (out.remaining() < 1 + id.length + 8 + 8 + 4 + 1)
+                break;
+            out.put((byte) id.length);
+            out.put(id);
+            out.putLong(sessionStart[peer]);
+            out.putLong(lastSeen[peer]);
+            out.putInt(sampleCount[peer]);
+            out.put((byte) maxRssi[peer]);
+            count++;
+        }
+        out.putInt(countPosition, count);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        int count = in.getInt();
+        byte[] id = new byte[255];
+        for (int i = 0; i < count; i++) {
+            int length = in.get() & 0xff;
+            in.get(id, 0, length);
+            int peer = peerIdInterner.intern(id, 0, length);
+            ensureCapacity(peer);
+            sessionStart[peer] = in.getLong();
+            lastSeen[peer] = in.getLong();
+            sampleCount[peer] = in.getInt();
+            maxRssi[peer] = in.get();
+        }
+    }
+}
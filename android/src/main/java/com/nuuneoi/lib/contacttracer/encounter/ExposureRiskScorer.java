@@ -0,0 +1,302 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.ScanProcessor;
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Smooths RSSI per peer, classifies proximity and accumulates weighted exposure minutes
+ * per peer and local day, with O(1) work and no allocation per sample.
+ * <p>
+ * RSSI is smoothed with an EWMA that restarts after a gap of more than
+ * {@link DailyRollups#MAX_SAMPLE_GAP}. The time since the previous sample counts towards
+ * exposure, weighted by the proximity of the smoothed RSSI. When a peer's exposure for the
+ * day first reaches {@link #RISK_THRESHOLD_MINUTES} the {@link Listener} is told, once per
+ * peer and day.
+ * <p>
+ * The alert is also kept as pending, and checkpointed, until {@link #markDelivered(int)}, so
+ * an alert raised while nothing in JS listens can still be fetched with
+ * {@link #getPendingAlerts()}. Beyond {@link #MAX_PENDING_ALERTS} the oldest is dropped.
+ */
+public class ExposureRiskScorer implements ScanProcessor.Listener, StateCheckpoint.Section, PeerIdInterner.Holder {
+
+    public interface Listener {
+        void onRiskThresholdCrossed(int peer, float exposureMinutes, int proximity, long timestamp);
+    }
+
+    public static class Alert {
+        public final int peer;
+        public final float exposureMinutes;
+        public final int proximity;
+        public final long timestamp;
+
+        Alert(int peer, float exposureMinutes, int proximity, long timestamp) {
+            this.peer = peer;
+            this.exposureMinutes = exposureMinutes;
+            this.proximity = proximity;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public static final int PROXIMITY_IMMEDIATE = 0;
+    public static final int PROXIMITY_NEAR = 1;
+    public static final int PROXIMITY_FAR = 2;
+
+    public static final int IMMEDIATE_RSSI = -55;
+    public static final int NEAR_RSSI = -70;
+
+    public static final float RISK_THRESHOLD_MINUTES = 15;
+    public static final int MAX_PENDING_ALERTS = 64;
+
+    private static final float SMOOTHING = 0.3f;
+    private static final float[] PROXIMITY_WEIGHTS = {1.0f, 0.5f, 0.1f};
+
+    private static final int CHECKPOINT_TAG = 4;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static ExposureRiskScorer instance;
+
+    public static synchronized ExposureRiskScorer getInstance() {
+        if (instance == null)
+            instance = new ExposureRiskScorer(PeerIdInterner.getInstance());
+        return instance;
+    }
+
+    private final PeerIdInterner peerIdInterner;
+    private final LocalClock clock = new LocalClock();
+    private Listener listener;
+    // Read from the React method thread, guarded by itself
+    private final ArrayList<Alert> pendingAlerts = new ArrayList<>();
+    private volatile boolean loaded = false;
+
+    private float[] smoothedRssi = new float[INITIAL_CAPACITY];
+    private long[] lastSample = new long[INITIAL_CAPACITY];
+    private int[] scoreDay = new int[INITIAL_CAPACITY];
+    private float[] exposureMinutes = new float[INITIAL_CAPACITY];
+    private boolean[] alerted = new boolean[INITIAL_CAPACITY];
+
+    public ExposureRiskScorer(PeerIdInterner peerIdInterner) {
+        this.peerIdInterner = peerIdInterner;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onNearbyDeviceFound(int peer, int rssi, long timestamp) {
+        ensureCapacity(peer);
+
+        long gap = timestamp - lastSample[peer];
+        boolean continuous = lastSample[peer] > 0 && gap >= 0 && gap <= DailyRollups.MAX_SAMPLE_GAP;
+        if (continuous)
+            smoothedRssi[peer] += SMOOTHING * (rssi - smoothedRssi[peer]);
+        else
+            smoothedRssi[peer] = rssi;
+        if (timestamp > lastSample[peer])
+            lastSample[peer] = timestamp;
+
+        int day = clock.dayIndex(timestamp);
+        if (scoreDay[peer] != day) {
+            scoreDay[peer] = day;
+            exposureMinutes[peer] = 0;
+            alerted[peer] = false;
+        }
+
+        if (!continuous)
+            return;
+
+        int proximity = proximityOf(smoothedRssi[peer]);
+        exposureMinutes[peer] += gap / 60000f * PROXIMITY_WEIGHTS[proximity];
+
+        if (!alerted[peer] && exposureMinutes[peer] >= RISK_THRESHOLD_MINUTES) {
+            alerted[peer] = true;
+            synchronized (pendingAlerts) {
+                if (pendingAlerts.size() >= MAX_PENDING_ALERTS)
+                    pendingAlerts.remove(0);
+                pendingAlerts.add(new Alert(peer, exposureMinutes[peer], proximity, timestamp));
+            }
+            if (listener != null)
+                listener.onRiskThresholdCrossed(peer, exposureMinutes[peer], proximity, timestamp);
+        }
+    }
+
+    /**
+     * Alerts raised and not yet delivered to JS, oldest first.
+     */
+    public List<Alert> getPendingAlerts() {
+        synchronized (pendingAlerts) {
+            return new ArrayList<>(pendingAlerts);
+        }
+    }
+
+    /**
+     * Forgets the pending alerts of the peer once JS has them.
+     */
+    public void markDelivered(int peer) {
+        synchronized (pendingAlerts) {
+            for (int i = pendingAlerts.size() - 1; i >= 0; i--) {
+                if (pendingAlerts.get(i).peer == peer)
+                    pendingAlerts.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Whether state was restored from a checkpoint in this process.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public int getSmoothedRssi(int peer) {
+        return peer < smoothedRssi.length ? Math.round(smoothedRssi[peer]) : 0;
+    }
+
+    public int getProximity(int peer) {
+        return proximityOf(peer < smoothedRssi.length ? smoothedRssi[peer] : Integer.MIN_VALUE);
+    }
+
+    public static int proximityOf(float rssi) {
+        if (rssi >= IMMEDIATE_RSSI)
+            return PROXIMITY_IMMEDIATE;
+        if (rssi >= NEAR_RSSI)
+            return PROXIMITY_NEAR;
+        return PROXIMITY_FAR;
+    }
+
+    public static String proximityName(int proximity) {
+        switch (proximity) {
+            case PROXIMITY_IMMEDIATE:
+                return "immediate";
+            case PROXIMITY_NEAR:
+                return "near";
+            default:
+                return "far";
+        }
+    }
+
+    /**
+     * Keeps peers scored today, still within a smoothing run or with a pending alert; the
+     * others start over anyway.
+     */
+    @Override
+    public void markLive(BitSet live, long now) {
+        synchronized (pendingAlerts) {
+            for (Alert alert : pendingAlerts)
+                live.set(alert.peer);
+        }
+        int today = clock.dayIndex(now);
+        for (int peer = 0; peer < lastSample.length; peer++) {
+            if (lastSample[peer] == 0)
+                continue;
+            if (scoreDay[peer] >= today || now - lastSample[peer] <= DailyRollups.MAX_SAMPLE_GAP) {
+                live.set(peer);
+            } else {
+                smoothedRssi[peer] = 0;
+                lastSample[peer] = 0;
+                scoreDay[peer] = 0;
+                exposureMinutes[peer] = 0;
+                alerted[peer] = false;
+            }
+        }
+    }
+
+    private void ensureCapacity(int peer) {
+        if (peer < lastSample.length)
+            return;
+        int capacity = Math.max(peer + 1, lastSample.length * 2);
+        smoothedRssi = Arrays.copyOf(smoothedRssi, capacity);
+        lastSample = Arrays.copyOf(lastSample, capacity);
+        scoreDay = Arrays.copyOf(scoreDay, capacity);
+        exposureMinutes = Arrays.copyOf(exposureMinutes, capacity);
+        alerted = Arrays.copyOf(alerted, capacity);
+    }
+
+    // Checkpoint
+
+    @Override
+    public int getTag() {
+        return CHECKPOINT_TAG;
+    }
+
+    @Override
+    public void write(ByteBuffer out) {
+        // Pending alerts first, they cannot be recomputed
+        List<Alert> alerts = getPendingAlerts();
+        int alertCountPosition = out.position();
+        out.putInt(0);
+        int alertCount = 0;
+        for (Alert alert : alerts) {
+            byte[] id = peerIdInterner.getBytes(alert.peer);
+            if (id == null || id.length > 255)
+                continue;
+            out.put((byte) id.length);
+            out.put(id);
+            out.putFloat(alert.exposureMinutes);
+            out.put((byte) alert.proximity);
+            out.putLong(alert.timestamp);
+            alertCount++;
+        }
+        out.putInt(alertCountPosition, alertCount);
+
+        int countPosition = out.position();
+        out.putInt(0);
+        int count = 0;
+        for (int peer = 0; peer < lastSample.length; peer++) {
+            if (exposureMinutes[peer] <= 0)
+                continue;
+            byte[] id = peerIdInterner.getBytes(peer);
+            if (id.length > 255)
+                continue;
+            if (out.remaining() < 1 + id.length + 4 + 8 + 4 + 4 + 1)
+                break;
+            out.put((byte) id.length);
+            out.put(id);
+            out.putFloat(smoothedRssi[peer]);
+            out.putLong(lastSample[peer]);
+            out.putInt(scoreDay[peer]);
+            out.putFloat(exposureMinutes[peer]);
+            out.put((byte) (alerted[peer] ? 1 : 0));
+            count++;
+        }
+        out.putInt(countPosition, count);
+    }
+
+    @Override
+    public void read(ByteBuffer in) {
+        byte[] id = new byte[255];
+        int alertCount = in.getInt();
+        List<Alert> alerts = new ArrayList<>(alertCount);
+        for (int i = 0; i < alertCount; i++) {
+            int length = in.get() & 0xff;
+            in.get(id, 0, length);
+            int peer = peerIdInterner.intern(id, 0, length);
+            alerts.add(new Alert(peer, in.getFloat(), in.get(), in.getLong()));
+        }
+        synchronized (pendingAlerts) {
+            pendingAlerts.clear();
+            pendingAlerts.addAll(alerts);
+        }
+
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int length = in.get() & 0xff;
+            in.get(id, 0, length);
+            int peer = peerIdInterner.intern(id, 0, length);
+            ensureCapacity(peer);
+            smoothedRssi[peer] = in.getFloat();
+            lastSample[peer] = in.getLong();
+            scoreDay[peer] = in.getInt();
+            exposureMinutes[peer] = in.getFloat();
+            alerted[peer] = in.get() != 0;
+        }
+        loaded = true;
+    }
+}
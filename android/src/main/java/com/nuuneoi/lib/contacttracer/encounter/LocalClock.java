@@ -0,0 +1,44 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import java.util.TimeZone;
+
+/**
+ * Converts wall clock timestamps to local hour and day indexes, caching the
+ * timezone offset for the current hour so it is cheap on the scan path.
+ */
+class LocalClock {
+
+    static final long HOUR = 60 * 60 * 1000;
+    static final long DAY = 24 * HOUR;
+
+    private long offsetValidFrom = Long.MAX_VALUE;
+    private long offsetValidTo = Long.MIN_VALUE;
+    private long offset;
+
+    /**
+     * Local hours since epoch.
+     */
+    int hourIndex(long timestamp) {
+        return (int) ((timestamp + offsetAt(timestamp)) / HOUR);
+    }
+
+    /**
+     * Local days since epoch.
+     */
+    int dayIndex(long timestamp) {
+        return (int) ((timestamp + offsetAt(timestamp)) / DAY);
+    }
+
+    static int dayIndexOf(long timestamp) {
+        return (int) ((timestamp + TimeZone.getDefault().getOffset(timestamp)) / DAY);
+    }
+
+    private long offsetAt(long timestamp) {
+        if (timestamp < offsetValidFrom || timestamp >= offsetValidTo) {
+            offset = TimeZone.getDefault().getOffset(timestamp);
+            offsetValidFrom = timestamp / HOUR * HOUR;
+            offsetValidTo = offsetValidFrom + HOUR;
+        }
+        return offset;
+    }
+}
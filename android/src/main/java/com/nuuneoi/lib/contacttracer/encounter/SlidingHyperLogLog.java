@@ -0,0 +1,107 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog distinct counter over a sliding time window.
+ * <p>
+ * Time is cut into fixed buckets, each with its own sketch of 2^precision one-byte
+ * registers, kept in a ring. A window estimate merges (register-wise max) the sketches of the
+ * buckets it covers, the current and still filling one included, so windows are only as fine
+ * as the bucket size.
+ */
+public class SlidingHyperLogLog {
+
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final int precision;
+    private final int registerCount;
+
+    private final byte[] registers;
+    private final long[] bucketIds;
+    private final byte[] merged;
+
+    public SlidingHyperLogLog(long bucketMillis, int bucketCount, int precision) {
+        this.bucketMillis = bucketMillis;
+        this.bucketCount = bucketCount;
+        this.precision = precision;
+        this.registerCount = 1 << precision;
+        this.registers = new byte[bucketCount * registerCount];
+        this.bucketIds = new long[bucketCount];
+        this.merged = new byte[registerCount];
+        Arrays.fill(bucketIds, -1);
+    }
+
+    /**
+     * @param hash well mixed 64-bit hash of the item
+     */
+    public void add(long hash, long timestamp) {
+        long bucketId = timestamp / bucketMillis;
+        int bucket = (int) (bucketId % bucketCount);
+        int base = bucket * registerCount;
+        if (bucketIds[bucket] != bucketId) {
+            Arrays.fill(registers, base, base + registerCount, (byte) 0);
+            bucketIds[bucket] = bucketId;
+        }
+
+        int index = (int) (hash >>> (64 - precision));
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[base + index])
+            registers[base + index] = (byte) rank;
+    }
+
+    /**
+     * Estimated number of distinct items added in the buckets covering the last windowMillis.
+     */
+    public double estimate(long windowMillis, long now) {
+        long newest = now / bucketMillis;
+        long oldest = Math.max(newest - bucketCount + 1, (now - windowMillis) / bucketMillis + 1);
+
+        Arrays.fill(merged, (byte) 0);
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            long bucketId = bucketIds[bucket];
+            if (bucketId < oldest || bucketId > newest)
+                continue;
+            int base = bucket * registerCount;
+            for (int i = 0; i < registerCount; i++) {
+                if (registers[base + i] > merged[i])
+                    merged[i] = registers[base + i];
+            }
+        }
+        return estimate(merged);
+    }
+
+    private double estimate(byte[] registers) {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0)
+                zeros++;
+        }
+        double m = registerCount;
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        // Small range correction
+        if (estimate <= 2.5 * m && zeros > 0)
+            estimate = m * Math.log(m / zeros);
+        return estimate;
+    }
+
+    public int sizeInBytes() {
+        return registers.length + bucketIds.length * 8;
+    }
+
+    void write(ByteBuffer out) {
+        for (long bucketId : bucketIds)
+            out.putLong(bucketId);
+        out.put(registers);
+    }
+
+    void read(ByteBuffer in) {
+        for (int i = 0; i < bucketIds.length; i++)
+            bucketIds[i] = in.getLong();
+        in.get(registers);
+    }
+}
@@ -0,0 +1,163 @@
+package com.nuuneoi.lib.contacttracer.event;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Holds events while the React host is paused so they can be delivered to JS
+ * in one batch on resume.
+ * <p>
+ * Nearby devices are aggregated per peer handle, so a peer seen a thousand times in the
+ * background costs a single entry. Once {@link #MAX_DEVICES} distinct peers are held,
+ * new peers are dropped and counted. Advertiser messages and risk alerts keep only the
+ * latest {@link #MAX_MESSAGES} and {@link #MAX_RISK_ALERTS} entries, each counting what
+ * they dropped.
+ */
+public class PausedEventBuffer implements PeerIdInterner.Holder {
+
+    public static final int MAX_DEVICES = 256;
+    public static final int MAX_MESSAGES = 32;
+    public static final int MAX_RISK_ALERTS = 64;
+
+    public static class NearbyDevice {
+        public final int peer;
+        public int rssi;
+        public int maxRssi;
+        public int count;
+        public long firstSeen;
+        public long lastSeen;
+        // Start of the encounter the first buffered sighting belongs to
+        public final long encounterStart;
+
+        NearbyDevice(int peer, int rssi, long timestamp, long encounterStart) {
+            this.peer = peer;
+            this.rssi = rssi;
+            this.maxRssi = rssi;
+            this.count = 1;
+            this.firstSeen = timestamp;
+            this.lastSeen = timestamp;
+            this.encounterStart = encounterStart;
+        }
+    }
+
+    public static class RiskAlert {
+        public final int peer;
+        public final float exposureMinutes;
+        public final int proximity;
+        public final long timestamp;
+
+        RiskAlert(int peer, float exposureMinutes, int proximity, long timestamp) {
+            this.peer = peer;
+            this.exposureMinutes = exposureMinutes;
+            this.proximity = proximity;
+            this.timestamp = timestamp;
+        }
+    }
+
+    public static class Snapshot {
+        public final List<NearbyDevice> nearbyDevices;
+        public final List<String> advertiserMessages;
+        public final List<RiskAlert> riskAlerts;
+        public final int droppedDevices;
+        public final int droppedMessages;
+        public final int droppedRiskAlerts;
+
+        Snapshot(List<NearbyDevice> nearbyDevices, List<String> advertiserMessages, List<RiskAlert> riskAlerts,
+                 int droppedDevices, int droppedMessages, int droppedRiskAlerts) {
+            this.nearbyDevices = nearbyDevices;
+            this.advertiserMessages = advertiserMessages;
+            this.riskAlerts = riskAlerts;
+            this.droppedDevices = droppedDevices;
+            this.droppedMessages = droppedMessages;
+            this.droppedRiskAlerts = droppedRiskAlerts;
+        }
+
+        public boolean isEmpty() {
+            return nearbyDevices.isEmpty() && advertiserMessages.isEmpty() && riskAlerts.isEmpty()
+                    && droppedDevices == 0 && droppedMessages == 0 && droppedRiskAlerts == 0;
+        }
+    }
+
+    // Open addressing index from peer handle to position in nearbyDevices
+    private final int[] deviceSlots = new int[MAX_DEVICES * 2];
+    private final ArrayList<NearbyDevice> nearbyDevices = new ArrayList<>(MAX_DEVICES);
+    private final ArrayDeque<String> advertiserMessages = new ArrayDeque<>();
+    private final ArrayDeque<RiskAlert> riskAlerts = new ArrayDeque<>();
+    private int droppedDevices = 0;
+    private int droppedMessages = 0;
+    private int droppedRiskAlerts = 0;
+
+    public synchronized void addNearbyDevice(int peer, int rssi, long timestamp, long encounterStart) {
+        int mask = deviceSlots.length - 1;
+        int index = (peer * 0x9E3779B9) & mask;
+        while (deviceSlots[index] != 0 && nearbyDevices.get(deviceSlots[index] - 1).peer != peer)
+            index = (index + 1) & mask;
+
+        if (deviceSlots[index] != 0) {
+            NearbyDevice device = nearbyDevices.get(deviceSlots[index] - 1);
+            device.rssi = rssi;
+            device.maxRssi = Math.max(device.maxRssi, rssi);
+            device.count++;
+            device.lastSeen = timestamp;
+            return;
+        }
+        if (nearbyDevices.size() >= MAX_DEVICES) {
+            droppedDevices++;
+            return;
+        }
+        nearbyDevices.add(new NearbyDevice(peer, rssi, timestamp, encounterStart));
+        deviceSlots[index] = nearbyDevices.size();
+    }
+
+    public synchronized void addAdvertiserMessage(String message) {
+        if (advertiserMessages.size() >= MAX_MESSAGES) {
+            advertiserMessages.pollFirst();
+            droppedMessages++;
+        }
+        advertiserMessages.addLast(message);
+    }
+
+    public synchronized void addRiskAlert(int peer, float exposureMinutes, int proximity, long timestamp) {
+        if (riskAlerts.size() >= MAX_RISK_ALERTS) {
+            riskAlerts.pollFirst();
+            droppedRiskAlerts++;
+        }
+        riskAlerts.addLast(new RiskAlert(peer, exposureMinutes, proximity, timestamp));
+    }
+
+    @Override
+    public synchronized void markLive(BitSet live, long now) {
+        for (NearbyDevice device : nearbyDevices) {
+            if (device.peer != PeerIdInterner.NO_PEER)
+                live.set(device.peer);
+        }
+        for (RiskAlert alert : riskAlerts)
+            live.set(alert.peer);
+    }
+
+    /**
+     * Returns everything buffered so far and resets the buffer.
+     */
+    public synchronized Snapshot drain() {
+        Snapshot snapshot = new Snapshot(
+                new ArrayList<>(nearbyDevices),
+                new ArrayList<>(advertiserMessages),
+                new ArrayList<>(riskAlerts),
+                droppedDevices,
+                droppedMessages,
+                droppedRiskAlerts);
+        nearbyDevices.clear();
+        Arrays.fill(deviceSlots, 0);
+        advertiserMessages.clear();
+        riskAlerts.clear();
+        droppedDevices = 0;
+        droppedMessages = 0;
+        droppedRiskAlerts = 0;
+        return snapshot;
+    }
+}
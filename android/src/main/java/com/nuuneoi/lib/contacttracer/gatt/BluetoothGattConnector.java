@@ -0,0 +1,139 @@
+package com.nuuneoi.lib.contacttracer.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+
+import java.util.UUID;
+
+/**
+ * Reads the id characteristic served by {@link GattIdentityServer} on a remote device:
+ * connect, discover services, read, disconnect. Gives up after {@link #TIMEOUT}.
+ */
+public class BluetoothGattConnector implements GattIdentityResolver.Connector {
+
+    public static final long TIMEOUT = 10 * 1000;
+
+    private final Context context;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Handler handler;
+    private final UUID serviceUuid;
+    private final UUID characteristicUuid;
+
+    public BluetoothGattConnector(Context context, BluetoothAdapter bluetoothAdapter, Handler handler,
+                                  UUID serviceUuid, UUID characteristicUuid) {
+        this.context = context;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.handler = handler;
+        this.serviceUuid = serviceUuid;
+        this.characteristicUuid = characteristicUuid;
+    }
+
+    @Override
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    @Override
+    public void readIdentity(final String address, final GattIdentityResolver.ReadCallback callback) {
+        final Read read = new Read(address, callback);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                read.start();
+            }
+        });
+    }
+
+    private class Read extends BluetoothGattCallback implements Runnable {
+        private final String address;
+        private final GattIdentityResolver.ReadCallback callback;
+        // Set once connectGatt returns, for the timeout; callbacks may come before that
+        private volatile BluetoothGatt gatt;
+        private boolean done = false;
+
+        Read(String address, GattIdentityResolver.ReadCallback callback) {
+            this.address = address;
+            this.callback = callback;
+        }
+
+        void start() {
+            BluetoothGatt gatt;
+            try {
+                BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                    gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
+                else
+                    gatt = device.connectGatt(context, false, this);
+            } catch (IllegalArgumentException e) {
+                finish(null, null);
+                return;
+            }
+            if (gatt == null) {
+                finish(null, null);
+                return;
+            }
+            this.gatt = gatt;
+            handler.postDelayed(this, TIMEOUT);
+        }
+
+        // Timeout
+        @Override
+        public void run() {
+            finish(gatt, null);
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                finish(gatt, null);
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                if (!gatt.discoverServices())
+                    finish(gatt, null);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                finish(gatt, null);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            BluetoothGattService service = status == BluetoothGatt.GATT_SUCCESS ? gatt.getService(serviceUuid) : null;
+            BluetoothGattCharacteristic characteristic = service != null
+                    ? service.getCharacteristic(characteristicUuid)
+                    : null;
+            if (characteristic == null || !gatt.readCharacteristic(characteristic))
+                finish(gatt, null);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            finish(gatt, status == BluetoothGatt.GATT_SUCCESS ? characteristic.getValue() : null);
+        }
+
+        /**
+         * @param gatt the connection to close, null if there is none
+         */
+        private void finish(BluetoothGatt gatt, byte[] id) {
+            synchronized (this) {
+                if (done)
+                    return;
+                done = true;
+            }
+            handler.removeCallbacks(this);
+            if (gatt != null) {
+                gatt.disconnect();
+                gatt.close();
+            }
+            callback.onIdentityRead(address, id);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.nuuneoi.lib.contacttracer.gatt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Resolves the peer id of devices that advertise no service data (e.g. iOS apps in the
+ * background) by reading it over GATT, without reconnecting to the same device every scan.
+ * <p>
+ * Results are cached per device address: ids for {@link #IDENTITY_TTL}, devices without our
+ * GATT service or that failed to connect for {@link #NEGATIVE_TTL}. At most
+ * {@link #MAX_CONNECTIONS} reads run at once; further devices wait in a bounded queue.
+ * <p>
+ * The actual GATT work is done by a {@link Connector}, so this class has no Android dependency
+ * and can be driven by a fake connector.
+ */
+public class GattIdentityResolver {
+
+    public interface Connector {
+        /**
+         * UUID of the GATT service the id is read from, under which it is decoded.
+         */
+        UUID getServiceUuid();
+
+        /**
+         * Reads the id characteristic of the device and calls back exactly once, on any thread,
+         * with the value or null on failure.
+         */
+        void readIdentity(String address, ReadCallback callback);
+    }
+
+    public interface ReadCallback {
+        void onIdentityRead(String address, byte[] id);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the connector's callback thread once the read of a queued device is done,
+         * with its id or {@link #NO_IDENTITY} if it has none, and the RSSI and time of its
+         * latest sighting. Sightings answered with {@link #PENDING} are only reported here.
+         */
+        void onIdentityResolved(String address, byte[] id, int rssi, long timestamp);
+    }
+
+    /**
+     * Returned by {@link #resolve} for devices known not to expose an id.
+     */
+    public static final byte[] NO_IDENTITY = new byte[0];
+
+    /**
+     * Returned by {@link #resolve} for devices whose id is being read.
+     */
+    public static final byte[] PENDING = new byte[0];
+
+    public static final int MAX_CONNECTIONS = 2;
+    public static final int MAX_QUEUED = 32;
+    public static final int MAX_CACHED = 512;
+    public static final long IDENTITY_TTL = 15 * 60 * 1000;
+    public static final long NEGATIVE_TTL = 2 * 60 * 1000;
+
+    private static class CacheEntry {
+        final byte[] id;
+        final long expiresAt;
+
+        CacheEntry(byte[] id, long expiresAt) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Sighting {
+        int rssi;
+        long timestamp;
+    }
+
+    private final Connector connector;
+    private final Listener listener;
+
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+    private final ArrayDeque<String> queue = new ArrayDeque<>();
+    // Queued and connecting devices, with their latest sighting
+    private final HashMap<String, Sighting> pending = new HashMap<>();
+    private int activeConnections = 0;
+
+    private long hits = 0;
+    private long reads = 0;
+    private long failures = 0;
+
+    public GattIdentityResolver(Connector connector, Listener listener) {
+        this.connector = connector;
+        this.listener = listener;
+    }
+
+    public UUID getServiceUuid() {
+        return connector.getServiceUuid();
+    }
+
+    /**
+     * @return the cached id, {@link #NO_IDENTITY} if the device has none, or {@link #PENDING}
+     * if it is not known yet. In that case a read is queued and the {@link Listener} is called
+     * once it is done. null if the queue is full, so the device is not read this time.
+     */
+    public byte[] resolve(String address, int rssi, long now) {
+        String start;
+        synchronized (this) {
+            CacheEntry entry = cache.get(address);
+            if (entry != null && entry.expiresAt > now) {
+                hits++;
+                return entry.id;
+            }
+            if (entry != null)
+                cache.remove(address);
+
+            Sighting sighting = pending.get(address);
+            if (sighting == null) {
+                if (queue.size() >= MAX_QUEUED)
+                    return null;
+                sighting = new Sighting();
+                pending.put(address, sighting);
+                queue.addLast(address);
+            }
+            sighting.rssi = rssi;
+            sighting.timestamp = now;
+
+            start = nextToStart();
+        }
+        if (start != null)
+            read(start);
+        return PENDING;
+    }
+
+    private String nextToStart() {
+        if (activeConnections >= MAX_CONNECTIONS || queue.isEmpty())
+            return null;
+        activeConnections++;
+        reads++;
+        return queue.pollFirst();
+    }
+
+    private void read(String address) {
+        connector.readIdentity(address, new ReadCallback() {
+            @Override
+            public void onIdentityRead(String address, byte[] id) {
+                onRead(address, id);
+            }
+        });
+    }
+
+    private void onRead(String address, byte[] id) {
+        Sighting sighting;
+        String next;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            activeConnections--;
+            sighting = pending.remove(address);
+            if (id != null && id.length > 0) {
+                cache.put(address, new CacheEntry(id, now + IDENTITY_TTL));
+            } else {
+                failures++;
+                cache.put(address, new CacheEntry(NO_IDENTITY, now + NEGATIVE_TTL));
+            }
+            next = nextToStart();
+        }
+
+        if (sighting != null && listener != null)
+            listener.onIdentityResolved(address, id != null && id.length > 0 ? id : NO_IDENTITY, sighting.rssi,
+                    sighting.timestamp);
+        if (next != null)
+            read(next);
+    }
+
+    /**
+     * Forgets the queued devices and pending sightings, e.g. when the service goes away, so
+     * nothing more is read or reported. Reads in flight still finish and close their
+     * connections.
+     */
+    public synchronized void cancelPending() {
+        pending.clear();
+        queue.clear();
+    }
+
+    /**
+     * Drops expired cache entries.
+     */
+    public synchronized void expire(long now) {
+        Iterator<CacheEntry> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().expiresAt <= now)
+                iterator.remove();
+        }
+    }
+
+    public synchronized long getCacheHits() {
+        return hits;
+    }
+
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+}
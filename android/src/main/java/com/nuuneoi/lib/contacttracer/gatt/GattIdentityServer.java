@@ -0,0 +1,80 @@
+package com.nuuneoi.lib.contacttracer.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+import com.nuuneoi.lib.contacttracer.mock.IUser;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Serves the user id as a readable characteristic, for scanners that could not get it from
+ * the advertisement (see {@link BluetoothGattConnector}).
+ */
+public class GattIdentityServer {
+
+    private final Context context;
+    private final IUser user;
+    private final UUID serviceUuid;
+    private final UUID characteristicUuid;
+    private BluetoothGattServer gattServer;
+
+    public GattIdentityServer(Context context, IUser user, UUID serviceUuid, UUID characteristicUuid) {
+        this.context = context;
+        this.user = user;
+        this.serviceUuid = serviceUuid;
+        this.characteristicUuid = characteristicUuid;
+    }
+
+    public void start() {
+        if (gattServer != null)
+            return;
+        BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        if (bluetoothManager == null)
+            return;
+        gattServer = bluetoothManager.openGattServer(context, callback);
+        if (gattServer == null)
+            return;
+
+        BluetoothGattService service = new BluetoothGattService(serviceUuid,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(new BluetoothGattCharacteristic(characteristicUuid,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+        gattServer.addService(service);
+    }
+
+    public void stop() {
+        if (gattServer == null)
+            return;
+        gattServer.close();
+        gattServer = null;
+    }
+
+    private final BluetoothGattServerCallback callback = new BluetoothGattServerCallback() {
+        @Override
+        public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
+                                                BluetoothGattCharacteristic characteristic) {
+            BluetoothGattServer server = gattServer;
+            if (server == null)
+                return;
+            if (!characteristicUuid.equals(characteristic.getUuid())) {
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, null);
+                return;
+            }
+            byte[] id = user.getUserId().getBytes();
+            if (offset > id.length) {
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, null);
+                return;
+            }
+            server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset,
+                    Arrays.copyOfRange(id, offset, id.length));
+        }
+    };
+}
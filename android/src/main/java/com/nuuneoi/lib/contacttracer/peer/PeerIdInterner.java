@@ -0,0 +1,293 @@
+package com.nuuneoi.lib.contacttracer.peer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Maps raw peer id bytes (as found in advertisement service data) to a stable int handle.
+ * <p>
+ * The scan path looks ids up by hashing the bytes directly, so a peer that was seen
+ * before costs no allocation. Lookups are lock-free; only the insertion of a new peer
+ * takes a lock. Handles are dense (0, 1, 2, ...), so downstream code can index plain arrays
+ * with them.
+ * <p>
+ * Components keeping state per handle register as a {@link Holder}. {@link #sweep(long)}
+ * frees the handles no holder needs any more and later peers reuse them, so the tables (and
+ * every array indexed by handle) are bounded by the peak number of live peers rather than by
+ * every peer ever seen.
+ * <p>
+ * Strings are only created on demand by {@link #getString(int)}, at the JS boundary.
+ */
+public class PeerIdInterner {
+
+    public static final int NO_PEER = -1;
+
+    public interface Holder {
+        /**
+         * Sets the bit of every handle this holder still keeps state for. Handles left unmarked
+         * may be reused for another peer once the sweep returns, so the holder must forget
+         * whatever it keeps for them. Must not intern.
+         */
+        void markLive(BitSet live, long now);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static PeerIdInterner instance;
+
+    public static synchronized PeerIdInterner getInstance() {
+        if (instance == null)
+            instance = new PeerIdInterner();
+        return instance;
+    }
+
+    /**
+     * Open addressing table holding handle + 1 per slot, 0 meaning empty.
+     */
+    private volatile AtomicIntegerArray slots = new AtomicIntegerArray(INITIAL_CAPACITY * 2);
+
+    private volatile byte[][] ids = new byte[INITIAL_CAPACITY][];
+    private volatile long[] hashes = new long[INITIAL_CAPACITY];
+    private volatile String[] strings = new String[INITIAL_CAPACITY];
+    private volatile int size = 0;
+    private int liveCount = 0;
+
+    // Freed handles, reused before new ones are handed out
+    private int[] freeHandles = new int[0];
+    private int freeCount = 0;
+
+    private Holder[] holders = new Holder[0];
+    // Handles interned while holders are being asked, see sweep()
+    private BitSet internedDuringSweep;
+
+    public int intern(byte[] data) {
+        return intern(data, 0, data.length);
+    }
+
+    /**
+     * Returns the handle for the given id bytes, assigning a new one if the id was never seen.
+     * The bytes are copied on first sight, so callers may reuse their buffer.
+     */
+    public int intern(byte[] data, int offset, int length) {
+        long hash = hash64(data, offset, length);
+        int handle = find(slots, data, offset, length, hash);
+        if (handle != NO_PEER)
+            return handle;
+
+        synchronized (this) {
+            handle = find(slots, data, offset, length, hash);
+            if (handle != NO_PEER)
+                return handle;
+
+            if (freeCount > 0) {
+                handle = freeHandles[--freeCount];
+            } else {
+                handle = size;
+                if (handle == ids.length)
+                    growEntries();
+            }
+            ids[handle] = Arrays.copyOfRange(data, offset, offset + length);
+            hashes[handle] = hash;
+            strings[handle] = null;
+            // Entry is complete before its slot becomes visible to lock-free readers
+            if (handle == size)
+                size = handle + 1;
+            liveCount++;
+            if (internedDuringSweep != null)
+                internedDuringSweep.set(handle);
+
+            if (liveCount * 2 > slots.length())
+                rehash(slots.length() * 2);
+            else
+                insertSlot(slots, hash, handle);
+            return handle;
+        }
+    }
+
+    /**
+     * Returns the handle for the given id bytes, or {@link #NO_PEER} if the id was never interned.
+     */
+    public int lookup(byte[] data, int offset, int length) {
+        return find(slots, data, offset, length, hash64(data, offset, length));
+    }
+
+    public int intern(String id) {
+        return intern(id.getBytes(UTF_8));
+    }
+
+    /**
+     * @return the id bytes, or null if the handle was freed
+     */
+    public byte[] getBytes(int handle) {
+        return ids[handle];
+    }
+
+    public long getHash(int handle) {
+        return hashes[handle];
+    }
+
+    /**
+     * Returns the peer id as a String, creating and caching it on first use.
+     */
+    public String getString(int handle) {
+        if (handle < 0 || handle >= size)
+            return null;
+        String[] strings = this.strings;
+        String value = strings[handle];
+        if (value == null) {
+            byte[] id = ids[handle];
+            if (id == null)
+                return null;
+            value = new String(id, UTF_8);
+            strings[handle] = value;
+        }
+        return value;
+    }
+
+    /**
+     * One past the highest handle handed out; handles below it may have been freed.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Registers a holder to be asked by {@link #sweep(long)}. Registering twice has no effect.
+     */
+    public synchronized void addHolder(Holder holder) {
+        for (Holder registered : holders) {
+            if (registered == holder)
+                return;
+        }
+        holders = Arrays.copyOf(holders, holders.length + 1);
+        holders[holders.length - 1] = holder;
+    }
+
+    public synchronized void removeHolder(Holder holder) {
+        for (int i = 0; i < holders.length; i++) {
+            if (holders[i] == holder) {
+                Holder[] remaining = new Holder[holders.length - 1];
+                System.arraycopy(holders, 0, remaining, 0, i);
+                System.arraycopy(holders, i + 1, remaining, i, remaining.length - i);
+                holders = remaining;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Frees every handle no holder marks as live, e.g. once a day. Holders are asked outside
+     * the lock, so this must run on the thread delivering scan results: a holder picking up an
+     * already interned handle after being asked would otherwise lose it.
+     *
+     * @return the number of handles freed
+     */
+    public int sweep(long now) {
+        Holder[] holders;
+        synchronized (this) {
+            holders = this.holders;
+            internedDuringSweep = new BitSet();
+        }
+        BitSet live = new BitSet(size);
+        try {
+            for (Holder holder : holders)
+                holder.markLive(live, now);
+        } finally {
+            synchronized (this) {
+                live.or(internedDuringSweep);
+                internedDuringSweep = null;
+            }
+        }
+
+        synchronized (this) {
+            int freed = 0;
+            for (int handle = 0; handle < size; handle++) {
+                if (ids[handle] == null || live.get(handle))
+                    continue;
+                ids[handle] = null;
+                hashes[handle] = 0;
+                strings[handle] = null;
+                if (freeCount == freeHandles.length)
+                    freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeHandles.length * 2));
+                freeHandles[freeCount++] = handle;
+                freed++;
+            }
+            if (freed > 0) {
+                liveCount -= freed;
+                // Lock-free readers still on the old table only miss, never match a freed id
+                rehash(slots.length());
+            }
+            return freed;
+        }
+    }
+
+    private int find(AtomicIntegerArray slots, byte[] data, int offset, int length, long hash) {
+        int mask = slots.length() - 1;
+        int index = (int) hash & mask;
+        while (true) {
+            int entry = slots.get(index);
+            if (entry == 0)
+                return NO_PEER;
+            int handle = entry - 1;
+            if (hashes[handle] == hash && equals(ids[handle], data, offset, length))
+                return handle;
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static void insertSlot(AtomicIntegerArray slots, long hash, int handle) {
+        int mask = slots.length() - 1;
+        int index = (int) hash & mask;
+        while (slots.get(index) != 0)
+            index = (index + 1) & mask;
+        slots.set(index, handle + 1);
+    }
+
+    private void rehash(int capacity) {
+        AtomicIntegerArray newSlots = new AtomicIntegerArray(capacity);
+        for (int handle = 0; handle < size; handle++) {
+            if (ids[handle] != null)
+                insertSlot(newSlots, hashes[handle], handle);
+        }
+        slots = newSlots;
+    }
+
+    private void growEntries() {
+        int capacity = ids.length * 2;
+        // Publish the larger arrays before any slot can point past the old ones
+        hashes = Arrays.copyOf(hashes, capacity);
+        strings = Arrays.copyOf(strings, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+    }
+
+    private static boolean equals(byte[] id, byte[] data, int offset, int length) {
+        if (id == null || id.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (id[i] != data[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, so every bit is usable
+     * (low bits for the table, high bits for sketches).
+     */
+    public static long hash64(byte[] data, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= data[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,24 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import java.util.UUID;
+
+/**
+ * Decodes the peer id of one tracing protocol from the service data advertised under its UUID.
+ */
+public interface PeerIdDecoder {
+
+    UUID getServiceUuid();
+
+    /**
+     * Short name for stats, e.g. "contact-tracer".
+     */
+    String getName();
+
+    /**
+     * @return the interned peer, or {@link PeerIdInterner#NO_PEER} if the payload is not valid
+     * for this protocol
+     */
+    int decode(byte[] serviceData, PeerIdInterner peerIdInterner);
+}
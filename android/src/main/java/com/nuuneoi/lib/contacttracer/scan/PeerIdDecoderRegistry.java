@@ -0,0 +1,63 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tracing protocols recognised by the scanner, keyed by service UUID.
+ * <p>
+ * TracerService builds one scan filter per installed decoder, so decoders have to be
+ * registered before the service starts (e.g. in Application.onCreate) to be scanned for.
+ */
+public class PeerIdDecoderRegistry {
+
+    public static class Entry {
+        public final PeerIdDecoder decoder;
+        public final AtomicLong hits = new AtomicLong();
+        public final AtomicLong failures = new AtomicLong();
+
+        Entry(PeerIdDecoder decoder) {
+            this.decoder = decoder;
+        }
+    }
+
+    private static PeerIdDecoderRegistry instance;
+
+    public static synchronized PeerIdDecoderRegistry getInstance() {
+        if (instance == null)
+            instance = new PeerIdDecoderRegistry();
+        return instance;
+    }
+
+    // Replaced as a whole on registration so the scan path can read it without locking
+    private volatile Map<UUID, Entry> entries = new HashMap<>();
+
+    /**
+     * Installs the decoder, replacing any other decoder for the same UUID.
+     */
+    public synchronized void register(PeerIdDecoder decoder) {
+        Map<UUID, Entry> updated = new HashMap<>(entries);
+        updated.put(decoder.getServiceUuid(), new Entry(decoder));
+        entries = updated;
+    }
+
+    /**
+     * Installs the decoder unless one is already registered for its UUID.
+     */
+    public synchronized void registerIfAbsent(PeerIdDecoder decoder) {
+        if (!entries.containsKey(decoder.getServiceUuid()))
+            register(decoder);
+    }
+
+    public Entry get(UUID serviceUuid) {
+        return entries.get(serviceUuid);
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+}
@@ -0,0 +1,53 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import java.util.UUID;
+
+/**
+ * Decoder for protocols that advertise the peer id as-is, optionally at a fixed offset and
+ * length within the service data. This covers our own string payload as well as fixed-size
+ * rolling identifiers such as the 16 byte RPI of Exposure Notification (UUID 0xFD6F).
+ */
+public class RawPeerIdDecoder implements PeerIdDecoder {
+
+    private final UUID serviceUuid;
+    private final String name;
+    private final int offset;
+    private final int minLength;
+    private final int maxLength;
+
+    /**
+     * Uses service data bytes {@code [offset, offset + length)} as the id, where length is the
+     * available data capped at maxLength; payloads shorter than offset + minLength are invalid.
+     */
+    public RawPeerIdDecoder(UUID serviceUuid, String name, int offset, int minLength, int maxLength) {
+        this.serviceUuid = serviceUuid;
+        this.name = name;
+        this.offset = offset;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    public RawPeerIdDecoder(UUID serviceUuid, String name) {
+        this(serviceUuid, name, 0, 1, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int decode(byte[] serviceData, PeerIdInterner peerIdInterner) {
+        int length = Math.min(serviceData.length - offset, maxLength);
+        if (length < minLength)
+            return PeerIdInterner.NO_PEER;
+        return peerIdInterner.intern(serviceData, offset, length);
+    }
+}
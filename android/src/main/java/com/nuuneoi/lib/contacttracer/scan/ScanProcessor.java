@@ -0,0 +1,90 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Platform independent part of the scan path: decodes the raw fields of a scan result
+ * into an interned peer and hands it to every registered {@link Listener}.
+ * <p>
+ * TracerService's ScanCallback only unpacks the Android ScanResult and calls
+ * {@link #onScanResult}, so the same path can be driven on a plain JVM.
+ */
+public class ScanProcessor {
+
+    public interface Listener {
+        void onNearbyDeviceFound(int peer, int rssi, long timestamp);
+    }
+
+    /**
+     * Told about results with neither decodable service data nor a device name, which have
+     * no peer and so are not passed to the {@link Listener}s.
+     */
+    public interface UnidentifiedListener {
+        void onUnidentifiedDeviceFound(int rssi, long timestamp);
+    }
+
+    private final PeerIdInterner peerIdInterner;
+    private final PeerIdDecoderRegistry decoderRegistry;
+    private Listener[] listeners = new Listener[0];
+    private UnidentifiedListener unidentifiedListener;
+
+    public ScanProcessor(PeerIdInterner peerIdInterner, PeerIdDecoderRegistry decoderRegistry) {
+        this.peerIdInterner = peerIdInterner;
+        this.decoderRegistry = decoderRegistry;
+    }
+
+    /**
+     * Listeners are called in registration order on the thread delivering scan results.
+     */
+    public void addListener(Listener listener) {
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+    }
+
+    public void setUnidentifiedListener(UnidentifiedListener listener) {
+        this.unidentifiedListener = listener;
+    }
+
+    public PeerIdDecoderRegistry getDecoderRegistry() {
+        return decoderRegistry;
+    }
+
+    /**
+     * @param serviceUuid UUID of a registered decoder the service data belongs to,
+     *                    or null if the advertisement carries none
+     * @param serviceData service data under serviceUuid
+     * @param deviceName  advertised device name, used when there is no service data
+     * @param timestamp   wall clock time of the result in milliseconds
+     */
+    public void onScanResult(UUID serviceUuid, byte[] serviceData, String deviceName, int rssi, long timestamp) {
+        int peer = getPeer(serviceUuid, serviceData, deviceName);
+        if (peer == PeerIdInterner.NO_PEER) {
+            if (unidentifiedListener != null)
+                unidentifiedListener.onUnidentifiedDeviceFound(rssi, timestamp);
+            return;
+        }
+
+        for (Listener listener : listeners)
+            listener.onNearbyDeviceFound(peer, rssi, timestamp);
+    }
+
+    private int getPeer(UUID serviceUuid, byte[] serviceData, String deviceName) {
+        if (serviceUuid != null && serviceData != null) {
+            PeerIdDecoderRegistry.Entry entry = decoderRegistry.get(serviceUuid);
+            if (entry != null) {
+                int peer = entry.decoder.decode(serviceData, peerIdInterner);
+                if (peer != PeerIdInterner.NO_PEER) {
+                    entry.hits.incrementAndGet();
+                    return peer;
+                }
+                entry.failures.incrementAndGet();
+            }
+        }
+        if (deviceName != null)
+            return peerIdInterner.intern(deviceName);
+        return PeerIdInterner.NO_PEER;
+    }
+}
@@ -0,0 +1,147 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps scan starts under the Android limit of {@link #MAX_STARTS} per {@link #WINDOW}.
+ * Above it the OS silently stops delivering results instead of failing the scan.
+ * <p>
+ * TracerService asks {@link #getStartDelay(long)} before every start and defers the start by
+ * that much. A completed scan window with no results right after one that had results is
+ * counted as silent. A silent window whose start was at the limit is counted as a throttle
+ * incident, and after one the governor holds further starts back for a whole window.
+ * <p>
+ * Start times are checkpointed because the OS counts starts per app, across service restarts.
+ */
+public class ScanRateGovernor implements StateCheckpoint.Section {
+
+    public static final int MAX_STARTS = 5;
+    public static final long WINDOW = 30 * 1000;
+
+    // Margin for clock differences with the OS bookkeeping
+    private static final long SLACK = 1000;
+    // Shorter windows are not long enough to tell silence from an empty room
+    private static final long MIN_SILENT_SCAN_DURATION = 5000;
+    private static final int CHECKPOINT_TAG = 6;
+
+    private static ScanRateGovernor instance;
+
+    public static synchronized ScanRateGovernor getInstance() {
+        if (instance == null)
+            instance = new ScanRateGovernor();
+        return instance;
+    }
+
+    // Ring of the latest start times, oldest at startIndex
+    private final long[] starts = new long[MAX_STARTS];
+    private int startIndex = 0;
+
+    private long currentScanStartedAt = 0;
+    private boolean currentScanAtLimit = false;
+    private int currentScanResults = 0;
+    private boolean previousScanHadResults = false;
+    private long holdUntil = 0;
+
+    private long scansStarted = 0;
+    private long scansDeferred = 0;
+    private long silentScans = 0;
+    private long throttleIncidents = 0;
+
+    /**
+     * Milliseconds to wait before a scan may be started, 0 if it may start now.
+     */
+    public synchronized long getStartDelay(long now) {
+        long delay = Math.max(0, holdUntil - now);
+        long oldest = starts[startIndex];
+        if (oldest > 0)
+            delay = Math.max(delay, oldest + WINDOW + SLACK - now);
+        return Math.max(0, delay);
+    }
+
+    public synchronized void onScanDeferred() {
+        scansDeferred++;
+    }
+
+    public synchronized void onScanStarted(long now) {
+        // At the limit if this start still falls within the window of the oldest remembered one
+        long oldest = starts[startIndex];
+        currentScanAtLimit = oldest > 0 && now - oldest < WINDOW;
+
+        starts[startIndex] = now;
+        startIndex = (startIndex + 1) % MAX_STARTS;
+
+        currentScanStartedAt = now;
+        currentScanResults = 0;
+        scansStarted++;
+    }
+
+    public synchronized void onScanResult() {
+        currentScanResults++;
+    }
+
+    public synchronized void onScanStopped(long now) {
+        if (currentScanStartedAt == 0)
+            return;
+
+        boolean hadResults = currentScanResults > 0;
+        if (!hadResults && previousScanHadResults && now - currentScanStartedAt >= MIN_SILENT_SCAN_DURATION) {
+            silentScans++;
+            if (currentScanAtLimit) {
+                throttleIncidents++;
+                holdUntil = now + WINDOW;
+            }
+        }
+        previousScanHadResults = hadResults;
+        currentScanStartedAt = 0;
+    }
+
+    public synchronized long getScansStarted() {
+        return scansStarted;
+    }
+
+    public synchronized long getScansDeferred() {
+        return scansDeferred;
+    }
+
+    public synchronized long getSilentScans() {
+        return silentScans;
+    }
+
+    public synchronized long getThrottleIncidents() {
+        return throttleIncidents;
+    }
+
+    // Checkpoint
+
+    @Override
+    public int getTag() {
+        return CHECKPOINT_TAG;
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer out) {
+        for (int i = 0; i < MAX_STARTS; i++)
+            out.putLong(starts[(startIndex + i) % MAX_STARTS]);
+        out.putLong(holdUntil);
+        out.put((byte) (previousScanHadResults ? 1 : 0));
+        out.putLong(scansStarted);
+        out.putLong(scansDeferred);
+        out.putLong(silentScans);
+        out.putLong(throttleIncidents);
+    }
+
+    @Override
+    public synchronized void read(ByteBuffer in) {
+        for (int i = 0; i < MAX_STARTS; i++)
+            starts[i] = in.getLong();
+        startIndex = 0;
+        holdUntil = in.getLong();
+        previousScanHadResults = in.get() != 0;
+        scansStarted = in.getLong();
+        scansDeferred = in.getLong();
+        silentScans = in.getLong();
+        throttleIncidents = in.getLong();
+    }
+}
@@ -0,0 +1,302 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+import com.nuuneoi.lib.contacttracer.crypto.SealedChunkLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Records raw scan results into a bounded trace, for reproducing field behaviour with the
+ * ScanTraceReplayer of the tests.
+ * <p>
+ * Results are recorded as received, before any decoding, so a replay takes the same path
+ * through decoder selection, the GATT fallback and the device name fallback.
+ * <p>
+ * Advertisements and device names identify the people around, so the trace is written
+ * through {@link SealedChunkLog}s sealed with the store key, and there is no recorder
+ * without one. It is a directory of generation logs {@code trace-<n>.chunks}: once the
+ * current one reaches half the size given, a new one is started and the one before the
+ * current is deleted, keeping between half and all of that size.
+ * <p>
+ * Each log starts with a header record holding {@link #MAGIC} and {@link #RECORD_SIZE},
+ * followed by fixed {@link #RECORD_SIZE} byte records, which divide the chunk size so that
+ * none spans two chunks. A record holds:
+ * <pre>
+ * long  timestamp (ms)     byte  callback type     byte rssi     int device address hash
+ * byte  advertisement length (0xff: no scan record)  byte device name length (0xff: none)
+ * byte[62] advertisement, as ScanRecord.getBytes()  byte[48] device name, UTF-8, truncated
+ * byte  tx power (dBm, {@link #TX_POWER_NOT_PRESENT} when unknown)
+ * </pre>
+ */
+public class ScanTraceRecorder {
+
+    public static final int RECORD_SIZE = 128;
+    // Advertising data and scan response of a legacy advertisement
+    public static final int MAX_ADVERTISEMENT = 62;
+    public static final int MAX_DEVICE_NAME = 48;
+    // As ScanResult.TX_POWER_NOT_PRESENT, which is also what API < 26 gets
+    public static final int TX_POWER_NOT_PRESENT = 127;
+
+    static final int MAGIC = 0x43545433; // "CTT3"
+    static final int ABSENT = 0xff;
+    static final int ADVERTISEMENT_OFFSET = 16;
+    static final int DEVICE_NAME_OFFSET = ADVERTISEMENT_OFFSET + MAX_ADVERTISEMENT;
+    static final int TX_POWER_OFFSET = DEVICE_NAME_OFFSET + MAX_DEVICE_NAME;
+
+    private static final String FILE_PREFIX = "trace-";
+    private static final String FILE_SUFFIX = ".chunks";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final ChunkCipher cipher;
+    private final long generationBytes;
+    private final ExecutorService sealingExecutor = SealedChunkLog.newSealingExecutor();
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    private int generation;
+    private SealedChunkLog current;
+    private SealedChunkLog previous;
+
+    /**
+     * Opens the trace in the directory, appending to it.
+     *
+     * @param key see {@link com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys}, not null
+     */
+    public ScanTraceRecorder(File directory, SecretKey key, long maxBytes) throws IOException {
+        if (key == null)
+            throw new IllegalArgumentException("Scan traces are only recorded sealed");
+        this.directory = directory;
+        this.cipher = new ChunkCipher(key);
+        this.generationBytes = Math.max(SealedChunkLog.CHUNK_SIZE, maxBytes / 2);
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        List<File> files = getLogFiles(directory);
+        for (int i = 0; i < files.size() - 2; i++)
+            files.get(i).delete();
+        if (files.size() >= 2) {
+            previous = new SealedChunkLog(files.get(files.size() - 2), cipher, sealingExecutor);
+            previous.open();
+        }
+        if (files.isEmpty()) {
+            startGeneration(0, 0);
+        } else {
+            File newest = files.get(files.size() - 1);
+            generation = generationOf(newest);
+            current = new SealedChunkLog(newest, cipher, sealingExecutor);
+            current.open();
+            if (current.size() == 0)
+                appendHeader(0);
+        }
+    }
+
+    /**
+     * @param advertisement raw scan record, null if the result has none
+     * @param deviceName    name the platform knows the device by, null if none
+     * @param txPower       from ScanResult.getTxPower(), or {@link #TX_POWER_NOT_PRESENT}
+     */
+    public synchronized void record(int callbackType, byte[] advertisement, String deviceName, int rssi,
+                                    int txPower, int addressHash, long timestamp) {
+        if (current.size() >= generationBytes)
+            startGeneration(generation + 1, timestamp);
+
+        Arrays.fill(record, (byte) 0);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putLong(0, timestamp);
+        buffer.put(8, (byte) callbackType);
+        buffer.put(9, (byte) rssi);
+        buffer.putInt(10, addressHash);
+
+        if (advertisement != null) {
+            int length = Math.min(advertisement.length, MAX_ADVERTISEMENT);
+            buffer.put(14, (byte) length);
+            System.arraycopy(advertisement, 0, record, ADVERTISEMENT_OFFSET, length);
+        } else {
+            buffer.put(14, (byte) ABSENT);
+        }
+
+        if (deviceName != null) {
+            byte[] name = deviceName.getBytes(UTF_8);
+            int length = Math.min(name.length, MAX_DEVICE_NAME);
+            buffer.put(15, (byte) length);
+            System.arraycopy(name, 0, record, DEVICE_NAME_OFFSET, length);
+        } else {
+            buffer.put(15, (byte) ABSENT);
+        }
+        buffer.put(TX_POWER_OFFSET, (byte) txPower);
+
+        current.append(record, 0, RECORD_SIZE, timestamp);
+    }
+
+    /**
+     * Writes out records pending for more than {@link SealedChunkLog#MAX_CHUNK_AGE}, see
+     * {@link SealedChunkLog#commitIfOlderThan}.
+     */
+    public synchronized void commitIfOlderThan(long now) {
+        current.commitIfOlderThan(SealedChunkLog.MAX_CHUNK_AGE, now);
+    }
+
+    /**
+     * Writes out every pending record and waits until it is on disk.
+     */
+    public void close() {
+        SealedChunkLog log;
+        synchronized (this) {
+            log = current;
+        }
+        log.sync();
+        sealingExecutor.shutdown();
+    }
+
+    public synchronized long getRecordCount() {
+        long count = recordsIn(current);
+        if (previous != null)
+            count += recordsIn(previous);
+        return count;
+    }
+
+    private void startGeneration(int next, long now) {
+        if (current != null) {
+            // Its last chunk is written ahead of anything in the new generation
+            current.commitIfOlderThan(0, now);
+            if (previous != null) {
+                // Long written, this only waits should it still be in flight
+                previous.sync();
+                logFile(directory, generation - 1).delete();
+            }
+            previous = current;
+        }
+        generation = next;
+        File file = logFile(directory, generation);
+        file.delete();
+        current = new SealedChunkLog(file, cipher, sealingExecutor);
+        try {
+            current.open();
+        } catch (IOException e) {
+            // Cannot happen on a file that does not exist
+        }
+        appendHeader(now);
+    }
+
+    private void appendHeader(long now) {
+        byte[] header = new byte[RECORD_SIZE];
+        ByteBuffer.wrap(header).putInt(MAGIC).putInt(RECORD_SIZE);
+        current.append(header, 0, RECORD_SIZE, now);
+    }
+
+    private static long recordsIn(SealedChunkLog log) {
+        return Math.max(0, log.size() / RECORD_SIZE - 1);
+    }
+
+    /**
+     * Decrypts the trace into a single log in the clear, to take it off the device for the
+     * ScanTraceReplayer. Records still pending in a running recorder are left out.
+     *
+     * @param trace a trace directory, see {@link #ScanTraceRecorder}
+     * @return number of records exported
+     */
+    public static long export(File trace, SecretKey key, File out) throws IOException {
+        byte[] records = readRecords(trace, key);
+        out.delete();
+        ExecutorService executor = SealedChunkLog.newSealingExecutor();
+        try {
+            SealedChunkLog log = new SealedChunkLog(out, new ChunkCipher(null), executor);
+            log.open();
+            byte[] header = new byte[RECORD_SIZE];
+            ByteBuffer.wrap(header).putInt(MAGIC).putInt(RECORD_SIZE);
+            log.append(header, 0, RECORD_SIZE, 0);
+            for (int offset = 0; offset < records.length; offset += RECORD_SIZE)
+                log.append(records, offset, RECORD_SIZE, 0);
+            log.sync();
+        } finally {
+            executor.shutdown();
+        }
+        if (!out.exists())
+            throw new IOException("Cannot write " + out);
+        return records.length / RECORD_SIZE;
+    }
+
+    /**
+     * Every readable record of a trace directory, or of a single log such as an
+     * {@link #export}, oldest first and without the headers.
+     *
+     * @param key null for a log written in the clear
+     * @throws IOException if a log is not a scan trace of this format
+     */
+    public static byte[] readRecords(File trace, SecretKey key) throws IOException {
+        List<File> files = trace.isDirectory() ? getLogFiles(trace) : Collections.singletonList(trace);
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final boolean[] valid = { true };
+        for (final File file : files) {
+            SealedChunkLog log = new SealedChunkLog(file, new ChunkCipher(key), null);
+            log.open();
+            log.scan(new SealedChunkLog.ChunkVisitor() {
+                @Override
+                public void onChunk(long start, byte[] plain, int length) {
+                    int offset = 0;
+                    if (start == 0) {
+                        ByteBuffer header = ByteBuffer.wrap(plain, 0, length);
+                        if (length < RECORD_SIZE || header.getInt() != MAGIC || header.getInt() != RECORD_SIZE)
+                            valid[0] = false;
+                        offset = RECORD_SIZE;
+                    }
+                    if (valid[0])
+                        records.write(plain, offset, length - offset - (length - offset) % RECORD_SIZE);
+                }
+            });
+            if (!valid[0])
+                throw new IOException("Not a scan trace: " + file);
+        }
+        return records.toByteArray();
+    }
+
+    /**
+     * Generation logs of a trace directory, oldest first.
+     */
+    private static List<File> getLogFiles(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return generationOf(file) >= 0;
+            }
+        });
+        List<File> sorted = new ArrayList<>();
+        if (files != null)
+            sorted.addAll(Arrays.asList(files));
+        Collections.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Integer.compare(generationOf(a), generationOf(b));
+            }
+        });
+        return sorted;
+    }
+
+    private static File logFile(File directory, int generation) {
+        return new File(directory, FILE_PREFIX + generation + FILE_SUFFIX);
+    }
+
+    private static int generationOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -18,6 +18,7 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.ComponentName;
@@ -28,19 +29,44 @@ import android.graphics.Color;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelUuid;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.widget.Toast;
 
 import com.nuuneoi.lib.contacttracer.R;
+import com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys;
+import com.nuuneoi.lib.contacttracer.encounter.CrowdEstimator;
+import com.nuuneoi.lib.contacttracer.encounter.DailyRollups;
+import com.nuuneoi.lib.contacttracer.encounter.EncounterSessions;
+import com.nuuneoi.lib.contacttracer.encounter.ExposureRiskScorer;
+import com.nuuneoi.lib.contacttracer.gatt.BluetoothGattConnector;
+import com.nuuneoi.lib.contacttracer.gatt.GattIdentityResolver;
+import com.nuuneoi.lib.contacttracer.gatt.GattIdentityServer;
 import com.nuuneoi.lib.contacttracer.mock.IUser;
 import com.nuuneoi.lib.contacttracer.mock.User;
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
 import com.nuuneoi.lib.contacttracer.receiver.BootCompletedReceiver;
+import com.nuuneoi.lib.contacttracer.scan.PeerIdDecoderRegistry;
+import com.nuuneoi.lib.contacttracer.scan.RawPeerIdDecoder;
+import com.nuuneoi.lib.contacttracer.scan.ScanProcessor;
+import com.nuuneoi.lib.contacttracer.scan.ScanRateGovernor;
+import com.nuuneoi.lib.contacttracer.scan.ScanTraceRecorder;
+import com.nuuneoi.lib.contacttracer.state.StateCheckpoint;
+import com.nuuneoi.lib.contacttracer.timeline.TimelineStore;
 import com.nuuneoi.lib.contacttracer.utils.BluetoothUtils;
 import com.nuuneoi.lib.contacttracer.utils.Constants;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.crypto.SecretKey;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
@@ -50,14 +76,39 @@ public class TracerService extends Service {
 
     private static final int FOREGROUND_NOTIFICATION_ID = 20011;
 
+    // Manufacturer data iOS advertises background service UUIDs in: type, then the mask
+    private static final int APPLE_COMPANY_ID = 0x004C;
+    private static final byte APPLE_OVERFLOW_AREA_TYPE = 0x01;
+    private static final int APPLE_OVERFLOW_AREA_SIZE = 16;
+
+    // Set while an instance is between onCreate and onDestroy in this process
+    private static volatile boolean runningInProcess = false;
+
     public static final String ADVERTISING_MESSAGE =
             "com.nuuneoi.contacttracer.advertiser_message";
     public static final String ADVERTISING_MESSAGE_EXTRA_MESSAGE = "message";
 
     public static final String NEARBY_DEVICE_FOUND_MESSAGE =
             "com.nuuneoi.contacttracer.nearbydevicefound_message";
-    public static final String NEARBY_DEVICE_FOUND_EXTRA_NAME = "name";
+    // Interned peer handle, see PeerIdInterner
+    public static final String NEARBY_DEVICE_FOUND_EXTRA_PEER = "peer";
     public static final String NEARBY_DEVICE_FOUND_EXTRA_RSSI = "rssi";
+    public static final String NEARBY_DEVICE_FOUND_EXTRA_SMOOTHED_RSSI = "smoothed_rssi";
+    public static final String NEARBY_DEVICE_FOUND_EXTRA_PROXIMITY = "proximity";
+    // Start of the peer's encounter session, see EncounterSessions
+    public static final String NEARBY_DEVICE_FOUND_EXTRA_ENCOUNTER_START = "encounter_start";
+
+    public static final String RISK_THRESHOLD_CROSSED_MESSAGE =
+            "com.nuuneoi.contacttracer.riskthresholdcrossed_message";
+    public static final String RISK_THRESHOLD_CROSSED_EXTRA_PEER = "peer";
+    public static final String RISK_THRESHOLD_CROSSED_EXTRA_EXPOSURE_MINUTES = "exposure_minutes";
+    public static final String RISK_THRESHOLD_CROSSED_EXTRA_PROXIMITY = "proximity";
+
+    public static final String CROWD_THRESHOLD_EXCEEDED_MESSAGE =
+            "com.nuuneoi.contacttracer.crowdthresholdexceeded_message";
+    public static final String CROWD_THRESHOLD_EXCEEDED_EXTRA_ESTIMATE = "estimate";
+    public static final String CROWD_THRESHOLD_EXCEEDED_EXTRA_THRESHOLD = "threshold";
+    public static final String CROWD_THRESHOLD_EXCEEDED_EXTRA_WINDOW_MINUTES = "window_minutes";
 
     // Bluetooth General
     private BluetoothAdapter bluetoothAdapter;
@@ -69,11 +120,32 @@ public class TracerService extends Service {
     // Bluetooth Scanner
     private BluetoothLeScanner bluetoothLeScanner;
     private SampleScanCallback scanCallback;
+    private ScanRateGovernor scanRateGovernor;
     private Handler handler;
 
+    // GATT identity fallback for peers that advertise no service data
+    private GattIdentityResolver gattIdentityResolver;
+    private GattIdentityServer gattIdentityServer;
+
     // User
     IUser user;
 
+    // Scan results processing
+    private ScanProcessor scanProcessor;
+    private EncounterSessions encounterSessions;
+    private ExposureRiskScorer exposureRiskScorer;
+    private TimelineStore timelineStore;
+    private ScanTraceRecorder scanTraceRecorder;
+
+    // Local day peer handles were last swept on, see PeerIdInterner.sweep()
+    private int peerSweepDay = -1;
+
+    // State Checkpoint
+    private StateCheckpoint stateCheckpoint;
+    Runnable checkpointTimerRunnable;
+    private long lastAdvertiserRefreshAt = 0;
+    private long lastScanStartedAt = 0;
+
     // Wake Lock
     PowerManager.WakeLock wakeLock;
 
@@ -82,12 +154,14 @@ public class TracerService extends Service {
 
     // Scanner Timer
     Runnable scannerStartTimerRunnable;
+    Runnable deferredScanStartRunnable;
 
     private boolean isStoppingSelf = false;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        runningInProcess = true;
 
         goForeground();
 
@@ -100,32 +174,72 @@ public class TracerService extends Service {
 
         initBluetoothAdvertiser();
 
+        initGattIdentity();
+
         initWakeLock();
 
+        // Pick up sessions and timer phases left by a previous instance of the service
+        if (stateCheckpoint != null)
+            stateCheckpoint.restore();
+        long now = System.currentTimeMillis();
+
         startAdvertising();
-        startAdvertisingAutoRefresh();
+        if (gattIdentityServer != null)
+            gattIdentityServer.start();
+        long refreshRemaining = remainingOf(lastAdvertiserRefreshAt, Constants.ADVERTISER_REFRESH_INTERVAL, now);
+        if (refreshRemaining == 0) {
+            // Advertising was just started, so it counts as a refresh
+            refreshRemaining = Constants.ADVERTISER_REFRESH_INTERVAL;
+            lastAdvertiserRefreshAt = now;
+        }
+        startAdvertisingAutoRefresh(refreshRemaining);
 
         initBluetoothScanner();
-        startScanning();
-        startScannerTimer();
+        long scanRemaining = remainingOf(lastScanStartedAt, Constants.SCAN_PERIOD, now);
+        if (scanRemaining > 0 && scanRemaining < Constants.SCAN_PERIOD) {
+            // Killed in the middle of a scan window: finish it and keep the timer phase
+            startScanning(scanRemaining);
+            startScannerTimer(remainingOf(lastScanStartedAt, Constants.SCAN_INTERVAL, now));
+        } else {
+            startScanning();
+            startScannerTimer();
+        }
+
+        startCheckpointTimer();
 
         initAlarm();
     }
 
     @Override
     public void onDestroy() {
+        stopCheckpointTimer();
+        saveCheckpoint();
+        if (timelineStore != null)
+            timelineStore.flush();
+
         releaseWakeLock();
 
         stopAdvertising();
+        if (gattIdentityServer != null)
+            gattIdentityServer.stop();
         stopForeground(true);
         stopAdvertisingAutoRefresh();
 
         stopScannerTimer();
         stopScanning();
+        if (gattIdentityResolver != null)
+            gattIdentityResolver.cancelPending();
+        if (scanTraceRecorder != null)
+            scanTraceRecorder.close();
+
+        PeerIdInterner.getInstance().removeHolder(encounterSessions);
+        PeerIdInterner.getInstance().removeHolder(exposureRiskScorer);
+        exposureRiskScorer.setListener(null);
 
         if (!isStoppingSelf)
             broadcastHealthCheck();
 
+        runningInProcess = false;
         super.onDestroy();
     }
 
@@ -146,6 +260,9 @@ public class TracerService extends Service {
                 SystemClock.elapsedRealtime() + 1000,
                 restartPendingIntent);
 
+        saveCheckpoint();
+        if (timelineStore != null)
+            timelineStore.flush();
         broadcastHealthCheck();
 
         super.onTaskRemoved(rootIntent);
@@ -159,12 +276,102 @@ public class TracerService extends Service {
 
     private void initInstances() {
         user = new User(TracerService.this);
+        PeerIdInterner peerIdInterner = PeerIdInterner.getInstance();
+        encounterSessions = new EncounterSessions(peerIdInterner);
+        exposureRiskScorer = ExposureRiskScorer.getInstance();
+        exposureRiskScorer.setListener(new ExposureRiskScorer.Listener() {
+            @Override
+            public void onRiskThresholdCrossed(int peer, float exposureMinutes, int proximity, long timestamp) {
+                sendRiskThresholdCrossedMessage(peer, exposureMinutes, proximity);
+            }
+        });
+        PeerIdDecoderRegistry decoderRegistry = PeerIdDecoderRegistry.getInstance();
+        decoderRegistry.registerIfAbsent(new RawPeerIdDecoder(Constants.Service_UUID.getUuid(), "contact-tracer"));
+        scanProcessor = new ScanProcessor(peerIdInterner, decoderRegistry);
+        scanRateGovernor = ScanRateGovernor.getInstance();
+        scanProcessor.addListener(encounterSessions);
+        scanProcessor.addListener(DailyRollups.getInstance());
+        scanProcessor.addListener(exposureRiskScorer);
+
+        CrowdEstimator crowdEstimator = CrowdEstimator.getInstance();
+        loadCrowdThreshold(this);
+        crowdEstimator.setListener(new CrowdEstimator.Listener() {
+            @Override
+            public void onCrowdThresholdExceeded(int estimate, int threshold, int windowMinutes) {
+                sendCrowdThresholdExceededMessage(estimate, threshold, windowMinutes);
+            }
+        });
+        scanProcessor.addListener(crowdEstimator);
+
+        // Contact data is encrypted at rest where the Keystore can hold the key (API 23+)
+        SecretKey storageKey = null;
+        boolean storageAvailable = true;
+        try {
+            storageKey = KeystoreKeys.getOrCreateKey(Constants.STORAGE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            // Nothing is saved rather than saved unencrypted; tracing goes on in memory
+            storageAvailable = false;
+            sendSignalAndLog("Secure storage unavailable, contact data is not saved: " + e.getMessage());
+        }
+        if (storageAvailable) {
+            timelineStore = TimelineStore.getInstance(new File(getFilesDir(), Constants.TIMELINE_DIRECTORY), storageKey);
+            scanProcessor.addListener(timelineStore);
+        }
+
+        if (isRecordingEnabled(this)) {
+            // Traces hold raw advertisements and device names, so they are only kept sealed
+            if (storageKey == null) {
+                sendSignalAndLog("Scan recording needs secure storage");
+            } else {
+                try {
+                    scanTraceRecorder = new ScanTraceRecorder(getScanTraceDirectory(this), storageKey,
+                            Constants.SCAN_TRACE_MAX_BYTES);
+                } catch (IOException e) {
+                    sendSignalAndLog("Scan recording unavailable");
+                }
+            }
+        }
+        scanProcessor.addListener(new ScanProcessor.Listener() {
+            @Override
+            public void onNearbyDeviceFound(int peer, int rssi, long timestamp) {
+                // The sessions listener was called first, so the session includes this sighting
+                sendNearbyDeviceFoundMessage(peer, rssi, exposureRiskScorer.getSmoothedRssi(peer),
+                        exposureRiskScorer.getProximity(peer), encounterSessions.getSessionStart(peer));
+            }
+        });
+        // Still reported to JS, without a name
+        scanProcessor.setUnidentifiedListener(new ScanProcessor.UnidentifiedListener() {
+            @Override
+            public void onUnidentifiedDeviceFound(int rssi, long timestamp) {
+                sendNearbyDeviceFoundMessage(PeerIdInterner.NO_PEER, rssi, rssi, ExposureRiskScorer.proximityOf(rssi),
+                        timestamp);
+            }
+        });
+
+        // Everything keeping per-peer state, so handles of peers gone for good can be reused
+        peerIdInterner.addHolder(encounterSessions);
+        peerIdInterner.addHolder(exposureRiskScorer);
+        peerIdInterner.addHolder(DailyRollups.getInstance());
+        if (timelineStore != null)
+            peerIdInterner.addHolder(timelineStore);
+
+        if (storageAvailable) {
+            stateCheckpoint = new StateCheckpoint(new File(getFilesDir(), Constants.STATE_CHECKPOINT_FILE), storageKey);
+            // Rollups first: they are the durable part and must not be crowded out by sessions
+            stateCheckpoint.addSection(DailyRollups.getInstance());
+            stateCheckpoint.addSection(exposureRiskScorer);
+            stateCheckpoint.addSection(CrowdEstimator.getInstance());
+            stateCheckpoint.addSection(scanRateGovernor);
+            stateCheckpoint.addSection(encounterSessions);
+            stateCheckpoint.addSection(new SchedulerStateSection());
+        }
 
         handler = new Handler();
         autoRefreshTimerRunnable = new Runnable() {
             @Override
             public void run() {
                 refreshAdvertiser();
+                lastAdvertiserRefreshAt = System.currentTimeMillis();
                 startAdvertisingAutoRefresh();
             }
         };
@@ -175,6 +382,13 @@ public class TracerService extends Service {
                 startScannerTimer();
             }
         };
+        checkpointTimerRunnable = new Runnable() {
+            @Override
+            public void run() {
+                saveCheckpoint();
+                startCheckpointTimer();
+            }
+        };
     }
 
     /*************
@@ -205,6 +419,39 @@ public class TracerService extends Service {
         }
     }
 
+    /*****************
+     * GATT Identity *
+     *****************/
+
+    private void initGattIdentity() {
+        if (bluetoothAdapter == null)
+            return;
+        gattIdentityServer = new GattIdentityServer(this, user,
+                Constants.Service_UUID.getUuid(), Constants.Id_Characteristic_UUID);
+        gattIdentityResolver = new GattIdentityResolver(
+                new BluetoothGattConnector(this, bluetoothAdapter, handler,
+                        Constants.Service_UUID.getUuid(), Constants.Id_Characteristic_UUID),
+                new GattIdentityResolver.Listener() {
+                    @Override
+                    public void onIdentityResolved(final String address, final byte[] id, final int rssi, final long timestamp) {
+                        // Called from a binder thread; scan results are processed on the main thread
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (id != GattIdentityResolver.NO_IDENTITY) {
+                                    scanProcessor.onScanResult(gattIdentityResolver.getServiceUuid(), id, null, rssi,
+                                            timestamp);
+                                } else {
+                                    // Nothing to read, known by its name if it has one
+                                    String name = bluetoothAdapter.getRemoteDevice(address).getName();
+                                    scanProcessor.onScanResult(null, null, name, rssi, timestamp);
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
     /**
      * Move service to the foreground, to avoid execution limits on background processes.
      * <p>
@@ -312,7 +559,11 @@ public class TracerService extends Service {
      * Setup Timer to Auto Refresh Advertising
      */
     private void startAdvertisingAutoRefresh() {
-        handler.postDelayed(autoRefreshTimerRunnable, Constants.ADVERTISER_REFRESH_INTERVAL);
+        startAdvertisingAutoRefresh(Constants.ADVERTISER_REFRESH_INTERVAL);
+    }
+
+    private void startAdvertisingAutoRefresh(long delay) {
+        handler.postDelayed(autoRefreshTimerRunnable, delay);
     }
 
     /**
@@ -384,14 +635,35 @@ public class TracerService extends Service {
     }
 
 
-    private void sendNearbyDeviceFoundMessage(CharSequence name, int rssi) {
+    private void sendNearbyDeviceFoundMessage(int peer, int rssi, int smoothedRssi, int proximity, long encounterStart) {
         Intent failureIntent = new Intent();
         failureIntent.setAction(NEARBY_DEVICE_FOUND_MESSAGE);
-        failureIntent.putExtra(NEARBY_DEVICE_FOUND_EXTRA_NAME, name);
+        failureIntent.putExtra(NEARBY_DEVICE_FOUND_EXTRA_PEER, peer);
         failureIntent.putExtra(NEARBY_DEVICE_FOUND_EXTRA_RSSI, rssi);
+        failureIntent.putExtra(NEARBY_DEVICE_FOUND_EXTRA_SMOOTHED_RSSI, smoothedRssi);
+        failureIntent.putExtra(NEARBY_DEVICE_FOUND_EXTRA_PROXIMITY, proximity);
+        failureIntent.putExtra(NEARBY_DEVICE_FOUND_EXTRA_ENCOUNTER_START, encounterStart);
         sendBroadcast(failureIntent);
     }
 
+    private void sendCrowdThresholdExceededMessage(int estimate, int threshold, int windowMinutes) {
+        Intent intent = new Intent();
+        intent.setAction(CROWD_THRESHOLD_EXCEEDED_MESSAGE);
+        intent.putExtra(CROWD_THRESHOLD_EXCEEDED_EXTRA_ESTIMATE, estimate);
+        intent.putExtra(CROWD_THRESHOLD_EXCEEDED_EXTRA_THRESHOLD, threshold);
+        intent.putExtra(CROWD_THRESHOLD_EXCEEDED_EXTRA_WINDOW_MINUTES, windowMinutes);
+        sendBroadcast(intent);
+    }
+
+    private void sendRiskThresholdCrossedMessage(int peer, float exposureMinutes, int proximity) {
+        Intent intent = new Intent();
+        intent.setAction(RISK_THRESHOLD_CROSSED_MESSAGE);
+        intent.putExtra(RISK_THRESHOLD_CROSSED_EXTRA_PEER, peer);
+        intent.putExtra(RISK_THRESHOLD_CROSSED_EXTRA_EXPOSURE_MINUTES, exposureMinutes);
+        intent.putExtra(RISK_THRESHOLD_CROSSED_EXTRA_PROXIMITY, proximity);
+        sendBroadcast(intent);
+    }
+
     /*********************
      * Bluetooth Scanner *
      *********************/
@@ -406,7 +678,11 @@ public class TracerService extends Service {
      * Setup Timer to Auto Refresh Advertising
      */
     private void startScannerTimer() {
-        handler.postDelayed(scannerStartTimerRunnable, Constants.SCAN_INTERVAL);
+        startScannerTimer(Constants.SCAN_INTERVAL);
+    }
+
+    private void startScannerTimer(long delay) {
+        handler.postDelayed(scannerStartTimerRunnable, delay);
     }
 
     /**
@@ -414,16 +690,39 @@ public class TracerService extends Service {
      */
     private void stopScannerTimer() {
         handler.removeCallbacks(scannerStartTimerRunnable);
+        if (deferredScanStartRunnable != null)
+            handler.removeCallbacks(deferredScanStartRunnable);
     }
 
     /**
      * Start scanning for BLE Advertisements (& set it up to stop after a set period of time).
      */
     public void startScanning() {
+        startScanning(Constants.SCAN_PERIOD);
+    }
+
+    private void startScanning(final long period) {
         if (bluetoothAdapter.getState() != BluetoothAdapter.STATE_ON)
             return;
 
         if (scanCallback == null) {
+            // Starting above the OS rate limit would scan without ever getting results
+            long delay = scanRateGovernor.getStartDelay(System.currentTimeMillis());
+            if (delay > 0) {
+                sendSignalAndLog("Scan deferred by " + delay + "ms");
+                scanRateGovernor.onScanDeferred();
+                if (deferredScanStartRunnable != null)
+                    handler.removeCallbacks(deferredScanStartRunnable);
+                deferredScanStartRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        startScanning(period);
+                    }
+                };
+                handler.postDelayed(deferredScanStartRunnable, delay);
+                return;
+            }
+
             sendSignalAndLog("Start Scanning");
 
             // Will stop the scanning after a set time.
@@ -432,11 +731,15 @@ public class TracerService extends Service {
                 public void run() {
                     stopScanning();
                 }
-            }, Constants.SCAN_PERIOD);
+            }, period);
             // Kick off a new scan.
             scanCallback = new SampleScanCallback();
-            if (bluetoothLeScanner != null)
+            // Start of the scan window, which is in the past when finishing a restored one
+            lastScanStartedAt = System.currentTimeMillis() - (Constants.SCAN_PERIOD - period);
+            if (bluetoothLeScanner != null) {
+                scanRateGovernor.onScanStarted(System.currentTimeMillis());
                 bluetoothLeScanner.startScan(buildScanFilters(), buildScanSettings(), scanCallback);
+            }
         } else {
 
         }
@@ -455,6 +758,8 @@ public class TracerService extends Service {
         // Stop the scan, wipe the callback.
         if (bluetoothLeScanner != null && scanCallback != null)
             bluetoothLeScanner.stopScan(scanCallback);
+        if (scanCallback != null)
+            scanRateGovernor.onScanStopped(System.currentTimeMillis());
         scanCallback = null;
         // Even if no new results, update 'last seen' times.
         //mAdapter.notifyDataSetChanged();
@@ -462,14 +767,16 @@ public class TracerService extends Service {
 
 
     /**
-     * Return a List of {@link ScanFilter} objects to filter by Service UUID.
+     * Return a List of {@link ScanFilter} objects to filter by the Service UUID of every installed decoder.
      */
     private List<ScanFilter> buildScanFilters() {
         List<ScanFilter> scanFilters = new ArrayList<>();
-        ScanFilter.Builder builder = new ScanFilter.Builder();
-        // Comment out the below line to see all BLE devices around you
-        builder.setServiceUuid(Constants.Service_UUID);
-        scanFilters.add(builder.build());
+        for (PeerIdDecoderRegistry.Entry entry : scanProcessor.getDecoderRegistry().getEntries()) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            // Comment out the below line to see all BLE devices around you
+            builder.setServiceUuid(new ParcelUuid(entry.decoder.getServiceUuid()));
+            scanFilters.add(builder.build());
+        }
         return scanFilters;
     }
     /**
@@ -482,24 +789,19 @@ public class TracerService extends Service {
     }
 
     /**
-     * Custom ScanCallback object - adds to adapter on success, displays error on failure.
+     * Custom ScanCallback object - unpacks each result and passes it to the ScanProcessor.
      */
     private class SampleScanCallback extends ScanCallback {
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
             super.onBatchScanResults(results);
-            for (ScanResult result : results) {
-                String value = getUserIdFromResult(result);
-
-                sendNearbyDeviceFoundMessage(value, result.getRssi());
-            }
+            for (ScanResult result : results)
+                processResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
         }
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
             super.onScanResult(callbackType, result);
-            String value = getUserIdFromResult(result);
-
-            sendNearbyDeviceFoundMessage(value, result.getRssi());
+            processResult(callbackType, result);
         }
         @Override
         public void onScanFailed(int errorCode) {
@@ -507,16 +809,139 @@ public class TracerService extends Service {
             //Toast.makeText(TracerService.this, "Scan failed with error: " + errorCode, Toast.LENGTH_LONG)
             //        .show();
         }
-        private String getUserIdFromResult(ScanResult result) {
-            String value;
-            byte[] data = result.getScanRecord().getServiceData(Constants.Service_UUID);
+        private void processResult(int callbackType, ScanResult result) {
+            scanRateGovernor.onScanResult();
+            long now = System.currentTimeMillis();
+
+            if (scanTraceRecorder != null) {
+                // As received, so a replay goes through decoding and the fallbacks again
+                ScanRecord scanRecord = result.getScanRecord();
+                int txPower = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ? result.getTxPower()
+                        : ScanTraceRecorder.TX_POWER_NOT_PRESENT;
+                scanTraceRecorder.record(callbackType, scanRecord != null ? scanRecord.getBytes() : null,
+                        result.getDevice().getName(), result.getRssi(), txPower,
+                        result.getDevice().getAddress().hashCode(), now);
+            }
 
-            if (data != null)
-                value = new String(data);
-            else
-                value = result.getDevice().getName();
-            return value;
+            UUID serviceUuid = null;
+            byte[] data = null;
+            if (result.getScanRecord() != null && result.getScanRecord().getServiceData() != null) {
+                PeerIdDecoderRegistry decoderRegistry = scanProcessor.getDecoderRegistry();
+                for (Map.Entry<ParcelUuid, byte[]> entry : result.getScanRecord().getServiceData().entrySet()) {
+                    if (decoderRegistry.get(entry.getKey().getUuid()) != null) {
+                        serviceUuid = entry.getKey().getUuid();
+                        data = entry.getValue();
+                        break;
+                    }
+                }
+            }
+            if (data == null && gattIdentityResolver != null && advertisesGattIdentity(result.getScanRecord())) {
+                // No service data (e.g. iOS advertises the UUID only): read the id over GATT
+                byte[] id = gattIdentityResolver.resolve(result.getDevice().getAddress(), result.getRssi(), now);
+                if (id == GattIdentityResolver.PENDING) {
+                    return; // Reported by the resolver once the read is done
+                } else if (id != null && id != GattIdentityResolver.NO_IDENTITY) {
+                    serviceUuid = gattIdentityResolver.getServiceUuid();
+                    data = id;
+                }
+                // null: the resolver has no room for the device, so it falls back to its name
+            }
+            // Only look the name up when it is needed as a fallback
+            String name = data == null ? result.getDevice().getName() : null;
+
+            scanProcessor.onScanResult(serviceUuid, data, name, result.getRssi(), now);
+        }
+    }
+
+    private boolean advertisesGattIdentity(ScanRecord scanRecord) {
+        if (scanRecord == null)
+            return false;
+        List<ParcelUuid> serviceUuids = scanRecord.getServiceUuids();
+        if (serviceUuids != null) {
+            UUID gattServiceUuid = gattIdentityResolver.getServiceUuid();
+            for (ParcelUuid uuid : serviceUuids) {
+                if (uuid.getUuid().equals(gattServiceUuid))
+                    return true;
+            }
+        }
+        return hasAppleOverflowArea(scanRecord);
+    }
+
+    /**
+     * Whether the advertisement carries the service UUIDs of iOS apps in the background. iOS
+     * moves them into Apple's manufacturer data as a 128-bit mask, one bit per UUID hash; which
+     * bit is ours is not documented, so any device with a bit set is read once, and those
+     * without the service are cached as having no identity.
+     */
+    private static boolean hasAppleOverflowArea(ScanRecord scanRecord) {
+        byte[] data = scanRecord.getManufacturerSpecificData(APPLE_COMPANY_ID);
+        if (data == null || data.length < 1 + APPLE_OVERFLOW_AREA_SIZE || data[0] != APPLE_OVERFLOW_AREA_TYPE)
+            return false;
+        for (int i = 1; i <= APPLE_OVERFLOW_AREA_SIZE; i++) {
+            if (data[i] != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * State Checkpoint
+     */
+
+    private void startCheckpointTimer() {
+        handler.postDelayed(checkpointTimerRunnable, Constants.STATE_CHECKPOINT_INTERVAL);
+    }
+
+    private void stopCheckpointTimer() {
+        handler.removeCallbacks(checkpointTimerRunnable);
+    }
+
+    private void saveCheckpoint() {
+        if (encounterSessions == null)
+            return; // Not initialized
+        long now = System.currentTimeMillis();
+        encounterSessions.expire(now);
+        if (timelineStore != null)
+            timelineStore.sealIdle(now);
+        if (scanTraceRecorder != null)
+            scanTraceRecorder.commitIfOlderThan(now);
+        if (gattIdentityResolver != null)
+            gattIdentityResolver.expire(now);
+        // Runs on the main thread like the scan path, as the sweep requires
+        int day = DailyRollups.dayIndexOf(now);
+        if (day != peerSweepDay) {
+            peerSweepDay = day;
+            PeerIdInterner.getInstance().sweep(now);
+        }
+        if (stateCheckpoint != null)
+            stateCheckpoint.save();
+    }
+
+    /**
+     * Time left until {@code since + interval}, clamped to [0, interval]. 0 if never happened.
+     */
+    private static long remainingOf(long since, long interval, long now) {
+        if (since <= 0)
+            return 0;
+        return Math.max(0, Math.min(interval, since + interval - now));
+    }
 
+    private class SchedulerStateSection implements StateCheckpoint.Section {
+        @Override
+        public int getTag() {
+            return 2;
+        }
+
+        @Override
+        public void write(ByteBuffer out) {
+            out.putLong(lastAdvertiserRefreshAt);
+            out.putLong(lastScanStartedAt);
+        }
+
+        @Override
+        public void read(ByteBuffer in) {
+            lastAdvertiserRefreshAt = in.getLong();
+            lastScanStartedAt = in.getLong();
         }
     }
 
@@ -576,6 +1001,14 @@ public class TracerService extends Service {
         return false;
     }
 
+    /**
+     * Whether the service is running in this process, so its in-memory state is current.
+     * Cheaper than {@link #isRunning(Context)}, which asks the system.
+     */
+    public static boolean isRunningInProcess() {
+        return runningInProcess;
+    }
+
     public static boolean isEnabled(Context context) {
         SharedPreferences prefs = context.getSharedPreferences("Advertising", Context.MODE_PRIVATE);
         return prefs.getBoolean("service_enabled", false);
@@ -595,4 +1028,44 @@ public class TracerService extends Service {
         editor.apply();
     }
 
+    public static void setCrowdThreshold(Context context, int threshold, int windowMinutes) {
+        SharedPreferences prefs = context.getSharedPreferences("Crowd", Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putInt("threshold", threshold);
+        editor.putInt("window_minutes", windowMinutes);
+        editor.apply();
+        CrowdEstimator.getInstance().setThreshold(threshold, windowMinutes);
+    }
+
+    public static boolean isRecordingEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("Advertising", Context.MODE_PRIVATE);
+        return prefs.getBoolean("scan_recording_enabled", false);
+    }
+
+    /**
+     * Turns raw scan recording on or off. Takes effect the next time the service starts;
+     * turning it off also deletes the export, the only copy in the clear.
+     */
+    public static void setRecordingEnabled(Context context, boolean enabled) {
+        SharedPreferences prefs = context.getSharedPreferences("Advertising", Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putBoolean("scan_recording_enabled", enabled);
+        editor.apply();
+        if (!enabled)
+            getScanTraceExportFile(context).delete();
+    }
+
+    public static File getScanTraceDirectory(Context context) {
+        return new File(context.getFilesDir(), Constants.SCAN_TRACE_DIRECTORY);
+    }
+
+    public static File getScanTraceExportFile(Context context) {
+        return new File(context.getFilesDir(), Constants.SCAN_TRACE_EXPORT_FILE);
+    }
+
+    private static void loadCrowdThreshold(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("Crowd", Context.MODE_PRIVATE);
+        CrowdEstimator.getInstance().setThreshold(prefs.getInt("threshold", 0), prefs.getInt("window_minutes", 15));
+    }
+
 }
@@ -0,0 +1,265 @@
+package com.nuuneoi.lib.contacttracer.service;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+import com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys;
+import com.nuuneoi.lib.contacttracer.mock.User;
+import com.nuuneoi.lib.contacttracer.timeline.TimelineStore;
+import com.nuuneoi.lib.contacttracer.upload.ChunkedUploader;
+import com.nuuneoi.lib.contacttracer.upload.UploadBatch;
+import com.nuuneoi.lib.contacttracer.utils.Constants;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Uploads the encounter timeline once the user consented, see {@link #start(Context, String)}.
+ * <p>
+ * Each run stages the samples recorded since the last completed upload as an
+ * {@link UploadBatch} under a new id, unless a batch is already pending, then sends its chunks
+ * from the first unacknowledged one. Progress is kept in preferences after every chunk, so a
+ * job stopped by the system or a dropped connection only costs the chunk in flight.
+ * <p>
+ * A staged batch is kept until it is done, so every PUT of a chunk carries the same bytes.
+ * A batch the server rejected is sent again on later runs, up to
+ * {@link Constants#UPLOAD_MAX_REJECTIONS} times; then, or at once if a chunk cannot be read
+ * back, it is dropped and its time range recorded as skipped (see {@link #getSkippedRanges})
+ * so the uploads after it go on.
+ */
+public class UploadService extends JobService {
+
+    public static final int JOB_ID = 2;
+
+    private volatile ChunkedUploader uploader;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final String endpoint = getEndpoint(this);
+        // Also drops an http endpoint stored by an earlier version
+        if (!isSecureEndpoint(endpoint))
+            return false;
+
+        uploader = new ChunkedUploader(endpoint, new User(this).getUserId());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                jobFinished(params, runUpload(uploader));
+            }
+        }, "UploadService").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        ChunkedUploader uploader = this.uploader;
+        if (uploader != null)
+            uploader.cancel();
+        return true;
+    }
+
+    /**
+     * @return true to have the job retried with backoff
+     */
+    private boolean runUpload(ChunkedUploader uploader) {
+        final SharedPreferences prefs = getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        SecretKey storageKey;
+        try {
+            storageKey = KeystoreKeys.getOrCreateKey(Constants.STORAGE_KEY_ALIAS);
+        } catch (GeneralSecurityException e) {
+            return true; // Batches are neither staged nor read unencrypted
+        }
+        ChunkCipher cipher = new ChunkCipher(storageKey);
+        File directory = new File(getFilesDir(), Constants.UPLOAD_DIRECTORY);
+
+        String batchId = prefs.getString("batch_id", null);
+        if (batchId == null) {
+            // Whatever is left in the directory is a batch whose staging was interrupted
+            File[] leftovers = directory.listFiles();
+            if (leftovers != null) {
+                for (File leftover : leftovers)
+                    new UploadBatch(leftover, cipher).delete();
+            }
+
+            long from = prefs.getLong("uploaded_until", 0);
+            long until = System.currentTimeMillis();
+            String newBatchId = UUID.randomUUID().toString();
+            UploadBatch batch = new UploadBatch(new File(directory, newBatchId), cipher);
+            int chunkCount;
+            try {
+                final UploadBatch.Writer writer = batch.newWriter();
+                TimelineStore.getInstance(new File(getFilesDir(), Constants.TIMELINE_DIRECTORY), storageKey)
+                        .export(from, until - 1, new TimelineStore.SampleSink() {
+                            @Override
+                            public void onSample(String peerId, long timestamp, int rssi) throws IOException {
+                                writer.addSample(peerId, timestamp, rssi);
+                            }
+                        });
+                chunkCount = writer.finish();
+            } catch (IOException e) {
+                batch.delete();
+                return true;
+            }
+
+            if (chunkCount == 0) {
+                batch.delete();
+                prefs.edit().putLong("uploaded_until", until).commit();
+                return false;
+            }
+            prefs.edit()
+                    .putString("batch_id", newBatchId)
+                    .putInt("chunk_count", chunkCount)
+                    .putInt("acknowledged", 0)
+                    .putInt("rejections", 0)
+                    .putLong("batch_until", until)
+                    .commit();
+            batchId = newBatchId;
+        }
+
+        UploadBatch batch = new UploadBatch(new File(directory, batchId), cipher);
+        int result = uploader.upload(batchId, batch, prefs.getInt("chunk_count", 0), prefs.getInt("acknowledged", 0),
+                new ChunkedUploader.Progress() {
+                    @Override
+                    public void onChunkAcknowledged(int index) {
+                        prefs.edit().putInt("acknowledged", index + 1).commit();
+                    }
+                });
+        if (result == ChunkedUploader.RESULT_RETRY)
+            return true;
+
+        SharedPreferences.Editor editor = prefs.edit();
+        if (result == ChunkedUploader.RESULT_REJECTED) {
+            int rejections = prefs.getInt("rejections", 0) + 1;
+            if (rejections < Constants.UPLOAD_MAX_REJECTIONS) {
+                // Kept as staged and sent again by the next periodic run
+                editor.putInt("rejections", rejections).commit();
+                return false;
+            }
+        }
+        if (result != ChunkedUploader.RESULT_DONE) {
+            // Rejected too often, or unreadable (e.g. the key was lost); sending it again
+            // cannot help and would hold back every later sample
+            editor.putString("skipped_ranges", appendRange(prefs.getString("skipped_ranges", ""),
+                    prefs.getLong("uploaded_until", 0), prefs.getLong("batch_until", 0)));
+        }
+        editor.putLong("uploaded_until", prefs.getLong("batch_until", 0))
+                .remove("batch_id").remove("chunk_count").remove("acknowledged").remove("rejections")
+                .remove("batch_until")
+                .commit();
+        batch.delete();
+        return false;
+    }
+
+    // Newest last, keeping the last UPLOAD_MAX_SKIPPED_RANGES
+    private static String appendRange(String ranges, long from, long until) {
+        List<String> list = new ArrayList<>();
+        if (!ranges.isEmpty())
+            list.addAll(Arrays.asList(ranges.split(",")));
+        list.add(from + "-" + until);
+        while (list.size() > Constants.UPLOAD_MAX_SKIPPED_RANGES)
+            list.remove(0);
+        StringBuilder joined = new StringBuilder();
+        for (String range : list) {
+            if (joined.length() > 0)
+                joined.append(',');
+            joined.append(range);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Stores the endpoint and schedules periodic uploads while the device is charging and
+     * has a network connection.
+     */
+    public static void start(Context context, String endpoint) {
+        SharedPreferences prefs = context.getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString("endpoint", endpoint);
+        editor.apply();
+
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context.getPackageName(), UploadService.class.getName()));
+        builder.setPeriodic(Constants.UPLOAD_INTERVAL);
+        builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY);
+        builder.setRequiresCharging(true);
+        builder.setBackoffCriteria(Constants.UPLOAD_INITIAL_BACKOFF, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+        builder.setPersisted(true);
+        jobScheduler.schedule(builder.build());
+    }
+
+    /**
+     * Cancels uploads and forgets the endpoint. A pending batch is dropped on the next start.
+     */
+    public static void stop(Context context) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        jobScheduler.cancel(JOB_ID);
+
+        SharedPreferences prefs = context.getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.remove("endpoint");
+        editor.remove("batch_id");
+        editor.remove("chunk_count");
+        editor.remove("acknowledged");
+        editor.remove("batch_until");
+        editor.remove("rejections");
+        editor.apply();
+    }
+
+    /**
+     * Uploads only go to https endpoints.
+     */
+    public static boolean isSecureEndpoint(String endpoint) {
+        return endpoint != null && endpoint.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    public static String getEndpoint(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        return prefs.getString("endpoint", null);
+    }
+
+    /**
+     * Time up to which samples have been uploaded, 0 if none.
+     */
+    public static long getUploadedUntil(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        return prefs.getLong("uploaded_until", 0);
+    }
+
+    /**
+     * Chunks acknowledged and staged in the pending batch, {0, 0} if there is none.
+     */
+    public static int[] getPendingProgress(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        return new int[] { prefs.getInt("acknowledged", 0), prefs.getInt("chunk_count", 0) };
+    }
+
+    /**
+     * Time ranges {from, until} whose samples were dropped instead of uploaded, oldest first.
+     */
+    public static List<long[]> getSkippedRanges(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences("Upload", Context.MODE_PRIVATE);
+        String ranges = prefs.getString("skipped_ranges", "");
+        List<long[]> list = new ArrayList<>();
+        if (ranges.isEmpty())
+            return list;
+        for (String range : ranges.split(",")) {
+            int dash = range.indexOf('-');
+            list.add(new long[] { Long.parseLong(range.substring(0, dash)), Long.parseLong(range.substring(dash + 1)) });
+        }
+        return list;
+    }
+}
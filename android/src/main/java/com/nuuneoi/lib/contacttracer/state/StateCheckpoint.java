@@ -0,0 +1,295 @@
+package com.nuuneoi.lib.contacttracer.state;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Small memory-mapped file holding the in-flight state of TracerService, so a restarted
+ * service can pick up where the killed one stopped.
+ * <p>
+ * The file has two slots written alternately. Each slot carries a sequence number and a CRC
+ * of its payload, so a process killed halfway through a save leaves the previous slot intact
+ * and {@link #restore()} falls back to it.
+ * <p>
+ * The payload is a list of tagged {@link Section}s. A section that does not fit in the slot
+ * is left out of that checkpoint rather than failing the whole save.
+ * <p>
+ * Sections hold peer ids, so with a key the payload is sealed with AES-GCM as one chunk,
+ * bound to its sequence number, and only sealed slots are read: a slot in the clear could
+ * have been written by anyone able to write the file.
+ */
+public class StateCheckpoint {
+
+    public interface Section {
+        /**
+         * Unique and stable id of the section in the file.
+         */
+        int getTag();
+
+        void write(ByteBuffer out);
+
+        /**
+         * Called with a buffer limited to the bytes this section wrote. A RuntimeException
+         * skips this section only, the others are still restored.
+         */
+        void read(ByteBuffer in);
+    }
+
+    public static final int SLOT_SIZE = 64 * 1024;
+
+    // Slot payload in the clear, or sealed with the store key
+    private static final int MAGIC = 0x43545350; // "CTSP"
+    private static final int MAGIC_SEALED = 0x43545353; // "CTSS"
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4; // magic, sequence, length, crc
+
+    private final File file;
+    private final ChunkCipher cipher;
+    private final List<Section> sections = new ArrayList<>();
+    private final ByteBuffer scratch = ByteBuffer.allocate(SLOT_SIZE - HEADER_SIZE - ChunkCipher.OVERHEAD);
+    private MappedByteBuffer buffer;
+    private long sequence = 0;
+
+    /**
+     * @param key see {@link com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys}, null to save
+     *            unencrypted
+     */
+    public StateCheckpoint(File file, SecretKey key) {
+        this.file = file;
+        this.cipher = new ChunkCipher(key);
+    }
+
+    public void addSection(Section section) {
+        sections.add(section);
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        if (buffer == null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SLOT_SIZE * 2);
+            } finally {
+                // The mapping stays valid after the channel is closed
+                raf.close();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Loads the newest valid slot into the registered sections.
+     *
+     * @return false if there was no usable checkpoint
+     */
+    public boolean restore() {
+        try {
+            ByteBuffer payload = readNewest(map());
+            if (payload == null)
+                return false;
+
+            while (payload.remaining() >= 8) {
+                int tag = payload.getInt();
+                int length = payload.getInt();
+                if (length < 0 || length > payload.remaining())
+                    break;
+                ByteBuffer content = payload.slice();
+                content.limit(length);
+                payload.position(payload.position() + length);
+
+                Section section = findSection(tag);
+                if (section != null) {
+                    try {
+                        section.read(content);
+                    } catch (RuntimeException e) {
+                        // Corrupted or from an incompatible version, skip it so the
+                        // sections after it are still restored
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Serializes all sections into the older slot.
+     */
+    public boolean save() {
+        scratch.clear();
+        for (Section section : sections)
+            writeSection(section);
+        scratch.flip();
+        return writeScratch();
+    }
+
+    /**
+     * Saves a new checkpoint with the registered sections written afresh and every other
+     * section copied from the newest checkpoint, for a caller that only holds some of them
+     * (e.g. the React module while the service is not running).
+     */
+    public boolean update() {
+        ByteBuffer payload;
+        try {
+            payload = readNewest(map());
+        } catch (IOException e) {
+            return false;
+        }
+
+        scratch.clear();
+        List<Section> unwritten = new ArrayList<>(sections);
+        while (payload != null && payload.remaining() >= 8) {
+            int tag = payload.getInt();
+            int length = payload.getInt();
+            if (length < 0 || length > payload.remaining())
+                break;
+            Section section = findSection(tag);
+            if (section != null) {
+                // In place, keeping the order that decides what is left out when full
+                writeSection(section);
+                unwritten.remove(section);
+            } else if (scratch.remaining() >= 8 + length) {
+                scratch.putInt(tag);
+                scratch.putInt(length);
+                ByteBuffer content = payload.slice();
+                content.limit(length);
+                scratch.put(content);
+            }
+            payload.position(payload.position() + length);
+        }
+        for (Section section : unwritten)
+            writeSection(section);
+        scratch.flip();
+        return writeScratch();
+    }
+
+    private void writeSection(Section section) {
+        int start = scratch.position();
+        try {
+            scratch.putInt(section.getTag());
+            scratch.putInt(0);
+            section.write(scratch);
+            scratch.putInt(start + 4, scratch.position() - start - 8);
+        } catch (BufferOverflowException e) {
+            scratch.position(start);
+        }
+    }
+
+    private boolean writeScratch() {
+        long nextSequence = sequence + 1;
+        byte[] stored;
+        try {
+            stored = cipher.seal(nextSequence, scratch.array(), 0, scratch.limit());
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(stored, 0, stored.length);
+
+        try {
+            MappedByteBuffer buffer = map();
+            sequence = nextSequence;
+            int offset = (int) (sequence % 2) * SLOT_SIZE;
+            // Invalidate the slot first so a torn write can never look valid
+            buffer.putInt(offset, 0);
+            buffer.putLong(offset + 4, sequence);
+            buffer.putInt(offset + 12, stored.length);
+            buffer.putInt(offset + 16, (int) crc.getValue());
+            buffer.position(offset + HEADER_SIZE);
+            buffer.put(stored, 0, stored.length);
+            buffer.putInt(offset, cipher.isEncrypted() ? MAGIC_SEALED : MAGIC);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Plaintext payload of the newest slot that can be read, null if none; continues the
+     * sequence after the newest slot either way.
+     */
+    private ByteBuffer readNewest(MappedByteBuffer buffer) {
+        long[] sequences = { readValidSequence(buffer, 0), readValidSequence(buffer, 1) };
+        int newest = sequences[1] > sequences[0] ? 1 : 0;
+        sequence = Math.max(sequence, Math.max(sequences[0], Math.max(sequences[1], 0)));
+
+        for (int slot : new int[] { newest, 1 - newest }) {
+            if (sequences[slot] < 0)
+                continue;
+            ByteBuffer payload = openPayload(buffer, slot, sequences[slot]);
+            if (payload != null)
+                return payload;
+        }
+        return null;
+    }
+
+    private Section findSection(int tag) {
+        for (Section section : sections) {
+            if (section.getTag() == tag)
+                return section;
+        }
+        return null;
+    }
+
+    private static long readValidSequence(ByteBuffer buffer, int slot) {
+        int offset = slot * SLOT_SIZE;
+        int magic = buffer.getInt(offset);
+        if (magic != MAGIC && magic != MAGIC_SEALED)
+            return -1;
+        int length = buffer.getInt(offset + 12);
+        if (length < 0 || length > SLOT_SIZE - HEADER_SIZE)
+            return -1;
+
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = payloadOf(buffer, slot);
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        crc.update(bytes, 0, bytes.length);
+        if ((int) crc.getValue() != buffer.getInt(offset + 16))
+            return -1;
+        return buffer.getLong(offset + 4);
+    }
+
+    /**
+     * @return the plaintext payload of the slot, or null if it cannot be decrypted
+     */
+    private ByteBuffer openPayload(ByteBuffer buffer, int slot, long slotSequence) {
+        ByteBuffer payload = payloadOf(buffer, slot);
+        boolean sealed = buffer.getInt(slot * SLOT_SIZE) == MAGIC_SEALED;
+        if (!sealed)
+            return cipher.isEncrypted() ? null : payload;
+        if (!cipher.isEncrypted())
+            return null;
+
+        byte[] stored = new byte[payload.remaining()];
+        payload.get(stored);
+        try {
+            return ByteBuffer.wrap(cipher.open(slotSequence, stored, 0, stored.length));
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer payloadOf(ByteBuffer buffer, int slot) {
+        int offset = slot * SLOT_SIZE;
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + HEADER_SIZE);
+        payload.limit(offset + HEADER_SIZE + buffer.getInt(offset + 12));
+        return payload.slice();
+    }
+}
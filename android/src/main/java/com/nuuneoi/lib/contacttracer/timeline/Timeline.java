@@ -0,0 +1,35 @@
+package com.nuuneoi.lib.contacttracer.timeline;
+
+import java.util.Arrays;
+
+/**
+ * Decoded RSSI samples of one peer, in time order.
+ */
+public class Timeline {
+
+    private long[] timestamps = new long[64];
+    private int[] rssi = new int[64];
+    private int size;
+
+    void add(long timestamp, int value) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            rssi = Arrays.copyOf(rssi, size * 2);
+        }
+        timestamps[size] = timestamp;
+        rssi[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public int getRssi(int index) {
+        return rssi[index];
+    }
+}
@@ -0,0 +1,258 @@
+package com.nuuneoi.lib.contacttracer.timeline;
+
+/**
+ * Fixed-size block of one peer's RSSI samples, compressed Gorilla style.
+ * <p>
+ * The first sample is stored as is in the block header. Every following sample stores
+ * <ul>
+ * <li>the delta-of-delta of its timestamp, in {@link #TIME_UNIT} steps:
+ * '0' when unchanged, '10' + 7 bits, '110' + 9 bits, '1110' + 12 bits, or '1111' + 32 bits;</li>
+ * <li>the zigzag encoded change of RSSI from the previous sample:
+ * '0' when unchanged, '10' + 3 bits, '110' + 5 bits, or '111' + 9 bits.</li>
+ * </ul>
+ * A peer seen at a steady rhythm with a stable signal costs 2 to 14 bits per sample.
+ */
+public class TimelineBlock {
+
+    public static final int CAPACITY_BYTES = 128;
+
+    // Timestamps are quantised to 100 ms, plenty for proximity traces
+    public static final long TIME_UNIT = 100;
+
+    private final byte[] data;
+    private final long firstTimestamp;
+    private final int firstRssi;
+    private long lastTimestamp;
+    private int count;
+    private int bitLength;
+
+    // Encoder state
+    private long lastDelta;
+    private int lastRssi;
+
+    /**
+     * Starts a new block with its first sample.
+     */
+    public TimelineBlock(long timestamp, int rssi) {
+        this.data = new byte[CAPACITY_BYTES];
+        this.firstTimestamp = timestamp / TIME_UNIT * TIME_UNIT;
+        this.firstRssi = rssi;
+        this.lastTimestamp = this.firstTimestamp;
+        this.lastRssi = rssi;
+        this.count = 1;
+    }
+
+    /**
+     * Wraps a sealed block read back from storage.
+     */
+    public TimelineBlock(long firstTimestamp, int firstRssi, long lastTimestamp, int count, byte[] data) {
+        this.data = data;
+        this.firstTimestamp = firstTimestamp;
+        this.firstRssi = firstRssi;
+        this.lastTimestamp = lastTimestamp;
+        this.count = count;
+        this.bitLength = data.length * 8;
+    }
+
+    /**
+     * @return false if the block is full; the sample was not added
+     */
+    public boolean append(long timestamp, int rssi) {
+        long units = timestamp / TIME_UNIT - lastTimestamp / TIME_UNIT;
+        if (units < 0)
+            units = 0; // Out of order samples are clamped to the last timestamp
+        long deltaOfDelta = units - lastDelta;
+        int rssiChange = zigzag(rssi - lastRssi);
+
+        int bits = timestampBits(deltaOfDelta) + rssiBits(rssiChange);
+        if (bitLength + bits > CAPACITY_BYTES * 8)
+            return false;
+
+        writeTimestamp(deltaOfDelta);
+        writeRssi(rssiChange);
+
+        lastDelta = units;
+        lastTimestamp += units * TIME_UNIT;
+        lastRssi = rssi;
+        count++;
+        return true;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public int getFirstRssi() {
+        return firstRssi;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * The used bytes of the block, for storage.
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[(bitLength + 7) / 8];
+        System.arraycopy(data, 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * Decodes the samples within [from, to] into the output arrays.
+     *
+     * @return the number of samples written
+     */
+    public int decode(long from, long to, Timeline out) {
+        int added = 0;
+        int position = 0;
+        long timestamp = firstTimestamp;
+        long delta = 0;
+        int rssi = firstRssi;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                long deltaOfDelta;
+                if (readBit(position++) == 0) {
+                    deltaOfDelta = 0;
+                } else if (readBit(position++) == 0) {
+                    deltaOfDelta = readSigned(position, 7);
+                    position += 7;
+                } else if (readBit(position++) == 0) {
+                    deltaOfDelta = readSigned(position, 9);
+                    position += 9;
+                } else if (readBit(position++) == 0) {
+                    deltaOfDelta = readSigned(position, 12);
+                    position += 12;
+                } else {
+                    deltaOfDelta = readSigned(position, 32);
+                    position += 32;
+                }
+                delta += deltaOfDelta;
+                timestamp += delta * TIME_UNIT;
+
+                int change;
+                if (readBit(position++) == 0) {
+                    change = 0;
+                } else if (readBit(position++) == 0) {
+                    change = (int) readBits(position, 3) + 1;
+                    position += 3;
+                } else if (readBit(position++) == 0) {
+                    change = (int) readBits(position, 5) + 9;
+                    position += 5;
+                } else {
+                    change = (int) readBits(position, 9);
+                    position += 9;
+                }
+                rssi += unzigzag(change);
+            }
+            if (timestamp > to)
+                break;
+            if (timestamp >= from) {
+                out.add(timestamp, rssi);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    // Encoding
+
+    private static int timestampBits(long deltaOfDelta) {
+        if (deltaOfDelta == 0)
+            return 1;
+        if (deltaOfDelta >= -63 && deltaOfDelta <= 64)
+            return 2 + 7;
+        if (deltaOfDelta >= -255 && deltaOfDelta <= 256)
+            return 3 + 9;
+        if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048)
+            return 4 + 12;
+        return 4 + 32;
+    }
+
+    private void writeTimestamp(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writeBits(0b10, 2);
+            writeBits(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writeBits(0b110, 3);
+            writeBits(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writeBits(0b1110, 4);
+            writeBits(deltaOfDelta, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(deltaOfDelta, 32);
+        }
+    }
+
+    private static int rssiBits(int change) {
+        if (change == 0)
+            return 1;
+        if (change <= 8)
+            return 2 + 3;
+        if (change <= 40)
+            return 3 + 5;
+        return 3 + 9;
+    }
+
+    private void writeRssi(int change) {
+        if (change == 0) {
+            writeBits(0, 1);
+        } else if (change <= 8) {
+            writeBits(0b10, 2);
+            writeBits(change - 1, 3);
+        } else if (change <= 40) {
+            writeBits(0b110, 3);
+            writeBits(change - 9, 5);
+        } else {
+            writeBits(0b111, 3);
+            writeBits(change, 9);
+        }
+    }
+
+    private void writeBits(long value, int bits) {
+        for (int i = bits - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0)
+                data[bitLength >>> 3] |= (byte) (0x80 >>> (bitLength & 7));
+            bitLength++;
+        }
+    }
+
+    // Decoding
+
+    private int readBit(int position) {
+        return (data[position >>> 3] >>> (7 - (position & 7))) & 1;
+    }
+
+    private long readBits(int position, int bits) {
+        long value = 0;
+        for (int i = 0; i < bits; i++)
+            value = (value << 1) | readBit(position + i);
+        return value;
+    }
+
+    private long readSigned(int position, int bits) {
+        long value = readBits(position, bits);
+        // Sign extend, then map the top of the range back to the positive side
+        // (e.g. 7 bits hold -63..64, with 64 stored as -64)
+        long signed = (value << (64 - bits)) >> (64 - bits);
+        if (signed == -(1L << (bits - 1)))
+            return 1L << (bits - 1);
+        return signed;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
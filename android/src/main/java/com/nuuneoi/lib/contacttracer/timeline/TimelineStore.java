@@ -0,0 +1,500 @@
+package com.nuuneoi.lib.contacttracer.timeline;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+import com.nuuneoi.lib.contacttracer.crypto.SealedChunkLog;
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.ScanProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Per-peer RSSI timelines for contact investigations.
+ * <p>
+ * Each peer has one open {@link TimelineBlock} in memory. Full blocks, and blocks of peers
+ * not seen for {@link #SEAL_IDLE_AFTER}, are sealed: appended to a per-day
+ * {@link SealedChunkLog}, encrypted in chunks with the store key, and remembered in an
+ * in-memory index (peer, time range, log position). A range query reads and decodes only the
+ * blocks overlapping the range, decrypting only the chunks holding them.
+ * <p>
+ * Every sealed block also gets a small entry in a second, index log of its day, so opening
+ * the store decrypts only the index logs rather than every block of the retained days. Blocks
+ * written after the last entry that reached the index log, e.g. by a killed process, are
+ * indexed again from the block log's tail. Loading runs on its own thread; queries wait for
+ * it, sightings do not.
+ * <p>
+ * Log files are named after the UTC day of their blocks' first sample and deleted after
+ * {@link #RETENTION_DAYS}, on open and by {@link #sealIdle(long)}.
+ */
+public class TimelineStore implements ScanProcessor.Listener, PeerIdInterner.Holder {
+
+    public static final int RETENTION_DAYS = 14;
+    public static final long SEAL_IDLE_AFTER = 5 * 60 * 1000;
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private static final String FILE_PREFIX = "timeline-";
+    private static final String FILE_SUFFIX = ".chunks";
+    private static final String INDEX_FILE_SUFFIX = ".index";
+    // id length, id, first and last timestamp, first rssi, count, data length, data
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 8 + 1 + 2 + 2;
+    // id length, id, data position, data length, first and last timestamp, first rssi, count
+    private static final int INDEX_RECORD_HEADER_SIZE = 1 + 8 + 2 + 8 + 8 + 1 + 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface SampleSink {
+        void onSample(String peerId, long timestamp, int rssi) throws IOException;
+    }
+
+    private static class BlockRef {
+        final int day;
+        final long offset;
+        final int length;
+        final long firstTimestamp;
+        final long lastTimestamp;
+        final int firstRssi;
+        final int count;
+
+        BlockRef(int day, long offset, int length, long firstTimestamp, long lastTimestamp, int firstRssi, int count) {
+            this.day = day;
+            this.offset = offset;
+            this.length = length;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+            this.firstRssi = firstRssi;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The block log and index log of a day, with their sizes when opened: entries past those
+     * were written in this process and are indexed already.
+     */
+    private static class DayLog {
+        final SealedChunkLog blocks;
+        final SealedChunkLog index;
+        final long persistedBlocks;
+        final long persistedIndex;
+
+        DayLog(SealedChunkLog blocks, SealedChunkLog index) {
+            this.blocks = blocks;
+            this.index = index;
+            this.persistedBlocks = blocks.size();
+            this.persistedIndex = index.size();
+        }
+    }
+
+    private static TimelineStore instance;
+
+    /**
+     * @param key store key, see {@link com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys};
+     *            null to write unencrypted logs. Only used by the first call.
+     */
+    public static synchronized TimelineStore getInstance(File directory, SecretKey key) {
+        if (instance == null) {
+            final TimelineStore store = new TimelineStore(directory, PeerIdInterner.getInstance(),
+                    new ChunkCipher(key), SealedChunkLog.newSealingExecutor());
+            // Called from TracerService.onCreate, which must not wait for the disk
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    store.load();
+                }
+            }, "TimelineStore").start();
+            instance = store;
+        }
+        return instance;
+    }
+
+    private final File directory;
+    private final PeerIdInterner peerIdInterner;
+    private final ChunkCipher cipher;
+    private final ExecutorService sealingExecutor;
+
+    private TimelineBlock[] openBlocks = new TimelineBlock[256];
+    private final List<List<BlockRef>> sealedBlocks = new ArrayList<>();
+    private final Map<Integer, DayLog> logs = new HashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    TimelineStore(File directory, PeerIdInterner peerIdInterner, ChunkCipher cipher, ExecutorService sealingExecutor) {
+        this.directory = directory;
+        this.peerIdInterner = peerIdInterner;
+        this.cipher = cipher;
+        this.sealingExecutor = sealingExecutor;
+    }
+
+    @Override
+    public synchronized void onNearbyDeviceFound(int peer, int rssi, long timestamp) {
+        if (peer >= openBlocks.length)
+            openBlocks = Arrays.copyOf(openBlocks, Math.max(peer + 1, openBlocks.length * 2));
+
+        TimelineBlock block = openBlocks[peer];
+        if (block != null && block.append(timestamp, rssi))
+            return;
+
+        if (block != null)
+            seal(peer, block);
+        openBlocks[peer] = new TimelineBlock(timestamp, rssi);
+    }
+
+    /**
+     * Seals the blocks of peers that have not been seen for a while, has log chunks that
+     * have been filling for too long written, and deletes logs past retention.
+     */
+    public synchronized void sealIdle(long now) {
+        for (int peer = 0; peer < openBlocks.length; peer++) {
+            TimelineBlock block = openBlocks[peer];
+            if (block != null && now - block.getLastTimestamp() > SEAL_IDLE_AFTER) {
+                seal(peer, block);
+                openBlocks[peer] = null;
+            }
+        }
+        for (DayLog log : logs.values()) {
+            log.blocks.commitIfOlderThan(SealedChunkLog.MAX_CHUNK_AGE, now);
+            log.index.commitIfOlderThan(SealedChunkLog.MAX_CHUNK_AGE, now);
+        }
+        expire(now);
+    }
+
+    /**
+     * Deletes the logs of days past retention and forgets their blocks.
+     */
+    private void expire(long now) {
+        int oldestKept = (int) (now / DAY) - RETENTION_DAYS + 1;
+        boolean expired = false;
+        Iterator<Map.Entry<Integer, DayLog>> entries = logs.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Integer, DayLog> entry = entries.next();
+            if (entry.getKey() >= oldestKept)
+                continue;
+            // Nothing is appended to an expired day, this only waits for a chunk in flight
+            entry.getValue().blocks.sync();
+            entry.getValue().index.sync();
+            fileOf(entry.getKey(), FILE_SUFFIX).delete();
+            fileOf(entry.getKey(), INDEX_FILE_SUFFIX).delete();
+            entries.remove();
+            expired = true;
+        }
+        if (!expired)
+            return;
+
+        for (List<BlockRef> refs : sealedBlocks) {
+            Iterator<BlockRef> iterator = refs.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().day < oldestKept)
+                    iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Keeps every peer with an open block or sealed blocks within retention.
+     */
+    @Override
+    public synchronized void markLive(BitSet live, long now) {
+        for (int peer = 0; peer < openBlocks.length; peer++) {
+            if (openBlocks[peer] != null)
+                live.set(peer);
+        }
+        for (int peer = 0; peer < sealedBlocks.size(); peer++) {
+            if (!sealedBlocks.get(peer).isEmpty())
+                live.set(peer);
+        }
+    }
+
+    /**
+     * Seals every open block and waits until they are written, e.g. before the service
+     * goes away.
+     */
+    public void flush() {
+        List<SealedChunkLog> toSync;
+        synchronized (this) {
+            for (int peer = 0; peer < openBlocks.length; peer++) {
+                if (openBlocks[peer] != null) {
+                    seal(peer, openBlocks[peer]);
+                    openBlocks[peer] = null;
+                }
+            }
+            toSync = new ArrayList<>();
+            for (DayLog log : logs.values()) {
+                toSync.add(log.blocks);
+                toSync.add(log.index);
+            }
+        }
+        // Outside the lock, the scan path must not wait for disk
+        for (SealedChunkLog log : toSync)
+            log.sync();
+    }
+
+    /**
+     * Samples of the peer within [from, to], decoding only the blocks overlapping that range.
+     */
+    public Timeline getTimeline(String peerId, long from, long to) {
+        byte[] id = peerId.getBytes(UTF_8);
+        int peer = peerIdInterner.lookup(id, 0, id.length);
+        if (peer == PeerIdInterner.NO_PEER)
+            return new Timeline();
+        return getTimeline(peer, from, to);
+    }
+
+    /**
+     * Passes the samples of every peer within [from, to] to the sink, one peer at a time so
+     * the scan path is only held up for one peer's blocks.
+     */
+    public void export(long from, long to, SampleSink sink) throws IOException {
+        awaitLoaded(); // Before counting the peers it interns
+        int peers = peerIdInterner.size();
+        for (int peer = 0; peer < peers; peer++) {
+            Timeline timeline = getTimeline(peer, from, to);
+            if (timeline.size() == 0)
+                continue;
+            String peerId = peerIdInterner.getString(peer);
+            for (int i = 0; i < timeline.size(); i++)
+                sink.onSample(peerId, timeline.getTimestamp(i), timeline.getRssi(i));
+        }
+    }
+
+    private Timeline getTimeline(int peer, long from, long to) {
+        awaitLoaded();
+        // Only the index is read under the lock, the scan path must not wait for disk
+        List<BlockRef> refs = new ArrayList<>();
+        List<SealedChunkLog> refLogs = new ArrayList<>();
+        TimelineBlock open = null;
+        synchronized (this) {
+            if (peer < sealedBlocks.size()) {
+                for (BlockRef ref : sealedBlocks.get(peer)) {
+                    if (ref.lastTimestamp < from || ref.firstTimestamp > to)
+                        continue;
+                    refs.add(ref);
+                    DayLog log = logs.get(ref.day);
+                    refLogs.add(log != null ? log.blocks : null);
+                }
+            }
+            TimelineBlock block = peer < openBlocks.length ? openBlocks[peer] : null;
+            if (block != null && block.getLastTimestamp() >= from && block.getFirstTimestamp() <= to)
+                open = new TimelineBlock(block.getFirstTimestamp(), block.getFirstRssi(), block.getLastTimestamp(),
+                        block.getCount(), block.toBytes());
+        }
+
+        Timeline timeline = new Timeline();
+        for (int i = 0; i < refs.size(); i++) {
+            BlockRef ref = refs.get(i);
+            SealedChunkLog log = refLogs.get(i);
+            byte[] data = log != null ? log.read(ref.offset, ref.length) : null;
+            if (data != null)
+                new TimelineBlock(ref.firstTimestamp, ref.firstRssi, ref.lastTimestamp, ref.count, data)
+                        .decode(from, to, timeline);
+        }
+        if (open != null)
+            open.decode(from, to, timeline);
+        return timeline;
+    }
+
+    // Storage
+
+    private void seal(int peer, TimelineBlock block) {
+        int day = (int) (block.getFirstTimestamp() / DAY);
+        byte[] id = peerIdInterner.getBytes(peer);
+        byte[] data = block.toBytes();
+        if (id.length > 255)
+            return;
+        DayLog log = logOf(day);
+        if (log == null)
+            return; // Block is lost, the timeline has a gap
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + id.length + data.length);
+        record.put((byte) id.length);
+        record.put(id);
+        record.putLong(block.getFirstTimestamp());
+        record.putLong(block.getLastTimestamp());
+        record.put((byte) block.getFirstRssi());
+        record.putShort((short) block.getCount());
+        record.putShort((short) data.length);
+        record.put(data);
+
+        long position = log.blocks.append(record.array(), 0, record.position(), block.getLastTimestamp());
+        BlockRef ref = new BlockRef(day, position + RECORD_HEADER_SIZE + id.length, data.length,
+                block.getFirstTimestamp(), block.getLastTimestamp(), block.getFirstRssi(), block.getCount());
+        appendToIndex(log, id, 0, id.length, ref);
+        index(peer, ref);
+    }
+
+    private void appendToIndex(DayLog log, byte[] id, int idOffset, int idLength, BlockRef ref) {
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_HEADER_SIZE + idLength);
+        record.put((byte) idLength);
+        record.put(id, idOffset, idLength);
+        record.putLong(ref.offset);
+        record.putShort((short) ref.length);
+        record.putLong(ref.firstTimestamp);
+        record.putLong(ref.lastTimestamp);
+        record.put((byte) ref.firstRssi);
+        record.putShort((short) ref.count);
+        log.index.append(record.array(), 0, record.position(), ref.lastTimestamp);
+    }
+
+    private DayLog logOf(int day) {
+        DayLog log = logs.get(day);
+        if (log == null) {
+            SealedChunkLog blocks = new SealedChunkLog(fileOf(day, FILE_SUFFIX), cipher, sealingExecutor);
+            SealedChunkLog index = new SealedChunkLog(fileOf(day, INDEX_FILE_SUFFIX), cipher, sealingExecutor);
+            try {
+                // Reads the chunk frames only, nothing is decrypted
+                blocks.open();
+                index.open();
+            } catch (IOException e) {
+                return null;
+            }
+            log = new DayLog(blocks, index);
+            logs.put(day, log);
+        }
+        return log;
+    }
+
+    /**
+     * Keeps each peer's blocks in time order, which blocks loaded after sealing started need.
+     */
+    private void index(int peer, BlockRef ref) {
+        while (sealedBlocks.size() <= peer)
+            sealedBlocks.add(new ArrayList<BlockRef>());
+        List<BlockRef> refs = sealedBlocks.get(peer);
+        int i = refs.size();
+        while (i > 0 && refs.get(i - 1).firstTimestamp > ref.firstTimestamp)
+            i--;
+        refs.add(i, ref);
+    }
+
+    private File fileOf(int day, String suffix) {
+        return new File(directory, FILE_PREFIX + day + suffix);
+    }
+
+    private void awaitLoaded() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Drops expired log files and indexes the blocks of the others. Holds the lock only a
+     * chunk at a time, so sightings go on meanwhile.
+     */
+    void load() {
+        try {
+            directory.mkdirs();
+            File[] files = directory.listFiles();
+            if (files == null)
+                return;
+
+            int today = (int) (System.currentTimeMillis() / DAY);
+            Set<Integer> days = new TreeSet<>();
+            for (File file : files) {
+                String name = file.getName();
+                String suffix = name.endsWith(FILE_SUFFIX) ? FILE_SUFFIX
+                        : name.endsWith(INDEX_FILE_SUFFIX) ? INDEX_FILE_SUFFIX : null;
+                if (!name.startsWith(FILE_PREFIX) || suffix == null)
+                    continue;
+                int day;
+                try {
+                    day = Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - suffix.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (today - day >= RETENTION_DAYS)
+                    file.delete();
+                else
+                    days.add(day);
+            }
+            for (int day : days)
+                loadDay(day);
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private void loadDay(final int day) {
+        final DayLog log;
+        synchronized (this) {
+            log = logOf(day);
+        }
+        if (log == null)
+            return;
+
+        // End of the blocks the index log covers
+        final long[] indexedEnd = { 0 };
+        log.index.scan(new SealedChunkLog.ChunkVisitor() {
+            @Override
+            public void onChunk(long start, byte[] plain, int length) {
+                ByteBuffer in = ByteBuffer.wrap(plain, 0, length);
+                synchronized (TimelineStore.this) {
+                    while (in.remaining() >= INDEX_RECORD_HEADER_SIZE && start + in.position() < log.persistedIndex) {
+                        int idLength = in.get() & 0xFF;
+                        if (in.remaining() < idLength + INDEX_RECORD_HEADER_SIZE - 1)
+                            break;
+                        int idOffset = in.position();
+                        in.position(idOffset + idLength);
+                        long dataPosition = in.getLong();
+                        int dataLength = in.getShort() & 0xFFFF;
+                        long firstTimestamp = in.getLong();
+                        long lastTimestamp = in.getLong();
+                        int firstRssi = in.get();
+                        int count = in.getShort() & 0xFFFF;
+
+                        indexedEnd[0] = Math.max(indexedEnd[0], dataPosition + dataLength);
+                        index(peerIdInterner.intern(plain, idOffset, idLength), new BlockRef(day, dataPosition,
+                                dataLength, firstTimestamp, lastTimestamp, firstRssi, count));
+                    }
+                }
+            }
+        });
+
+        if (indexedEnd[0] >= log.persistedBlocks)
+            return;
+        // Blocks whose index entries were lost, e.g. with a killed process
+        log.blocks.scan(indexedEnd[0], new SealedChunkLog.ChunkVisitor() {
+            @Override
+            public void onChunk(long start, byte[] plain, int length) {
+                ByteBuffer in = ByteBuffer.wrap(plain, 0, length);
+                synchronized (TimelineStore.this) {
+                    while (in.remaining() >= RECORD_HEADER_SIZE && start + in.position() < log.persistedBlocks) {
+                        int idLength = in.get() & 0xFF;
+                        if (in.remaining() < idLength + RECORD_HEADER_SIZE - 1)
+                            break;
+                        int idOffset = in.position();
+                        in.position(idOffset + idLength);
+                        long firstTimestamp = in.getLong();
+                        long lastTimestamp = in.getLong();
+                        int firstRssi = in.get();
+                        int count = in.getShort() & 0xFFFF;
+                        int dataLength = in.getShort() & 0xFFFF;
+                        if (in.remaining() < dataLength)
+                            break;
+                        long dataPosition = start + in.position();
+                        in.position(in.position() + dataLength);
+                        if (dataPosition < indexedEnd[0])
+                            continue;
+
+                        BlockRef ref = new BlockRef(day, dataPosition, dataLength, firstTimestamp, lastTimestamp,
+                                firstRssi, count);
+                        appendToIndex(log, plain, idOffset, idLength, ref);
+                        index(peerIdInterner.intern(plain, idOffset, idLength), ref);
+                    }
+                }
+            }
+        });
+    }
+}
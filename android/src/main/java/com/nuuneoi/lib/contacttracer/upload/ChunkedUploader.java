@@ -0,0 +1,134 @@
+package com.nuuneoi.lib.contacttracer.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Uploads the chunks of an {@link UploadBatch} one request at a time, resuming after the last
+ * chunk the server acknowledged.
+ * <p>
+ * Chunk {@code i} of {@code n} is sent as {@code PUT <endpoint>/<batchId>/<i>} with the gzip
+ * body, {@code Content-Encoding: gzip}, {@code X-Chunk-Count: n}, the SHA-256 of the body in
+ * {@code X-Content-SHA256} and the device id in {@code X-Device-Id}. Any 2xx response
+ * acknowledges the chunk. PUT to a per-chunk URL makes retries idempotent.
+ * <p>
+ * Plain Java over HttpURLConnection, so it can be pointed at a stub server on localhost.
+ */
+public class ChunkedUploader {
+
+    public static final int RESULT_DONE = 0;
+    // Network or server trouble, try the same chunk again later
+    public static final int RESULT_RETRY = 1;
+    // The server refused a chunk with a status retrying will not change right away
+    public static final int RESULT_REJECTED = 2;
+    // A staged chunk could not be read back, so the batch cannot be sent as staged
+    public static final int RESULT_UNREADABLE = 3;
+
+    public static final int CONNECT_TIMEOUT = 15 * 1000;
+    public static final int READ_TIMEOUT = 30 * 1000;
+
+    public interface Progress {
+        /**
+         * Called after each acknowledged chunk, to be persisted before the next one is sent.
+         */
+        void onChunkAcknowledged(int index);
+    }
+
+    private final String endpoint;
+    private final String deviceId;
+    private volatile boolean cancelled = false;
+
+    public ChunkedUploader(String endpoint, String deviceId) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * Stops before the next chunk, e.g. when the job loses its constraints.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public int upload(String batchId, UploadBatch batch, int chunkCount, int firstChunk, Progress progress) {
+        for (int index = firstChunk; index < chunkCount; index++) {
+            if (cancelled)
+                return RESULT_RETRY;
+            byte[] chunk = batch.readChunk(index);
+            if (chunk == null)
+                return RESULT_UNREADABLE;
+
+            int status;
+            try {
+                status = put(batchId, index, chunkCount, chunk);
+            } catch (IOException e) {
+                return RESULT_RETRY;
+            }
+            if (status < 200 || status >= 300)
+                return isRetryable(status) ? RESULT_RETRY : RESULT_REJECTED;
+            progress.onChunkAcknowledged(index);
+        }
+        return RESULT_DONE;
+    }
+
+    private int put(String batchId, int index, int chunkCount, byte[] chunk) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + "/" + batchId + "/" + index)
+                .openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(chunk.length);
+            connection.setRequestProperty("Content-Type", "text/csv; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Chunk-Count", String.valueOf(chunkCount));
+            connection.setRequestProperty("X-Content-SHA256", sha256(chunk));
+            if (deviceId != null)
+                connection.setRequestProperty("X-Device-Id", deviceId);
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(chunk);
+            } finally {
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+            // Drain the body so the connection can be reused
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[1024];
+                    while (in.read(buffer) >= 0) ;
+                } finally {
+                    in.close();
+                }
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == 429 || status >= 500;
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.nuuneoi.lib.contacttracer.upload;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encounter samples staged for upload as {@code peerId,timestampMs,rssi} lines, split into
+ * gzip-compressed chunks of at most {@link #CHUNK_SIZE} uncompressed bytes.
+ * <p>
+ * Chunks are staged once and then uploaded as is, so a chunk sent again after a lost
+ * acknowledgement is byte for byte the same and the server can deduplicate it by index or by
+ * content hash. Staged chunks are sealed like the rest of the contact data, see
+ * {@link ChunkCipher}.
+ */
+public class UploadBatch {
+
+    public static final int CHUNK_SIZE = 128 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FILE_SUFFIX = ".chunk";
+
+    private final File directory;
+    private final ChunkCipher cipher;
+
+    public UploadBatch(File directory, ChunkCipher cipher) {
+        this.directory = directory;
+        this.cipher = cipher;
+    }
+
+    /**
+     * Stages lines into chunk files. Call {@link #finish()} once every sample is added.
+     */
+    public class Writer {
+        private final ByteArrayOutputStream raw = new ByteArrayOutputStream(CHUNK_SIZE);
+        private final StringBuilder line = new StringBuilder(64);
+        private int chunkCount = 0;
+
+        Writer() {
+        }
+
+        public void addSample(String peerId, long timestamp, int rssi) throws IOException {
+            line.setLength(0);
+            appendEscaped(line, peerId);
+            line.append(',').append(timestamp).append(',').append(rssi).append('\n');
+            byte[] bytes = line.toString().getBytes(UTF_8);
+            if (raw.size() + bytes.length > CHUNK_SIZE)
+                writeChunk();
+            raw.write(bytes, 0, bytes.length);
+        }
+
+        /**
+         * @return the number of chunks staged
+         */
+        public int finish() throws IOException {
+            writeChunk();
+            return chunkCount;
+        }
+
+        private void writeChunk() throws IOException {
+            if (raw.size() == 0)
+                return;
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.size() / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            raw.writeTo(gzip);
+            gzip.close();
+            raw.reset();
+
+            byte[] stored;
+            try {
+                stored = cipher.seal(chunkCount, compressed.toByteArray(), 0, compressed.size());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot seal chunk " + chunkCount, e);
+            }
+            File file = fileOf(chunkCount);
+            File temporary = new File(directory, file.getName() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(stored);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file))
+                throw new IOException("Cannot stage chunk " + chunkCount);
+            chunkCount++;
+        }
+    }
+
+    public Writer newWriter() throws IOException {
+        delete();
+        if (!directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        return new Writer();
+    }
+
+    /**
+     * @return the gzip-compressed chunk, or null if it is missing or cannot be decrypted
+     */
+    public byte[] readChunk(int index) {
+        File file = fileOf(index);
+        byte[] stored = new byte[(int) file.length()];
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                int read = 0;
+                while (read < stored.length) {
+                    int n = in.read(stored, read, stored.length - read);
+                    if (n < 0)
+                        return null;
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+            return cipher.open(index, stored, 0, stored.length);
+        } catch (IOException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    public void delete() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    private File fileOf(int index) {
+        return new File(directory, index + FILE_SUFFIX);
+    }
+
+    // Keeps one sample per line and three fields per sample whatever the peer id holds
+    private static void appendEscaped(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '%' || c == '\n' || c == '\r')
+                out.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            else
+                out.append(c);
+        }
+    }
+}
@@ -2,10 +2,14 @@ package com.nuuneoi.lib.contacttracer.utils;
 
 import android.os.ParcelUuid;
 
+import java.util.UUID;
+
 public class Constants {
     // Custom UUID for our service
     // It is needed to be in 0000XXXX-0000-1000-8000-00805f9b34fb format
     public static ParcelUuid Service_UUID = ParcelUuid.fromString("000086e1-0000-1000-8000-00805f9b34fb");
+    // Readable characteristic of the same service holding the user id, for scanners that get no service data
+    public static UUID Id_Characteristic_UUID = UUID.fromString("000086e2-0000-1000-8000-00805f9b34fb");
 
     // Bluetooth max scan time in milliseconds
     public static final long SCAN_PERIOD = 15000;
@@ -18,4 +22,30 @@ public class Constants {
 
     // Interval for TracerService health check
     public static final int SERVICE_HEALTH_CHECK_INTERVAL = 5 * 60 * 1000;
+
+    // Interval for saving TracerService in-flight state
+    public static final long STATE_CHECKPOINT_INTERVAL = 30000;
+
+    // File in the app files dir holding the TracerService state checkpoint
+    public static final String STATE_CHECKPOINT_FILE = "tracer_state.ckpt";
+
+    // Directory in the app files dir holding per-peer RSSI timelines
+    public static final String TIMELINE_DIRECTORY = "timeline";
+
+    // Android Keystore alias of the key encrypting the timeline logs and the state checkpoint
+    public static final String STORAGE_KEY_ALIAS = "contact_tracer_storage";
+
+    // Background upload: staging directory in the app files dir, job period and first retry delay
+    public static final String UPLOAD_DIRECTORY = "upload";
+    public static final long UPLOAD_INTERVAL = 6 * 60 * 60 * 1000;
+    public static final long UPLOAD_INITIAL_BACKOFF = 60 * 1000;
+    // Runs a rejected batch is sent in before it is dropped, and skipped ranges remembered
+    public static final int UPLOAD_MAX_REJECTIONS = 3;
+    public static final int UPLOAD_MAX_SKIPPED_RANGES = 20;
+
+    // Opt-in raw scan recording: sealed trace directory in the app files dir, the copy in the
+    // clear exported from it, and the trace size
+    public static final String SCAN_TRACE_DIRECTORY = "scan_trace";
+    public static final String SCAN_TRACE_EXPORT_FILE = "scan_trace_export.chunks";
+    public static final int SCAN_TRACE_MAX_BYTES = 4 * 1024 * 1024;
 }
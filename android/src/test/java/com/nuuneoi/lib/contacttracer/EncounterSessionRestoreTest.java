@@ -0,0 +1,112 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Looper;
+
+import com.nuuneoi.lib.contacttracer.encounter.EncounterSessions;
+import com.nuuneoi.lib.contacttracer.service.TracerService;
+import com.nuuneoi.lib.contacttracer.utils.Constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowBluetoothLeScanner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * An encounter that spans a restart of TracerService keeps its start, restored from the
+ * checkpoint, rather than being split in two.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = ShadowKeystoreKeys.class,
+        instrumentedPackages = { "com.nuuneoi.lib.contacttracer.service", "com.nuuneoi.lib.contacttracer.crypto" })
+public class EncounterSessionRestoreTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Context context;
+    private ServiceController<TracerService> serviceController;
+    private ShadowLooper mainLooper;
+    private final List<Long> encounterStarts = new ArrayList<>();
+
+    private final BroadcastReceiver nearbyDeviceFoundReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            encounterStarts.add(intent.getLongExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_ENCOUNTER_START, -1));
+        }
+    };
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        ShadowBluetoothAdapter shadowAdapter = Shadow.extract(BluetoothAdapter.getDefaultAdapter());
+        shadowAdapter.setState(BluetoothAdapter.STATE_ON);
+        shadowAdapter.setEnabled(true);
+        shadowAdapter.setIsMultipleAdvertisementSupported(true);
+        context.registerReceiver(nearbyDeviceFoundReceiver, new IntentFilter(TracerService.NEARBY_DEVICE_FOUND_MESSAGE));
+        mainLooper = Shadow.extract(Looper.getMainLooper());
+    }
+
+    @After
+    public void tearDown() {
+        context.unregisterReceiver(nearbyDeviceFoundReceiver);
+        if (serviceController != null)
+            serviceController.destroy();
+    }
+
+    @Test
+    public void encounterKeepsItsStartAcrossARestart() {
+        serviceController = Robolectric.buildService(TracerService.class).create();
+        scanPeer();
+        long start = encounterStarts.get(0);
+        mainLooper.idleFor(1, TimeUnit.MINUTES);
+        scanPeer();
+        // Killed and started again, checkpointing on the way out
+        serviceController.destroy();
+        serviceController = Robolectric.buildService(TracerService.class).create();
+
+        mainLooper.idleFor(1, TimeUnit.MINUTES);
+        scanPeer();
+        assertEquals(3, encounterStarts.size());
+        assertEquals(start, (long) encounterStarts.get(1));
+        assertEquals(start, (long) encounterStarts.get(2));
+
+        // A gap longer than the session timeout starts a new encounter
+        mainLooper.idleFor(EncounterSessions.SESSION_TIMEOUT + 60 * 1000, TimeUnit.MILLISECONDS);
+        scanPeer();
+        assertEquals(start + 2 * 60 * 1000 + EncounterSessions.SESSION_TIMEOUT + 60 * 1000,
+                (long) encounterStarts.get(3));
+    }
+
+    private void scanPeer() {
+        ShadowBluetoothLeScanner scanner = Shadow.extract(BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner());
+        // Between scan windows no callback is registered; results still go to the last one
+        ScanCallback callback = null;
+        for (ScanCallback registered : scanner.getScanCallbacks())
+            callback = registered;
+        callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, TestScanResults.withServiceData(
+                TestScanResults.addressOf(1), Constants.Service_UUID.getUuid(), "PEER0001".getBytes(UTF_8), -60));
+        mainLooper.idle();
+    }
+}
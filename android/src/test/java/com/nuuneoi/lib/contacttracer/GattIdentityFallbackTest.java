@@ -0,0 +1,186 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Looper;
+
+import com.nuuneoi.lib.contacttracer.gatt.GattIdentityResolver;
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.ScanRateGovernor;
+import com.nuuneoi.lib.contacttracer.service.TracerService;
+import com.nuuneoi.lib.contacttracer.utils.Constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowBluetoothLeScanner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives TracerService's GATT fallback for devices advertising the service UUID only,
+ * against fake peers served by {@link ShadowPeerGatt}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = { ShadowPeerDevice.class, ShadowPeerGatt.class },
+        instrumentedPackages = { "com.nuuneoi.lib.contacttracer.service", "com.nuuneoi.lib.contacttracer.gatt" })
+public class GattIdentityFallbackTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Context context;
+    private ServiceController<TracerService> serviceController;
+    private ScanCallback callback;
+    private ShadowLooper mainLooper;
+    private final List<String> found = new ArrayList<>();
+
+    private final BroadcastReceiver nearbyDeviceFoundReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int peer = intent.getIntExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_PEER, PeerIdInterner.NO_PEER);
+            found.add(peer == PeerIdInterner.NO_PEER ? null : PeerIdInterner.getInstance().getString(peer));
+        }
+    };
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        ShadowBluetoothAdapter shadowAdapter = Shadow.extract(BluetoothAdapter.getDefaultAdapter());
+        shadowAdapter.setState(BluetoothAdapter.STATE_ON);
+        shadowAdapter.setEnabled(true);
+        shadowAdapter.setIsMultipleAdvertisementSupported(true);
+        context.registerReceiver(nearbyDeviceFoundReceiver, new IntentFilter(TracerService.NEARBY_DEVICE_FOUND_MESSAGE));
+
+        serviceController = Robolectric.buildService(TracerService.class).create();
+        ShadowBluetoothLeScanner scanner = Shadow.extract(BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner());
+        mainLooper = Shadow.extract(Looper.getMainLooper());
+        // The rate governor outlives the service, so after a few tests the first start is deferred
+        for (int i = 0; i < 2 * ScanRateGovernor.WINDOW / 1000 && scanner.getScanCallbacks().isEmpty(); i++)
+            mainLooper.idleFor(1, TimeUnit.SECONDS);
+        callback = scanner.getScanCallbacks().iterator().next();
+    }
+
+    @After
+    public void tearDown() {
+        context.unregisterReceiver(nearbyDeviceFoundReceiver);
+        serviceController.destroy();
+        ShadowPeerGatt.reset();
+    }
+
+    @Test
+    public void readsTheIdOfDevicesAdvertisingTheUuidOnly() {
+        String address = TestScanResults.addressOf(1);
+        serveIdentity(address, "PEERGATT");
+
+        scan(uuidOnly(address, null));
+        mainLooper.idle();
+        assertEquals(Arrays.asList("PEERGATT"), found);
+
+        // Cached from now on
+        scan(uuidOnly(address, null));
+        mainLooper.idle();
+        assertEquals(Arrays.asList("PEERGATT", "PEERGATT"), found);
+        assertEquals(1, ShadowPeerGatt.getConnectionCount());
+    }
+
+    @Test
+    public void reportsNamedDevicesOnlyByTheirIdOnceRead() {
+        String address = TestScanResults.addressOf(1);
+        serveIdentity(address, "PEERGATT");
+
+        // Not by name while the read is pending, which would count the device twice
+        scan(uuidOnly(address, "NAMED"));
+        scan(uuidOnly(address, "NAMED"));
+        mainLooper.idle();
+        assertEquals(Arrays.asList("PEERGATT"), found);
+    }
+
+    @Test
+    public void fallsBackToTheNameWhenTheResolverIsFull() {
+        // The reads only start once the main looper runs
+        int capacity = GattIdentityResolver.MAX_CONNECTIONS + GattIdentityResolver.MAX_QUEUED;
+        for (int i = 0; i < capacity; i++)
+            scan(uuidOnly(TestScanResults.addressOf(i), null));
+
+        String address = TestScanResults.addressOf(capacity);
+        serveIdentity(address, "PEERGATT");
+        scan(uuidOnly(address, "NAMED"));
+        scan(uuidOnly(TestScanResults.addressOf(capacity + 1), null));
+        mainLooper.idle();
+        // Not queued, so not read either
+        assertEquals(Arrays.asList("NAMED", null), found.subList(0, 2));
+        assertEquals(capacity, ShadowPeerGatt.getConnectionCount());
+        // The queued ones have no service, each is reported once its read failed
+        assertEquals(2 + capacity, found.size());
+        assertEquals(capacity, Collections.frequency(found.subList(2, found.size()), null));
+    }
+
+    @Test
+    public void fallsBackToTheNameOfDevicesWithoutTheService() {
+        String address = TestScanResults.addressOf(1);
+
+        scan(uuidOnly(address, "NAMED"));
+        mainLooper.idle();
+        scan(uuidOnly(address, "NAMED"));
+        mainLooper.idle();
+        assertEquals(Arrays.asList("NAMED", "NAMED"), found);
+        assertEquals(1, ShadowPeerGatt.getConnectionCount());
+    }
+
+    @Test
+    public void closesConnectionsThatFailBeforeConnectReturns() {
+        ShadowPeerGatt.setFailBeforeReturning(true);
+        scan(uuidOnly(TestScanResults.addressOf(1), null));
+        mainLooper.idle();
+
+        assertEquals(1, ShadowPeerGatt.getConnectionCount());
+        assertEquals(0, ShadowPeerGatt.getOpenCount());
+    }
+
+    @Test
+    public void readsTheIdOfIosDevicesAdvertisingInTheOverflowArea() {
+        String address = TestScanResults.addressOf(1);
+        serveIdentity(address, "PEERGATT");
+
+        scan(TestScanResults.withAppleOverflowArea(address, 37, -60));
+        mainLooper.idle();
+        assertEquals(Arrays.asList("PEERGATT"), found);
+        assertEquals(0, ShadowPeerGatt.getOpenCount());
+    }
+
+    private void serveIdentity(String address, String peerId) {
+        ShadowPeerGatt.serve(address, Constants.Service_UUID.getUuid(), Constants.Id_Characteristic_UUID,
+                peerId.getBytes(UTF_8));
+    }
+
+    private static ScanResult uuidOnly(String address, String name) {
+        ScanResult result = TestScanResults.withServiceUuidOnly(address, Constants.Service_UUID.getUuid(), -60);
+        return TestScanResults.fromRecord(address, name, result.getScanRecord().getBytes(), -60);
+    }
+
+    private void scan(ScanResult result) {
+        callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+    }
+}
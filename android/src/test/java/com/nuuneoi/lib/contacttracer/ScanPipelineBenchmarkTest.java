@@ -0,0 +1,171 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Looper;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReadableMap;
+import com.nuuneoi.lib.contacttracer.service.TracerService;
+import com.nuuneoi.lib.contacttracer.timeline.TimelineStore;
+import com.nuuneoi.lib.contacttracer.utils.Constants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowBluetoothLeAdvertiser;
+import org.robolectric.shadows.ShadowBluetoothLeScanner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency and throughput of the scan-to-JS path, from a ScanResult handed to the service's
+ * ScanCallback to the NearbyDeviceFound event ContactTracerModule emits.
+ * <p>
+ * The real TracerService runs against the shadowed BluetoothLeScanner and
+ * BluetoothLeAdvertiser, and the real module receives its broadcasts, so every stage the app
+ * has is measured: unpacking the result, decoding and interning, the encounter listeners and
+ * timeline, the broadcast and the event params. {@link ShadowKeystoreKeys} stands in for the
+ * Keystore, so the timeline and checkpoint run encrypted as on a device. Each result is
+ * delivered by running the main looper until idle, so its latency includes the broadcast hop.
+ * Percentiles are printed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = { ShadowArguments.class, ShadowReactContext.class, ShadowKeystoreKeys.class },
+        instrumentedPackages = { "com.facebook.react.bridge", "com.nuuneoi.lib.contacttracer.crypto" })
+public class ScanPipelineBenchmarkTest {
+
+    private static final int PEERS = 300;
+    private static final int WARMUP_RESULTS = 5000;
+    private static final int RESULTS = 20000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ServiceController<TracerService> serviceController;
+    private ContactTracerModule module;
+    private ScanCallback scanCallback;
+
+    private String[] peerIds;
+    private ScanResult[] results;
+
+    // Written by the emitter, which runs on this thread while the looper idles
+    private long injectedAt;
+    private int expectedPeer;
+    private int emitted;
+    private long[] latencies;
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        ShadowBluetoothAdapter shadowAdapter = Shadow.extract(adapter);
+        shadowAdapter.setState(BluetoothAdapter.STATE_ON);
+        shadowAdapter.setEnabled(true);
+        shadowAdapter.setIsMultipleAdvertisementSupported(true);
+
+        module = new ContactTracerModule(new ReactApplicationContext(RuntimeEnvironment.getApplication()));
+        module.addListener("NearbyDeviceFound");
+        ShadowReactContext.setEventListener(new ShadowReactContext.EventListener() {
+            @Override
+            public void onEvent(String eventName, Object params) {
+                if (!eventName.equals("NearbyDeviceFound"))
+                    return;
+                long latency = System.nanoTime() - injectedAt;
+                assertEquals(peerIds[expectedPeer], ((ReadableMap) params).getString("name"));
+                if (latencies != null)
+                    latencies[emitted] = latency;
+                emitted++;
+            }
+        });
+
+        serviceController = Robolectric.buildService(TracerService.class).create();
+
+        ShadowBluetoothLeAdvertiser advertiser = Shadow.extract(adapter.getBluetoothLeAdvertiser());
+        assertEquals(1, advertiser.getAdvertisementRequestCount());
+        ShadowBluetoothLeScanner scanner = Shadow.extract(adapter.getBluetoothLeScanner());
+        assertEquals(1, scanner.getScanCallbacks().size());
+        scanCallback = scanner.getScanCallbacks().iterator().next();
+
+        peerIds = new String[PEERS];
+        results = new ScanResult[PEERS];
+        Random random = new Random(42);
+        for (int i = 0; i < PEERS; i++) {
+            peerIds[i] = String.format(Locale.US, "PEER%08d", i);
+            results[i] = TestScanResults.withServiceData(TestScanResults.addressOf(i),
+                    Constants.Service_UUID.getUuid(), peerIds[i].getBytes(UTF_8), -40 - random.nextInt(60));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        ShadowReactContext.setEventListener(null);
+        serviceController.destroy();
+        module.onCatalystInstanceDestroy();
+    }
+
+    @Test
+    public void scanResultToEvent() {
+        // Warm up so the JIT does not dominate the measurement
+        inject(WARMUP_RESULTS, new Random(1));
+        assertEquals(WARMUP_RESULTS, emitted);
+
+        emitted = 0;
+        latencies = new long[RESULTS];
+        long start = System.nanoTime();
+        inject(RESULTS, new Random(2));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        assertEquals(RESULTS, emitted);
+        long[] sorted = Arrays.copyOf(latencies, emitted);
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.US, "Scan pipeline: %d results from %d peers, %.0f results/s, "
+                        + "latency p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                RESULTS, PEERS, RESULTS / seconds,
+                percentile(sorted, 50) / 1000.0, percentile(sorted, 90) / 1000.0,
+                percentile(sorted, 99) / 1000.0, percentile(sorted, 99.9) / 1000.0,
+                percentile(sorted, 100) / 1000.0));
+        assertTrue(percentile(sorted, 50) > 0);
+
+        // The timeline was on the measured path, encrypted with the test key
+        TimelineStore timelineStore = TimelineStore.getInstance(new File(RuntimeEnvironment.getApplication().getFilesDir(),
+                Constants.TIMELINE_DIRECTORY), ShadowKeystoreKeys.KEY);
+        assertTrue(timelineStore.getTimeline(peerIds[0], 0, Long.MAX_VALUE).size() > 0);
+    }
+
+    private void inject(int count, Random random) {
+        ShadowLooper mainLooper = Shadow.extract(Looper.getMainLooper());
+        for (int i = 0; i < count; i++) {
+            expectedPeer = random.nextInt(PEERS);
+            ScanResult result = results[expectedPeer];
+            assertNotNull(result.getScanRecord());
+            injectedAt = System.nanoTime();
+            scanCallback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+            mainLooper.idle();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,205 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Looper;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+import com.nuuneoi.lib.contacttracer.scan.PeerIdDecoderRegistry;
+import com.nuuneoi.lib.contacttracer.scan.ScanTraceRecorder;
+import com.nuuneoi.lib.contacttracer.scan.ScanTraceReplayer;
+import com.nuuneoi.lib.contacttracer.service.TracerService;
+import com.nuuneoi.lib.contacttracer.utils.Constants;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothAdapter;
+import org.robolectric.shadows.ShadowBluetoothLeScanner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records scan results through the real TracerService and replays the trace into a fresh one,
+ * which must report the same devices in the same order.
+ * <p>
+ * A trace exported from a device (see exportScanTrace) is replayed with
+ * {@code -DscanTrace=<file>}, printing what the app made of it; add
+ * {@code -DscanTrace.speed=1} to replay it in real time, or 10 for ten times faster.
+ * <p>
+ * The app's classes are instrumented so that their System.currentTimeMillis() follows
+ * Robolectric's clock, like the handler timers do.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = ShadowKeystoreKeys.class,
+        instrumentedPackages = { "com.nuuneoi.lib.contacttracer.service", "com.nuuneoi.lib.contacttracer.gatt",
+                "com.nuuneoi.lib.contacttracer.timeline", "com.nuuneoi.lib.contacttracer.crypto" })
+public class ScanTraceReplayTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final UUID OTHER_SERVICE_UUID = UUID.fromString("0000feaa-0000-1000-8000-00805f9b34fb");
+
+    private Context context;
+    private ServiceController<TracerService> serviceController;
+    private final List<String> found = new ArrayList<>();
+
+    private final BroadcastReceiver nearbyDeviceFoundReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int peer = intent.getIntExtra(TracerService.NEARBY_DEVICE_FOUND_EXTRA_PEER, PeerIdInterner.NO_PEER);
+            found.add(peer == PeerIdInterner.NO_PEER ? null : PeerIdInterner.getInstance().getString(peer));
+        }
+    };
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        ShadowBluetoothAdapter shadowAdapter = Shadow.extract(BluetoothAdapter.getDefaultAdapter());
+        shadowAdapter.setState(BluetoothAdapter.STATE_ON);
+        shadowAdapter.setEnabled(true);
+        shadowAdapter.setIsMultipleAdvertisementSupported(true);
+        context.registerReceiver(nearbyDeviceFoundReceiver, new IntentFilter(TracerService.NEARBY_DEVICE_FOUND_MESSAGE));
+    }
+
+    @After
+    public void tearDown() {
+        context.unregisterReceiver(nearbyDeviceFoundReceiver);
+        TracerService.setRecordingEnabled(context, false);
+        if (serviceController != null)
+            serviceController.destroy();
+    }
+
+    @Test
+    public void replayReportsWhatWasRecorded() throws Exception {
+        File trace = TracerService.getScanTraceDirectory(context);
+        File[] files = trace.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        TracerService.setRecordingEnabled(context, true);
+        serviceController = Robolectric.buildService(TracerService.class).create();
+
+        ScanCallback callback = scanCallback();
+        ShadowLooper mainLooper = Shadow.extract(Looper.getMainLooper());
+        List<ScanResult> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String address = TestScanResults.addressOf(i);
+            String peerId = String.format(Locale.US, "PEER%04d", i);
+            switch (i % 4) {
+                case 0:
+                    results.add(TestScanResults.withServiceData(address, Constants.Service_UUID.getUuid(),
+                            peerId.getBytes(UTF_8), -50 - i));
+                    break;
+                case 1:
+                    // No decoder for this UUID, so the device name is used
+                    results.add(TestScanResults.fromRecord(address, peerId,
+                            TestScanResults.withServiceData(address, OTHER_SERVICE_UUID, new byte[] { 1, 2, 3 }, 0)
+                                    .getScanRecord().getBytes(), -50 - i));
+                    break;
+                case 2:
+                    // With the tx power API 26 reports
+                    results.add(TestScanResults.fromRecord(address, peerId,
+                            TestScanResults.withName(address, peerId, 0).getScanRecord().getBytes(), -50 - i, -10 - i));
+                    break;
+                default:
+                    // UUID only, resolved over GATT
+                    results.add(TestScanResults.withServiceUuidOnly(address, Constants.Service_UUID.getUuid(), -50 - i));
+                    break;
+            }
+        }
+        for (int round = 0; round < 3; round++) {
+            for (ScanResult result : results) {
+                callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+                mainLooper.idleFor(500, TimeUnit.MILLISECONDS);
+            }
+        }
+        List<String> recorded = new ArrayList<>(found);
+        assertTrue(recorded.contains("PEER0000"));
+        assertTrue(recorded.contains("PEER0001"));
+        assertTrue(recorded.contains("PEER0002"));
+
+        serviceController.destroy();
+        serviceController = null;
+        TracerService.setRecordingEnabled(context, false);
+
+        // Sealed on disk, and replayed from the export taken off the device
+        for (File file : trace.listFiles())
+            assertFalse(new String(Files.readAllBytes(file.toPath()), UTF_8).contains("PEER0001"));
+        File export = TracerService.getScanTraceExportFile(context);
+        ScanTraceRecorder.export(trace, ShadowKeystoreKeys.KEY, export);
+        ScanTraceReplayer replayer = new ScanTraceReplayer(export, null);
+        // Every result, including those that went to the GATT fallback
+        assertEquals(3 * results.size(), replayer.getRecordCount());
+        ScanTraceReplayer.Record record = new ScanTraceReplayer.Record();
+        for (int i = 0; i < results.size(); i++) {
+            replayer.read(i, record);
+            assertEquals(results.get(i).getRssi(), record.rssi);
+            assertEquals(results.get(i).getTxPower(), record.txPower);
+        }
+
+        found.clear();
+        serviceController = Robolectric.buildService(TracerService.class).create();
+        replayer.replay(scanner());
+        assertEquals(recorded, found);
+    }
+
+    @Test
+    public void replayFieldTrace() throws Exception {
+        String path = System.getProperty("scanTrace");
+        Assume.assumeTrue("No -DscanTrace given", path != null);
+
+        ScanTraceReplayer replayer = new ScanTraceReplayer(new File(path), null);
+        serviceController = Robolectric.buildService(TracerService.class).create();
+        long startedAt = System.nanoTime();
+        long replayed = replayer.replay(scanner(), Double.parseDouble(System.getProperty("scanTrace.speed", "0")));
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        int unidentified = 0;
+        for (String name : found) {
+            if (name == null)
+                unidentified++;
+        }
+        System.out.println(String.format(Locale.US, "replayed=%d found=%d unidentified=%d peers=%d in %.2fs",
+                replayed, found.size(), unidentified, PeerIdInterner.getInstance().size(), seconds));
+        for (PeerIdDecoderRegistry.Entry entry : PeerIdDecoderRegistry.getInstance().getEntries())
+            System.out.println(String.format(Locale.US, "  %s hits=%d failures=%d",
+                    entry.decoder.getName(), entry.hits.get(), entry.failures.get()));
+    }
+
+    private ShadowBluetoothLeScanner scanner() {
+        return Shadow.extract(BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner());
+    }
+
+    private ScanCallback scanCallback() {
+        ShadowBluetoothLeScanner scanner = scanner();
+        assertEquals(1, scanner.getScanCallbacks().size());
+        return scanner.getScanCallbacks().iterator().next();
+    }
+}
@@ -0,0 +1,26 @@
+package com.nuuneoi.lib.contacttracer;
+
+import com.nuuneoi.lib.contacttracer.crypto.KeystoreKeys;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A fixed AES key instead of the Android Keystore, which Robolectric does not have, so the
+ * encrypted timeline and checkpoint run in tests. Needs the crypto package instrumented.
+ */
+@Implements(KeystoreKeys.class)
+public class ShadowKeystoreKeys {
+
+    public static final SecretKey KEY = new SecretKeySpec(new byte[] {
+            0x3c, 0x0a, 0x5f, 0x11, 0x72, 0x2e, 0x48, 0x09, 0x61, 0x1d, 0x37, 0x55, 0x0c, 0x6b, 0x24, 0x40,
+            0x19, 0x7e, 0x03, 0x52, 0x2a, 0x66, 0x0f, 0x31, 0x4d, 0x18, 0x70, 0x27, 0x5a, 0x06, 0x3e, 0x13 }, "AES");
+
+    @Implementation
+    protected static SecretKey getOrCreateKey(String alias) {
+        return KEY;
+    }
+}
@@ -0,0 +1,38 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+import android.os.Build;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+/**
+ * A remote device whose GATT connections are served by {@link ShadowPeerGatt}; use both.
+ */
+@Implements(BluetoothDevice.class)
+public class ShadowPeerDevice extends ShadowBluetoothDevice {
+
+    @Implementation
+    @Override
+    protected BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+        return attach(super.connectGatt(context, autoConnect, callback), callback);
+    }
+
+    @Implementation(minSdk = Build.VERSION_CODES.M)
+    @Override
+    protected BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback,
+                                        int transport) {
+        return attach(super.connectGatt(context, autoConnect, callback, transport), callback);
+    }
+
+    private static BluetoothGatt attach(BluetoothGatt gatt, BluetoothGattCallback callback) {
+        ShadowPeerGatt shadowGatt = Shadow.extract(gatt);
+        shadowGatt.connect(callback);
+        return gatt;
+    }
+}
@@ -0,0 +1,153 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.RealObject;
+import org.robolectric.annotation.Resetter;
+import org.robolectric.shadows.ShadowBluetoothGatt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A GATT client connected to a fake peer, which serves an id characteristic if one was given
+ * with {@link #serve} for its address. Devices serving nothing fail to connect. Callbacks are
+ * posted to the main looper, one step at a time like the radio would deliver them.
+ */
+@Implements(BluetoothGatt.class)
+public class ShadowPeerGatt extends ShadowBluetoothGatt {
+
+    // Status Android reports for most connection failures
+    private static final int GATT_ERROR = 133;
+
+    private static class Served {
+        final UUID serviceUuid;
+        final UUID characteristicUuid;
+        final byte[] id;
+
+        Served(UUID serviceUuid, UUID characteristicUuid, byte[] id) {
+            this.serviceUuid = serviceUuid;
+            this.characteristicUuid = characteristicUuid;
+            this.id = id;
+        }
+    }
+
+    private static final Map<String, Served> served = new HashMap<>();
+    private static int connectionCount = 0;
+    private static int openCount = 0;
+    private static boolean failBeforeReturning = false;
+
+    @RealObject
+    private BluetoothGatt realGatt;
+    private BluetoothGattCallback callback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    public static void serve(String address, UUID serviceUuid, UUID characteristicUuid, byte[] id) {
+        served.put(address, new Served(serviceUuid, characteristicUuid, id));
+    }
+
+    public static int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Connections not closed yet.
+     */
+    public static int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Fails connections to devices serving nothing from within connectGatt, before it returns,
+     * as some stacks do when the radio is busy.
+     */
+    public static void setFailBeforeReturning(boolean fail) {
+        failBeforeReturning = fail;
+    }
+
+    @Resetter
+    public static void reset() {
+        served.clear();
+        connectionCount = 0;
+        openCount = 0;
+        failBeforeReturning = false;
+    }
+
+    void connect(BluetoothGattCallback callback) {
+        this.callback = callback;
+        connectionCount++;
+        openCount++;
+        final boolean reachable = served() != null;
+        if (!reachable && failBeforeReturning) {
+            callback.onConnectionStateChange(realGatt, GATT_ERROR, BluetoothProfile.STATE_DISCONNECTED);
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (reachable)
+                    ShadowPeerGatt.this.callback.onConnectionStateChange(realGatt, BluetoothGatt.GATT_SUCCESS,
+                            BluetoothProfile.STATE_CONNECTED);
+                else
+                    ShadowPeerGatt.this.callback.onConnectionStateChange(realGatt, GATT_ERROR,
+                            BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    @Implementation
+    protected boolean discoverServices() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onServicesDiscovered(realGatt, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Implementation
+    protected BluetoothGattService getService(UUID uuid) {
+        Served served = served();
+        if (served == null || !served.serviceUuid.equals(uuid))
+            return null;
+        BluetoothGattService service = new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        service.addCharacteristic(new BluetoothGattCharacteristic(served.characteristicUuid,
+                BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+        return service;
+    }
+
+    @Implementation
+    protected boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        characteristic.setValue(served().id);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onCharacteristicRead(realGatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    @Implementation
+    protected void disconnect() {
+    }
+
+    @Implementation
+    protected void close() {
+        openCount--;
+    }
+
+    private Served served() {
+        return served.get(realGatt.getDevice().getAddress());
+    }
+}
@@ -0,0 +1,69 @@
+package com.nuuneoi.lib.contacttracer;
+
+import com.facebook.react.bridge.JavaScriptModule;
+import com.facebook.react.bridge.ReactContext;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.Resetter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A context with an active catalyst instance whose JS modules hand every call to
+ * {@link EventListener}, so events emitted by a module can be checked without a JS runtime.
+ */
+@Implements(ReactContext.class)
+public class ShadowReactContext {
+
+    public interface EventListener {
+        void onEvent(String eventName, Object params);
+    }
+
+    private static EventListener eventListener;
+    private static final Map<Class<?>, Object> jsModules = new HashMap<>();
+
+    public static void setEventListener(EventListener listener) {
+        eventListener = listener;
+    }
+
+    @Resetter
+    public static void reset() {
+        eventListener = null;
+        jsModules.clear();
+    }
+
+    @Implementation
+    protected boolean hasActiveCatalystInstance() {
+        return true;
+    }
+
+    @Implementation
+    protected <T extends JavaScriptModule> T getJSModule(final Class<T> jsInterface) {
+        Object module = jsModules.get(jsInterface);
+        if (module == null) {
+            module = Proxy.newProxyInstance(jsInterface.getClassLoader(), new Class<?>[] { jsInterface },
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("equals"))
+                                return proxy == args[0];
+                            if (method.getName().equals("hashCode"))
+                                return System.identityHashCode(proxy);
+                            if (method.getName().equals("toString"))
+                                return jsInterface.getSimpleName();
+                            EventListener listener = eventListener;
+                            if (listener != null && args != null && args.length == 2)
+                                listener.onEvent((String) args[0], args[1]);
+                            return null;
+                        }
+                    });
+            jsModules.put(jsInterface, module);
+        }
+        return jsInterface.cast(module);
+    }
+}
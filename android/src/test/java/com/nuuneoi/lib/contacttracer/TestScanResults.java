@@ -0,0 +1,130 @@
+package com.nuuneoi.lib.contacttracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.SystemClock;
+
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+import org.robolectric.util.ReflectionHelpers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Builds ScanResults from raw advertisement bytes, parsed by the platform like received ones.
+ */
+public class TestScanResults {
+
+    private static final int TYPE_FLAGS = 0x01;
+    private static final int TYPE_SERVICE_UUIDS_16_BIT = 0x03;
+    private static final int TYPE_LOCAL_NAME = 0x09;
+    private static final int TYPE_SERVICE_DATA_16_BIT = 0x16;
+    private static final int TYPE_MANUFACTURER_DATA = 0xff;
+    // ScanResult's own masks are private
+    private static final int EVENT_TYPE_LEGACY_CONNECTABLE = 0x10 | 0x01;
+
+    /**
+     * A result advertising the 16-bit service UUID with the payload as its service data.
+     */
+    public static ScanResult withServiceData(String address, UUID serviceUuid, byte[] payload, int rssi) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        appendFlags(record);
+        int uuid16 = shortUuidOf(serviceUuid);
+        appendField(record, TYPE_SERVICE_UUIDS_16_BIT, new byte[] { (byte) uuid16, (byte) (uuid16 >> 8) });
+        byte[] serviceData = new byte[2 + payload.length];
+        serviceData[0] = (byte) uuid16;
+        serviceData[1] = (byte) (uuid16 >> 8);
+        System.arraycopy(payload, 0, serviceData, 2, payload.length);
+        appendField(record, TYPE_SERVICE_DATA_16_BIT, serviceData);
+        return fromRecord(address, null, record.toByteArray(), rssi);
+    }
+
+    /**
+     * A result advertising only the 16-bit service UUID, like iOS in the background.
+     */
+    public static ScanResult withServiceUuidOnly(String address, UUID serviceUuid, int rssi) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        appendFlags(record);
+        int uuid16 = shortUuidOf(serviceUuid);
+        appendField(record, TYPE_SERVICE_UUIDS_16_BIT, new byte[] { (byte) uuid16, (byte) (uuid16 >> 8) });
+        return fromRecord(address, null, record.toByteArray(), rssi);
+    }
+
+    /**
+     * A result with only Apple's overflow area, where iOS apps in the background advertise
+     * their service UUIDs, with the given bit of its 128-bit mask set.
+     */
+    public static ScanResult withAppleOverflowArea(String address, int bit, int rssi) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        appendFlags(record);
+        byte[] data = new byte[2 + 1 + 16];
+        data[0] = 0x4c; // Apple, little endian
+        data[1] = 0x00;
+        data[2] = 0x01; // Overflow area
+        data[3 + bit / 8] = (byte) (0x80 >>> (bit % 8));
+        appendField(record, TYPE_MANUFACTURER_DATA, data);
+        return fromRecord(address, null, record.toByteArray(), rssi);
+    }
+
+    /**
+     * A result with no service data, from a device known by the given name (null for none).
+     */
+    public static ScanResult withName(String address, String name, int rssi) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        appendFlags(record);
+        if (name != null)
+            appendField(record, TYPE_LOCAL_NAME, name.getBytes(Charset.forName("UTF-8")));
+        return fromRecord(address, name, record.toByteArray(), rssi);
+    }
+
+    /**
+     * @param record raw advertisement as returned by ScanRecord.getBytes()
+     */
+    public static ScanResult fromRecord(String address, String deviceName, byte[] record, int rssi) {
+        return fromRecord(address, deviceName, record, rssi, ScanResult.TX_POWER_NOT_PRESENT);
+    }
+
+    /**
+     * @param txPower advertised tx power in dBm, or ScanResult.TX_POWER_NOT_PRESENT
+     */
+    public static ScanResult fromRecord(String address, String deviceName, byte[] record, int rssi, int txPower) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        if (deviceName != null) {
+            ShadowBluetoothDevice shadowDevice = Shadow.extract(device);
+            shadowDevice.setName(deviceName);
+        }
+        // parseFromBytes is hidden API
+        ScanRecord scanRecord = ReflectionHelpers.callStaticMethod(ScanRecord.class, "parseFromBytes",
+                ReflectionHelpers.ClassParameter.from(byte[].class, record));
+        // A legacy connectable advertisement on the 1M PHY, as the API 26 fields describe it
+        return new ScanResult(device, EVENT_TYPE_LEGACY_CONNECTABLE,
+                BluetoothDevice.PHY_LE_1M, ScanResult.PHY_UNUSED, ScanResult.SID_NOT_PRESENT, txPower, rssi,
+                ScanResult.PERIODIC_INTERVAL_NOT_PRESENT, scanRecord, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * A device address derived from an index, e.g. one per simulated peer.
+     */
+    public static String addressOf(int index) {
+        return String.format("02:00:00:%02X:%02X:%02X", (index >> 16) & 0xff, (index >> 8) & 0xff, index & 0xff);
+    }
+
+    private static int shortUuidOf(UUID uuid) {
+        return (int) (uuid.getMostSignificantBits() >>> 32) & 0xffff;
+    }
+
+    private static void appendFlags(ByteArrayOutputStream record) {
+        // LE general discoverable, BR/EDR not supported
+        appendField(record, TYPE_FLAGS, new byte[] { 0x06 });
+    }
+
+    private static void appendField(ByteArrayOutputStream record, int type, byte[] data) {
+        record.write(data.length + 1);
+        record.write(type);
+        record.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,173 @@
+package com.nuuneoi.lib.contacttracer.crypto;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encrypted versus plaintext throughput of {@link SealedChunkLog}, on the JVM with a
+ * {@link SecretKeySpec} standing in for the Keystore key.
+ * <p>
+ * For each mode it appends timeline-sized records and reports the time the appending thread
+ * spends per record (what the scan path pays), the end-to-end write rate including sealing
+ * and disk, then random single-record reads from a reopened log and a full sequential scan.
+ * Every record read must come back as written. The sizes can be changed with
+ * {@code -DchunkBenchmark.records}, {@code .recordSize} and {@code .randomReads}.
+ */
+public class ChunkCryptoBenchmarkTest {
+
+    private static final int RECORDS = Integer.getInteger("chunkBenchmark.records", 50000);
+    private static final int RECORD_SIZE = Integer.getInteger("chunkBenchmark.recordSize", 190);
+    private static final int RANDOM_READS = Integer.getInteger("chunkBenchmark.randomReads", 5000);
+
+    private static class Result {
+        final String mode;
+        final double appendNanosPerRecord;
+        final double writeMegabytesPerSecond;
+        final double randomReadsPerSecond;
+        final double scanMegabytesPerSecond;
+        final long scannedBytes;
+        final long fileBytes;
+        final boolean plaintextOnDisk;
+
+        Result(String mode, double appendNanosPerRecord, double writeMegabytesPerSecond,
+               double randomReadsPerSecond, double scanMegabytesPerSecond, long scannedBytes, long fileBytes,
+               boolean plaintextOnDisk) {
+            this.mode = mode;
+            this.appendNanosPerRecord = appendNanosPerRecord;
+            this.writeMegabytesPerSecond = writeMegabytesPerSecond;
+            this.randomReadsPerSecond = randomReadsPerSecond;
+            this.scanMegabytesPerSecond = scanMegabytesPerSecond;
+            this.scannedBytes = scannedBytes;
+            this.fileBytes = fileBytes;
+            this.plaintextOnDisk = plaintextOnDisk;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%-9s append %6.0f ns/record, write %7.1f MB/s, random read %9.0f records/s, scan %7.1f MB/s, file %d bytes",
+                    mode, appendNanosPerRecord, writeMegabytesPerSecond, randomReadsPerSecond,
+                    scanMegabytesPerSecond, fileBytes);
+        }
+    }
+
+    @Test
+    public void sealedLogThroughput() throws IOException {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+
+        // Warm up so the JIT does not dominate the measurement
+        run("plaintext", null, RECORDS / 4, RECORD_SIZE, RANDOM_READS / 4);
+        run("aes-gcm", key, RECORDS / 4, RECORD_SIZE, RANDOM_READS / 4);
+
+        Result plaintext = run("plaintext", null, RECORDS, RECORD_SIZE, RANDOM_READS);
+        Result sealed = run("aes-gcm", key, RECORDS, RECORD_SIZE, RANDOM_READS);
+        System.out.println(plaintext);
+        System.out.println(sealed);
+
+        long appended = (long) RECORDS * RECORD_SIZE;
+        assertEquals(appended, plaintext.scannedBytes);
+        assertEquals(appended, sealed.scannedBytes);
+        assertTrue(plaintext.plaintextOnDisk);
+        assertFalse(sealed.plaintextOnDisk);
+    }
+
+    private static Result run(String mode, SecretKey key, int records, int recordSize, int randomReads)
+            throws IOException {
+        File file = File.createTempFile("chunk-benchmark", ".chunks");
+        ExecutorService executor = SealedChunkLog.newSealingExecutor();
+        try {
+            ChunkCipher cipher = new ChunkCipher(key);
+            Random random = new Random(42);
+            byte[] record = new byte[recordSize];
+            random.nextBytes(record);
+            long[] positions = new long[records];
+
+            SealedChunkLog log = new SealedChunkLog(file, cipher, executor);
+            log.open();
+            long start = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                record[0] = (byte) i;
+                positions[i] = log.append(record, 0, recordSize, i);
+            }
+            long appended = System.nanoTime();
+            log.sync();
+            long written = System.nanoTime();
+
+            // Reopened, so every chunk comes from disk
+            SealedChunkLog reopened = new SealedChunkLog(file, cipher, executor);
+            reopened.open();
+            long readStart = System.nanoTime();
+            for (int i = 0; i < randomReads; i++) {
+                int index = random.nextInt(records);
+                byte[] read = reopened.read(positions[index], recordSize);
+                assertNotNull("Record " + index + " did not read back", read);
+                record[0] = (byte) index;
+                assertArrayEquals("Record " + index + " did not read back", record, read);
+            }
+            long readEnd = System.nanoTime();
+
+            final long[] scanned = new long[1];
+            reopened.scan(new SealedChunkLog.ChunkVisitor() {
+                @Override
+                public void onChunk(long start, byte[] plain, int length) {
+                    scanned[0] += length;
+                }
+            });
+            long scanEnd = System.nanoTime();
+
+            double megabytes = (double) records * recordSize / (1024 * 1024);
+            return new Result(mode,
+                    (double) (appended - start) / records,
+                    megabytes / ((written - start) / 1e9),
+                    randomReads / ((readEnd - readStart) / 1e9),
+                    scanned[0] / (1024.0 * 1024) / ((scanEnd - readEnd) / 1e9),
+                    scanned[0],
+                    file.length(),
+                    contains(file, record, 1));
+        } finally {
+            executor.shutdown();
+            file.delete();
+        }
+    }
+
+    /**
+     * Whether the file holds the record's bytes from offset on, i.e. it was written as is.
+     */
+    private static boolean contains(File file, byte[] record, int offset) throws IOException {
+        byte[] bytes;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        int length = record.length - offset;
+        for (int i = 0; i + length <= bytes.length; i++) {
+            int j = 0;
+            while (j < length && bytes[i + j] == record[offset + j])
+                j++;
+            if (j == length)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,158 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExposureRiskScorerTest {
+
+    private static final long MINUTE = 60 * 1000;
+
+    private PeerIdInterner peerIdInterner;
+    private ExposureRiskScorer scorer;
+    private int peer;
+    private long morning;
+
+    @Before
+    public void setUp() {
+        peerIdInterner = new PeerIdInterner();
+        scorer = new ExposureRiskScorer(peerIdInterner);
+        peer = peerIdInterner.intern("peer-a");
+
+        // Far enough from midnight that no test crosses into the next day
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2020, Calendar.APRIL, 1, 8, 0, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        morning = calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void smoothsRssiWithinTheSampleGap() {
+        scorer.onNearbyDeviceFound(peer, -80, morning);
+        assertEquals(-80, scorer.getSmoothedRssi(peer));
+
+        scorer.onNearbyDeviceFound(peer, -50, morning + 1000);
+        assertEquals(-71, scorer.getSmoothedRssi(peer));
+    }
+
+    @Test
+    public void restartsSmoothingAfterAGap() {
+        scorer.onNearbyDeviceFound(peer, -80, morning);
+        scorer.onNearbyDeviceFound(peer, -50, morning + DailyRollups.MAX_SAMPLE_GAP + 1);
+        assertEquals(-50, scorer.getSmoothedRssi(peer));
+    }
+
+    @Test
+    public void classifiesProximityOnTheBucketEdges() {
+        assertEquals(ExposureRiskScorer.PROXIMITY_IMMEDIATE, ExposureRiskScorer.proximityOf(-55));
+        assertEquals(ExposureRiskScorer.PROXIMITY_NEAR, ExposureRiskScorer.proximityOf(-55.5f));
+        assertEquals(ExposureRiskScorer.PROXIMITY_NEAR, ExposureRiskScorer.proximityOf(-70));
+        assertEquals(ExposureRiskScorer.PROXIMITY_FAR, ExposureRiskScorer.proximityOf(-70.5f));
+    }
+
+    @Test
+    public void alertsOnceWhenImmediateExposureReachesTheThreshold() {
+        RecordingListener listener = new RecordingListener();
+        scorer.setListener(listener);
+
+        // The first sample only starts the clock, each later one adds a minute
+        int minutes = (int) ExposureRiskScorer.RISK_THRESHOLD_MINUTES;
+        for (int i = 0; i < minutes; i++)
+            scorer.onNearbyDeviceFound(peer, -50, morning + i * MINUTE);
+        assertEquals(0, listener.calls);
+
+        scorer.onNearbyDeviceFound(peer, -50, morning + minutes * MINUTE);
+        assertEquals(1, listener.calls);
+        assertEquals(ExposureRiskScorer.PROXIMITY_IMMEDIATE, listener.proximity);
+        assertEquals(ExposureRiskScorer.RISK_THRESHOLD_MINUTES, listener.exposureMinutes, 0.001f);
+
+        scorer.onNearbyDeviceFound(peer, -50, morning + (minutes + 1) * MINUTE);
+        assertEquals(1, listener.calls);
+    }
+
+    @Test
+    public void weighsFarExposureATenth() {
+        RecordingListener listener = new RecordingListener();
+        scorer.setListener(listener);
+
+        int minutes = (int) ExposureRiskScorer.RISK_THRESHOLD_MINUTES * 10;
+        for (int i = 0; i < minutes; i++)
+            scorer.onNearbyDeviceFound(peer, -90, morning + i * MINUTE);
+        assertEquals(0, listener.calls);
+
+        // Float rounding may need one more minute
+        scorer.onNearbyDeviceFound(peer, -90, morning + minutes * MINUTE);
+        scorer.onNearbyDeviceFound(peer, -90, morning + (minutes + 1) * MINUTE);
+        assertEquals(1, listener.calls);
+        assertEquals(ExposureRiskScorer.PROXIMITY_FAR, listener.proximity);
+    }
+
+    @Test
+    public void keepsAlertsPendingUntilDelivered() {
+        raiseAlert(peer);
+        List<ExposureRiskScorer.Alert> alerts = scorer.getPendingAlerts();
+        assertEquals(1, alerts.size());
+        assertEquals(peer, alerts.get(0).peer);
+
+        scorer.markDelivered(peer);
+        assertTrue(scorer.getPendingAlerts().isEmpty());
+    }
+
+    @Test
+    public void restoresPendingAlertsAndExposureFromACheckpoint() {
+        raiseAlert(peer);
+        int other = peerIdInterner.intern("peer-b");
+        scorer.onNearbyDeviceFound(other, -60, morning);
+        scorer.onNearbyDeviceFound(other, -60, morning + MINUTE);
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        scorer.write(buffer);
+        buffer.flip();
+
+        PeerIdInterner restoredInterner = new PeerIdInterner();
+        ExposureRiskScorer restored = new ExposureRiskScorer(restoredInterner);
+        assertFalse(restored.isLoaded());
+        restored.read(buffer);
+        assertTrue(restored.isLoaded());
+
+        int restoredPeer = restoredInterner.intern("peer-a");
+        List<ExposureRiskScorer.Alert> alerts = restored.getPendingAlerts();
+        assertEquals(1, alerts.size());
+        assertEquals(restoredPeer, alerts.get(0).peer);
+        assertEquals(-60, restored.getSmoothedRssi(restoredInterner.intern("peer-b")));
+
+        // Already alerted today, so no second alert after the restore
+        RecordingListener listener = new RecordingListener();
+        restored.setListener(listener);
+        long last = morning + (long) ExposureRiskScorer.RISK_THRESHOLD_MINUTES * MINUTE;
+        restored.onNearbyDeviceFound(restoredPeer, -50, last + MINUTE);
+        assertEquals(0, listener.calls);
+    }
+
+    private void raiseAlert(int peer) {
+        for (int i = 0; i <= ExposureRiskScorer.RISK_THRESHOLD_MINUTES; i++)
+            scorer.onNearbyDeviceFound(peer, -50, morning + i * MINUTE);
+    }
+
+    private static class RecordingListener implements ExposureRiskScorer.Listener {
+        int calls;
+        float exposureMinutes;
+        int proximity;
+
+        @Override
+        public void onRiskThresholdCrossed(int peer, float exposureMinutes, int proximity, long timestamp) {
+            calls++;
+            this.exposureMinutes = exposureMinutes;
+            this.proximity = proximity;
+        }
+    }
+}
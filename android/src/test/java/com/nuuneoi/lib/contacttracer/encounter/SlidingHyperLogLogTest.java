@@ -0,0 +1,98 @@
+package com.nuuneoi.lib.contacttracer.encounter;
+
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+public class SlidingHyperLogLogTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Standard error of precision 8 is 1.04 / sqrt(256) = 6.5%, allow three times that
+    private static final double RELATIVE_BOUND = 0.2;
+
+    @Test
+    public void estimatesSmallCountsClosely() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        addDistinct(sketch, 0, 20, 0);
+        assertEquals(20, sketch.estimate(15 * MINUTE, 0), 2);
+    }
+
+    @Test
+    public void estimatesFiveThousandPeers() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        addDistinct(sketch, 0, 5000, 0);
+        assertEquals(5000, sketch.estimate(15 * MINUTE, 0), 5000 * RELATIVE_BOUND);
+    }
+
+    @Test
+    public void estimatesFiftyThousandPeersAcrossBuckets() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        // Spread over ten buckets, each peer seen twice in different buckets
+        for (int bucket = 0; bucket < 10; bucket++) {
+            addDistinct(sketch, bucket * 5000, 5000, bucket * MINUTE);
+            addDistinct(sketch, ((bucket + 1) % 10) * 5000, 5000, bucket * MINUTE);
+        }
+        assertEquals(50000, sketch.estimate(15 * MINUTE, 9 * MINUTE), 50000 * RELATIVE_BOUND);
+    }
+
+    @Test
+    public void countsOnlyTheBucketsInTheWindow() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        addDistinct(sketch, 0, 1000, 0);
+        addDistinct(sketch, 1000, 100, 10 * MINUTE);
+
+        long now = 10 * MINUTE + 30 * 1000;
+        assertEquals(100, sketch.estimate(MINUTE, now), 100 * RELATIVE_BOUND);
+        assertEquals(1100, sketch.estimate(15 * MINUTE, now), 1100 * RELATIVE_BOUND);
+    }
+
+    @Test
+    public void expiresBucketsOlderThanTheRing() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        addDistinct(sketch, 0, 1000, 0);
+
+        // Still in the ring on its last minute, gone on the next one even when asked for more
+        assertEquals(1000, sketch.estimate(15 * MINUTE, 14 * MINUTE), 1000 * RELATIVE_BOUND);
+        assertEquals(0, sketch.estimate(60 * MINUTE, 15 * MINUTE), 0.001);
+    }
+
+    @Test
+    public void clearsABucketWhenTheRingWrapsOntoIt() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        addDistinct(sketch, 0, 1000, 0);
+        // Same slot of the ring, 15 minutes later
+        addDistinct(sketch, 1000, 10, 15 * MINUTE);
+
+        assertEquals(10, sketch.estimate(15 * MINUTE, 15 * MINUTE), 2);
+    }
+
+    @Test
+    public void survivesACheckpoint() {
+        SlidingHyperLogLog sketch = new SlidingHyperLogLog(MINUTE, 15, 8);
+        addDistinct(sketch, 0, 3000, 0);
+        addDistinct(sketch, 3000, 2000, 5 * MINUTE);
+
+        ByteBuffer buffer = ByteBuffer.allocate(sketch.sizeInBytes());
+        sketch.write(buffer);
+        buffer.flip();
+        SlidingHyperLogLog restored = new SlidingHyperLogLog(MINUTE, 15, 8);
+        restored.read(buffer);
+
+        assertEquals(sketch.estimate(15 * MINUTE, 5 * MINUTE), restored.estimate(15 * MINUTE, 5 * MINUTE), 0);
+        assertEquals(sketch.estimate(MINUTE, 5 * MINUTE), restored.estimate(MINUTE, 5 * MINUTE), 0);
+    }
+
+    private static void addDistinct(SlidingHyperLogLog sketch, int first, int count, long timestamp) {
+        for (int i = first; i < first + count; i++) {
+            byte[] id = ("peer-" + i).getBytes(UTF_8);
+            sketch.add(PeerIdInterner.hash64(id, 0, id.length), timestamp);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.nuuneoi.lib.contacttracer.gatt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class GattIdentityResolverTest {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("000086ec-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Holds every read until the test completes it.
+     */
+    private static class FakeConnector implements GattIdentityResolver.Connector {
+        final Map<String, GattIdentityResolver.ReadCallback> reads = new LinkedHashMap<>();
+        int started = 0;
+
+        @Override
+        public UUID getServiceUuid() {
+            return SERVICE_UUID;
+        }
+
+        @Override
+        public void readIdentity(String address, GattIdentityResolver.ReadCallback callback) {
+            started++;
+            reads.put(address, callback);
+        }
+
+        void complete(String address, byte[] id) {
+            reads.remove(address).onIdentityRead(address, id);
+        }
+    }
+
+    private FakeConnector connector;
+    private final List<String> resolved = new ArrayList<>();
+    private final List<Integer> resolvedRssi = new ArrayList<>();
+    private GattIdentityResolver resolver;
+
+    @Before
+    public void setUp() {
+        connector = new FakeConnector();
+        resolver = new GattIdentityResolver(connector, new GattIdentityResolver.Listener() {
+            @Override
+            public void onIdentityResolved(String address, byte[] id, int rssi, long timestamp) {
+                resolved.add(address + "=" + new String(id));
+                resolvedRssi.add(rssi);
+            }
+        });
+    }
+
+    @Test
+    public void readsOnceAndCachesTheId() {
+        long now = System.currentTimeMillis();
+        assertSame(GattIdentityResolver.PENDING, resolver.resolve("A", -60, now));
+        assertSame(GattIdentityResolver.PENDING, resolver.resolve("A", -55, now + 1));
+        assertEquals(1, connector.started);
+
+        connector.complete("A", "PEER-A".getBytes());
+        // Reported once, with the latest sighting
+        assertEquals(1, resolved.size());
+        assertEquals("A=PEER-A", resolved.get(0));
+        assertEquals(-55, (int) resolvedRssi.get(0));
+
+        assertArrayEquals("PEER-A".getBytes(), resolver.resolve("A", -50, now + 2));
+        assertEquals(1, connector.started);
+        assertEquals(1, resolver.getCacheHits());
+        assertEquals(resolver.getServiceUuid(), SERVICE_UUID);
+    }
+
+    @Test
+    public void failedReadsAreCachedAsNoIdentity() {
+        long now = System.currentTimeMillis();
+        resolver.resolve("A", -60, now);
+        connector.complete("A", null);
+
+        assertSame(GattIdentityResolver.NO_IDENTITY, resolver.resolve("A", -60, now + 1));
+        // The pending sighting is still reported, without an id
+        assertEquals(Arrays.asList("A="), resolved);
+        assertEquals(1, resolver.getFailures());
+
+        // Retried once the negative entry expires
+        long later = System.currentTimeMillis() + GattIdentityResolver.NEGATIVE_TTL + 1;
+        assertSame(GattIdentityResolver.PENDING, resolver.resolve("A", -60, later));
+        assertEquals(2, connector.started);
+    }
+
+    @Test
+    public void limitsConcurrentReadsAndStartsQueuedOnes() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < GattIdentityResolver.MAX_CONNECTIONS + 3; i++)
+            assertSame(GattIdentityResolver.PENDING, resolver.resolve("D" + i, -60, now));
+        assertEquals(GattIdentityResolver.MAX_CONNECTIONS, connector.started);
+
+        connector.complete("D0", "PEER-0".getBytes());
+        assertEquals(GattIdentityResolver.MAX_CONNECTIONS + 1, connector.started);
+    }
+
+    @Test
+    public void refusesDevicesOnceTheQueueIsFull() {
+        long now = System.currentTimeMillis();
+        int capacity = GattIdentityResolver.MAX_CONNECTIONS + GattIdentityResolver.MAX_QUEUED;
+        for (int i = 0; i < capacity; i++)
+            assertSame(GattIdentityResolver.PENDING, resolver.resolve("D" + i, -60, now));
+
+        assertNull(resolver.resolve("X", -60, now));
+        // Devices already taken are still pending
+        assertSame(GattIdentityResolver.PENDING, resolver.resolve("D" + (capacity - 1), -60, now));
+
+        connector.complete("D0", null);
+        assertSame(GattIdentityResolver.PENDING, resolver.resolve("X", -60, now));
+    }
+
+    @Test
+    public void reportsNothingOnceCancelled() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < GattIdentityResolver.MAX_CONNECTIONS + 1; i++)
+            resolver.resolve("D" + i, -60, now);
+        resolver.cancelPending();
+
+        connector.complete("D0", "PEER-0".getBytes());
+        assertEquals(0, resolved.size());
+        // The queued device is not read
+        assertEquals(GattIdentityResolver.MAX_CONNECTIONS, connector.started);
+    }
+}
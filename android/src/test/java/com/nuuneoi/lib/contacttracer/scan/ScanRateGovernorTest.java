@@ -0,0 +1,126 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScanRateGovernorTest {
+
+    private static final long START = 1586000000000L;
+    private static final long SECOND = 1000;
+    // As the governor's margin for the OS bookkeeping
+    private static final long SLACK = 1000;
+
+    @Test
+    public void allowsFiveStartsPerWindow() {
+        ScanRateGovernor governor = new ScanRateGovernor();
+        for (int i = 0; i < ScanRateGovernor.MAX_STARTS; i++) {
+            assertEquals(0, governor.getStartDelay(START + i * SECOND));
+            governor.onScanStarted(START + i * SECOND);
+        }
+
+        // The sixth has to wait until the first has left the window
+        long now = START + 5 * SECOND;
+        assertEquals(ScanRateGovernor.WINDOW + SLACK - 5 * SECOND, governor.getStartDelay(now));
+        assertEquals(SECOND, governor.getStartDelay(START + ScanRateGovernor.WINDOW));
+        assertEquals(0, governor.getStartDelay(START + ScanRateGovernor.WINDOW + SLACK));
+    }
+
+    @Test
+    public void delaysByTheOldestOfTheLastFiveStarts() {
+        ScanRateGovernor governor = new ScanRateGovernor();
+        long[] starts = new long[12];
+        long now = START;
+        for (int i = 0; i < starts.length; i++) {
+            now += governor.getStartDelay(now);
+            governor.onScanStarted(now);
+            starts[i] = now;
+            now += 2 * SECOND;
+        }
+
+        // The first five go every 2 s, every later one waits for the one five before it
+        for (int i = 1; i < ScanRateGovernor.MAX_STARTS; i++)
+            assertEquals(starts[i - 1] + 2 * SECOND, starts[i]);
+        for (int i = ScanRateGovernor.MAX_STARTS; i < starts.length; i++)
+            assertEquals(starts[i - ScanRateGovernor.MAX_STARTS] + ScanRateGovernor.WINDOW + SLACK, starts[i]);
+    }
+
+    @Test
+    public void countsASilentWindowAfterResultsWithoutHoldingBelowTheLimit() {
+        ScanRateGovernor governor = new ScanRateGovernor();
+        scanWithResults(governor, START);
+
+        governor.onScanStarted(START + 20 * SECOND);
+        governor.onScanStopped(START + 30 * SECOND);
+
+        assertEquals(1, governor.getSilentScans());
+        assertEquals(0, governor.getThrottleIncidents());
+        assertEquals(0, governor.getStartDelay(START + 30 * SECOND));
+    }
+
+    @Test
+    public void ignoresSilentWindowsTooShortToTell() {
+        ScanRateGovernor governor = new ScanRateGovernor();
+        scanWithResults(governor, START);
+
+        governor.onScanStarted(START + 20 * SECOND);
+        governor.onScanStopped(START + 24 * SECOND);
+        assertEquals(0, governor.getSilentScans());
+    }
+
+    @Test
+    public void holdsStartsForAWindowAfterAThrottleIncident() {
+        ScanRateGovernor governor = new ScanRateGovernor();
+        for (int i = 0; i < ScanRateGovernor.MAX_STARTS - 1; i++) {
+            governor.onScanStarted(START + i * SECOND);
+            governor.onScanStopped(START + i * SECOND + 500);
+        }
+        scanWithResults(governor, START + 4 * SECOND);
+
+        // A sixth start within the window, e.g. by another path, and the OS goes silent
+        long started = START + 10 * SECOND;
+        governor.onScanStarted(started);
+        long stopped = started + 10 * SECOND;
+        governor.onScanStopped(stopped);
+
+        assertEquals(1, governor.getThrottleIncidents());
+        assertEquals(ScanRateGovernor.WINDOW, governor.getStartDelay(stopped));
+        // Held even after the five starts have left the window
+        long oldestGone = START + 10 * SECOND + ScanRateGovernor.WINDOW + SLACK;
+        assertEquals(stopped + ScanRateGovernor.WINDOW - (oldestGone - 5 * SECOND),
+                governor.getStartDelay(oldestGone - 5 * SECOND));
+        assertEquals(0, governor.getStartDelay(stopped + ScanRateGovernor.WINDOW));
+    }
+
+    @Test
+    public void keepsTheWindowAndHoldAcrossACheckpoint() {
+        ScanRateGovernor governor = new ScanRateGovernor();
+        for (int i = 0; i < ScanRateGovernor.MAX_STARTS + 2; i++)
+            governor.onScanStarted(START + i * SECOND);
+        governor.onScanDeferred();
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        governor.write(buffer);
+        buffer.flip();
+        ScanRateGovernor restored = new ScanRateGovernor();
+        restored.read(buffer);
+
+        long now = START + 8 * SECOND;
+        assertEquals(governor.getStartDelay(now), restored.getStartDelay(now));
+        assertEquals(governor.getScansStarted(), restored.getScansStarted());
+        assertEquals(1, restored.getScansDeferred());
+
+        // The ring restarts at its oldest entry
+        restored.onScanStarted(now);
+        governor.onScanStarted(now);
+        assertEquals(governor.getStartDelay(now), restored.getStartDelay(now));
+    }
+
+    private static void scanWithResults(ScanRateGovernor governor, long start) {
+        governor.onScanStarted(start);
+        governor.onScanResult();
+        governor.onScanStopped(start + 10 * SECOND);
+    }
+}
@@ -0,0 +1,150 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+import com.nuuneoi.lib.contacttracer.crypto.SealedChunkLog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ScanTraceRecorderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private File directory;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("trace", "");
+        directory.delete();
+        key = newKey();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToRecordWithoutAKey() throws IOException {
+        new ScanTraceRecorder(directory, null, 1024 * 1024);
+    }
+
+    @Test
+    public void keepsTheLastTwoGenerations() throws IOException {
+        // Generations of two chunks, 255 records after the header
+        ScanTraceRecorder recorder = new ScanTraceRecorder(directory, key, 4 * SealedChunkLog.CHUNK_SIZE);
+        int count = 2000;
+        for (int i = 0; i < count; i++)
+            record(recorder, i, "PEER-" + i);
+        long recorded = recorder.getRecordCount();
+        recorder.close();
+
+        assertEquals(2, directory.listFiles().length);
+        assertTrue(recorded > 255 && recorded <= 2 * 255);
+        ByteBuffer records = ByteBuffer.wrap(ScanTraceRecorder.readRecords(directory, key));
+        assertEquals(recorded, records.capacity() / ScanTraceRecorder.RECORD_SIZE);
+        // The newest ones, in order
+        for (int i = 0; i < recorded; i++)
+            assertEquals(count - recorded + i, records.getLong(i * ScanTraceRecorder.RECORD_SIZE));
+    }
+
+    @Test
+    public void appendsToTheTraceWhenReopened() throws IOException {
+        ScanTraceRecorder recorder = new ScanTraceRecorder(directory, key, 1024 * 1024);
+        for (int i = 0; i < 10; i++)
+            record(recorder, i, "PEER-" + i);
+        recorder.close();
+
+        recorder = new ScanTraceRecorder(directory, key, 1024 * 1024);
+        assertEquals(10, recorder.getRecordCount());
+        for (int i = 10; i < 20; i++)
+            record(recorder, i, "PEER-" + i);
+        recorder.close();
+
+        ByteBuffer records = ByteBuffer.wrap(ScanTraceRecorder.readRecords(directory, key));
+        assertEquals(20, records.capacity() / ScanTraceRecorder.RECORD_SIZE);
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, records.getLong(i * ScanTraceRecorder.RECORD_SIZE));
+    }
+
+    @Test
+    public void sealsTheTraceAndExportsItInTheClear() throws IOException {
+        ScanTraceRecorder recorder = new ScanTraceRecorder(directory, key, 1024 * 1024);
+        for (int i = 0; i < 300; i++)
+            record(recorder, i, "PEER-SECRET");
+        recorder.close();
+
+        for (File file : directory.listFiles())
+            assertFalse(contains(file, "PEER-SECRET"));
+        assertEquals(0, ScanTraceRecorder.readRecords(directory, newKey()).length);
+
+        File export = new File(directory, "export.chunks");
+        assertEquals(300, ScanTraceRecorder.export(directory, key, export));
+        assertTrue(contains(export, "PEER-SECRET"));
+        assertArrayEquals(ScanTraceRecorder.readRecords(directory, key), ScanTraceRecorder.readRecords(export, null));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLogsThatAreNotTraces() throws IOException {
+        File file = new File(directory, "trace-0.chunks");
+        directory.mkdirs();
+        ExecutorService executor = SealedChunkLog.newSealingExecutor();
+        SealedChunkLog log = new SealedChunkLog(file, new ChunkCipher(key), executor);
+        log.open();
+        log.append(new byte[ScanTraceRecorder.RECORD_SIZE], 0, ScanTraceRecorder.RECORD_SIZE, 0);
+        log.sync();
+        executor.shutdown();
+        ScanTraceRecorder.readRecords(directory, key);
+    }
+
+    private static void record(ScanTraceRecorder recorder, long timestamp, String name) {
+        recorder.record(1, new byte[] { 2, 1, 6 }, name, -60, ScanTraceRecorder.TX_POWER_NOT_PRESENT,
+                name.hashCode(), timestamp);
+    }
+
+    private static boolean contains(File file, String text) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        byte[] needle = text.getBytes(UTF_8);
+        for (int i = 0; i + needle.length <= bytes.length; i++) {
+            if (Arrays.equals(needle, Arrays.copyOfRange(bytes, i, i + needle.length)))
+                return true;
+        }
+        return false;
+    }
+
+    private static SecretKey newKey() {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+}
@@ -0,0 +1,139 @@
+package com.nuuneoi.lib.contacttracer.scan;
+
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.os.Looper;
+
+import com.nuuneoi.lib.contacttracer.TestScanResults;
+
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothLeScanner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Plays a trace written by {@link ScanTraceRecorder} back into a running TracerService.
+ * <p>
+ * Each record is rebuilt into a ScanResult from the recorded advertisement bytes and handed
+ * to the ScanCallback the service registered with the shadowed BluetoothLeScanner, so it
+ * takes the app's own path: the decoders the service installed, the GATT fallback and the
+ * device name fallback. The gaps between records are replayed on Robolectric's clock, running
+ * the main looper in between, so the service's timers and time-based state see the recorded
+ * timing. Devices get stable addresses derived from the recorded address hashes.
+ * <p>
+ * With a speed factor the replay also waits in real time between records, e.g. to watch
+ * the app's UI or logs at 1x or 10x; 0 replays as fast as possible.
+ */
+public class ScanTraceReplayer {
+
+    public static class Record {
+        public long timestamp;
+        public int callbackType;
+        public int rssi;
+        public int txPower;
+        public int addressHash;
+        public byte[] advertisement;
+        public String deviceName;
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+
+    /**
+     * @param trace a trace directory, or a single log such as ScanTraceRecorder.export()
+     * @param key   the key the trace was sealed with, null for an export
+     */
+    public ScanTraceReplayer(File trace, SecretKey key) throws IOException {
+        buffer = ByteBuffer.wrap(ScanTraceRecorder.readRecords(trace, key));
+    }
+
+    public long getRecordCount() {
+        return buffer.capacity() / ScanTraceRecorder.RECORD_SIZE;
+    }
+
+    /**
+     * Reads the index-th oldest record into the given holder.
+     */
+    public Record read(long index, Record record) {
+        int offset = (int) index * ScanTraceRecorder.RECORD_SIZE;
+        record.timestamp = buffer.getLong(offset);
+        record.callbackType = buffer.get(offset + 8);
+        record.rssi = buffer.get(offset + 9);
+        record.addressHash = buffer.getInt(offset + 10);
+
+        int length = buffer.get(offset + 14) & 0xff;
+        record.advertisement = length == ScanTraceRecorder.ABSENT ? null
+                : bytesAt(offset + ScanTraceRecorder.ADVERTISEMENT_OFFSET, length);
+        length = buffer.get(offset + 15) & 0xff;
+        record.deviceName = length == ScanTraceRecorder.ABSENT ? null
+                : new String(bytesAt(offset + ScanTraceRecorder.DEVICE_NAME_OFFSET, length), UTF_8);
+        record.txPower = buffer.get(offset + ScanTraceRecorder.TX_POWER_OFFSET);
+        return record;
+    }
+
+    /**
+     * Replays the whole trace as fast as possible, see {@link #replay(ShadowBluetoothLeScanner, double)}.
+     */
+    public long replay(ShadowBluetoothLeScanner scanner) throws InterruptedException {
+        return replay(scanner, 0);
+    }
+
+    /**
+     * Replays the whole trace into the service scanning with the given scanner, on the calling
+     * (main) thread.
+     *
+     * @param speed how much faster than recorded to wait in real time between records, 0 not
+     *              to wait at all
+     * @return number of results replayed
+     */
+    public long replay(ShadowBluetoothLeScanner scanner, double speed) throws InterruptedException {
+        ShadowLooper mainLooper = Shadow.extract(Looper.getMainLooper());
+        Record record = new Record();
+        ScanCallback callback = null;
+        long previousTimestamp = 0;
+        long count = getRecordCount();
+        for (long i = 0; i < count; i++) {
+            read(i, record);
+            if (i > 0 && record.timestamp > previousTimestamp) {
+                long gap = record.timestamp - previousTimestamp;
+                if (speed > 0)
+                    Thread.sleep((long) (gap / speed));
+                mainLooper.idleFor(gap, TimeUnit.MILLISECONDS);
+            }
+            previousTimestamp = record.timestamp;
+
+            // Between scan windows no callback is registered; results still go to the last one
+            if (!scanner.getScanCallbacks().isEmpty())
+                callback = scanner.getScanCallbacks().iterator().next();
+            if (callback == null)
+                throw new IllegalStateException("The service never started scanning");
+
+            ScanResult result = TestScanResults.fromRecord(addressOf(record.addressHash), record.deviceName,
+                    record.advertisement != null ? record.advertisement : new byte[0], record.rssi, record.txPower);
+            callback.onScanResult(record.callbackType, result);
+            mainLooper.idle();
+        }
+        return count;
+    }
+
+    private byte[] bytesAt(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(offset + i);
+        return bytes;
+    }
+
+    private static String addressOf(int addressHash) {
+        return String.format(Locale.US, "02:00:%02X:%02X:%02X:%02X", (addressHash >>> 24) & 0xff,
+                (addressHash >>> 16) & 0xff, (addressHash >>> 8) & 0xff, addressHash & 0xff);
+    }
+}
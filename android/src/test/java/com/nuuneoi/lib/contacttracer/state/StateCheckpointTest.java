@@ -0,0 +1,130 @@
+package com.nuuneoi.lib.contacttracer.state;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateCheckpointTest {
+
+    private File file;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", "");
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void updateReplacesOnlyItsOwnSections() {
+        StateCheckpoint service = new StateCheckpoint(file, key);
+        service.addSection(new LongSection(1, 10));
+        service.addSection(new LongSection(2, 20));
+        service.addSection(new LongSection(3, 30));
+        assertTrue(service.save());
+
+        // A second user of the file holding only one of the sections
+        StateCheckpoint module = new StateCheckpoint(file, key);
+        LongSection changed = new LongSection(2, 0);
+        module.addSection(changed);
+        assertTrue(module.restore());
+        assertEquals(20, changed.value);
+        changed.value = 21;
+        assertTrue(module.update());
+
+        LongSection first = new LongSection(1, 0);
+        LongSection second = new LongSection(2, 0);
+        LongSection third = new LongSection(3, 0);
+        StateCheckpoint restarted = new StateCheckpoint(file, key);
+        restarted.addSection(first);
+        restarted.addSection(second);
+        restarted.addSection(third);
+        assertTrue(restarted.restore());
+        assertEquals(10, first.value);
+        assertEquals(21, second.value);
+        assertEquals(30, third.value);
+    }
+
+    @Test
+    public void updateAddsASectionMissingFromTheCheckpoint() {
+        StateCheckpoint service = new StateCheckpoint(file, key);
+        service.addSection(new LongSection(1, 10));
+        assertTrue(service.save());
+
+        StateCheckpoint module = new StateCheckpoint(file, key);
+        module.addSection(new LongSection(2, 20));
+        assertTrue(module.update());
+
+        LongSection first = new LongSection(1, 0);
+        LongSection second = new LongSection(2, 0);
+        StateCheckpoint restarted = new StateCheckpoint(file, key);
+        restarted.addSection(first);
+        restarted.addSection(second);
+        assertTrue(restarted.restore());
+        assertEquals(10, first.value);
+        assertEquals(20, second.value);
+    }
+
+    @Test
+    public void readsOnlySealedSlotsWithAKey() {
+        StateCheckpoint plain = new StateCheckpoint(file, null);
+        plain.addSection(new LongSection(1, 10));
+        assertTrue(plain.save());
+
+        LongSection section = new LongSection(1, 0);
+        StateCheckpoint keyed = new StateCheckpoint(file, key);
+        keyed.addSection(section);
+        assertFalse(keyed.restore());
+        assertEquals(0, section.value);
+
+        // Still readable without a key
+        StateCheckpoint unkeyed = new StateCheckpoint(file, null);
+        unkeyed.addSection(section);
+        assertTrue(unkeyed.restore());
+        assertEquals(10, section.value);
+    }
+
+    private static class LongSection implements StateCheckpoint.Section {
+        private final int tag;
+        long value;
+
+        LongSection(int tag, long value) {
+            this.tag = tag;
+            this.value = value;
+        }
+
+        @Override
+        public int getTag() {
+            return tag;
+        }
+
+        @Override
+        public void write(ByteBuffer out) {
+            out.putLong(value);
+        }
+
+        @Override
+        public void read(ByteBuffer in) {
+            value = in.getLong();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.nuuneoi.lib.contacttracer.timeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimelineBlockTest {
+
+    private static final long START = 1586000000000L;
+    private static final long UNIT = TimelineBlock.TIME_UNIT;
+
+    @Test
+    public void roundTripsDeltaOfDeltaOnEveryBucketEdge() {
+        // Each bucket's last value in and first value out, on both sides; the leading jump
+        // keeps every delta positive
+        long[] deltasOfDeltas = { 100000, 0, 64, -63, 65, -64, 256, -255, 257, -256, 2048, -2047, 2049,
+                -2048, 1000000, -1000000, 0, 1, -1 };
+        long[] timestamps = new long[deltasOfDeltas.length + 1];
+        int[] rssi = new int[timestamps.length];
+        timestamps[0] = START;
+        rssi[0] = -60;
+        long delta = 0;
+        for (int i = 0; i < deltasOfDeltas.length; i++) {
+            delta += deltasOfDeltas[i];
+            timestamps[i + 1] = timestamps[i] + delta * UNIT;
+            rssi[i + 1] = -60;
+        }
+
+        assertRoundTrips(timestamps, rssi);
+    }
+
+    @Test
+    public void roundTripsRssiChangesOnEveryBucketEdge() {
+        // Zigzag changes 0, 1, 8, 9, 40, 41, then the extremes a radio can report
+        int[] rssi = { -60, -60, -61, -57, -62, -42, -63, -127, 126, -127, 0, 20, -127 };
+        long[] timestamps = new long[rssi.length];
+        for (int i = 0; i < rssi.length; i++)
+            timestamps[i] = START + i * 1000;
+
+        assertRoundTrips(timestamps, rssi);
+    }
+
+    @Test
+    public void quantisesAndClampsOutOfOrderTimestamps() {
+        TimelineBlock block = new TimelineBlock(START + 99, -60);
+        assertTrue(block.append(START + 1050, -61));
+        assertTrue(block.append(START + 500, -62));
+
+        Timeline timeline = decodeAll(block);
+        assertEquals(3, timeline.size());
+        assertEquals(START, timeline.getTimestamp(0));
+        assertEquals(START + 1000, timeline.getTimestamp(1));
+        assertEquals(START + 1000, timeline.getTimestamp(2));
+        assertEquals(-62, timeline.getRssi(2));
+    }
+
+    @Test
+    public void refusesSamplesPastItsCapacity() {
+        TimelineBlock block = new TimelineBlock(START, -60);
+        long timestamp = START;
+        int rssi = -60;
+        while (true) {
+            timestamp += 100000 * UNIT + (block.getCount() % 2) * 5000 * UNIT;
+            rssi = rssi == -60 ? -127 : -60;
+            if (!block.append(timestamp, rssi))
+                break;
+        }
+        int count = block.getCount();
+        assertTrue(block.toBytes().length <= TimelineBlock.CAPACITY_BYTES);
+        assertFalse(block.append(timestamp + 100000 * UNIT, 0));
+        assertEquals(count, block.getCount());
+        assertEquals(count, decodeAll(block).size());
+    }
+
+    @Test
+    public void packsASteadyPeerIntoTwoBitsPerSample() {
+        TimelineBlock block = new TimelineBlock(START, -60);
+        long timestamp = START;
+        while (block.append(timestamp + 1000, -60))
+            timestamp += 1000;
+
+        // The second sample sets the rhythm, every later one is '0' '0'
+        int expected = 2 + (TimelineBlock.CAPACITY_BYTES * 8 - 9 - 1) / 2;
+        assertEquals(expected, block.getCount());
+        assertEquals(expected, decodeAll(block).size());
+    }
+
+    @Test
+    public void decodesOnlyTheRangeInclusive() {
+        TimelineBlock block = new TimelineBlock(START, -60);
+        for (int i = 1; i < 10; i++)
+            assertTrue(block.append(START + i * 1000, -60 - i));
+
+        Timeline timeline = new Timeline();
+        assertEquals(3, wrap(block).decode(START + 3000, START + 5000, timeline));
+        assertEquals(START + 3000, timeline.getTimestamp(0));
+        assertEquals(-63, timeline.getRssi(0));
+        assertEquals(START + 5000, timeline.getTimestamp(2));
+
+        assertEquals(0, wrap(block).decode(START + 3001, START + 3999, new Timeline()));
+        assertEquals(1, wrap(block).decode(START + 9000, Long.MAX_VALUE, new Timeline()));
+    }
+
+    /**
+     * Appends the samples into as many blocks as needed, reads them back as the store does
+     * and checks every sample.
+     */
+    private static void assertRoundTrips(long[] timestamps, int[] rssi) {
+        List<TimelineBlock> blocks = new ArrayList<>();
+        TimelineBlock block = null;
+        for (int i = 0; i < timestamps.length; i++) {
+            if (block == null || !block.append(timestamps[i], rssi[i])) {
+                block = new TimelineBlock(timestamps[i], rssi[i]);
+                blocks.add(block);
+            }
+        }
+
+        Timeline timeline = new Timeline();
+        for (TimelineBlock sealed : blocks)
+            wrap(sealed).decode(Long.MIN_VALUE, Long.MAX_VALUE, timeline);
+        assertEquals(timestamps.length, timeline.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals("timestamp " + i, timestamps[i], timeline.getTimestamp(i));
+            assertEquals("rssi " + i, rssi[i], timeline.getRssi(i));
+        }
+    }
+
+    private static Timeline decodeAll(TimelineBlock block) {
+        Timeline timeline = new Timeline();
+        wrap(block).decode(Long.MIN_VALUE, Long.MAX_VALUE, timeline);
+        return timeline;
+    }
+
+    private static TimelineBlock wrap(TimelineBlock block) {
+        return new TimelineBlock(block.getFirstTimestamp(), block.getFirstRssi(), block.getLastTimestamp(),
+                block.getCount(), block.toBytes());
+    }
+}
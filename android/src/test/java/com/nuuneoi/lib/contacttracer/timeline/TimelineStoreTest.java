@@ -0,0 +1,276 @@
+package com.nuuneoi.lib.contacttracer.timeline;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+import com.nuuneoi.lib.contacttracer.crypto.SealedChunkLog;
+import com.nuuneoi.lib.contacttracer.peer.PeerIdInterner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimelineStoreTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private File directory;
+    private SecretKey key;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("timeline", "");
+        directory.delete();
+        directory.mkdirs();
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        executor = SealedChunkLog.newSealingExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void cutsRangesOnBlockBoundaries() {
+        Samples samples = new Samples();
+        PeerIdInterner peerIdInterner = new PeerIdInterner();
+        TimelineStore store = newStore(peerIdInterner);
+        samples.feed(store, peerIdInterner.intern("PEER-A"));
+        assertTrue(samples.boundaries.size() > 5);
+
+        for (int boundary : samples.boundaries) {
+            long lastOfBlock = samples.timestamps[boundary - 1];
+            long firstOfNext = samples.timestamps[boundary];
+            samples.assertRange(store, lastOfBlock, lastOfBlock);
+            samples.assertRange(store, firstOfNext, firstOfNext);
+            samples.assertRange(store, lastOfBlock, firstOfNext);
+            samples.assertRange(store, lastOfBlock + 1, firstOfNext - 1);
+            samples.assertRange(store, lastOfBlock - 5000, firstOfNext + 5000);
+        }
+    }
+
+    @Test
+    public void readsRangesSpanningSealedAndOpenBlocks() {
+        Samples samples = new Samples();
+        PeerIdInterner peerIdInterner = new PeerIdInterner();
+        TimelineStore store = newStore(peerIdInterner);
+        samples.feed(store, peerIdInterner.intern("PEER-A"));
+
+        // The last block is still open in memory, and the newest chunk of the log not written
+        int lastBoundary = samples.boundaries.get(samples.boundaries.size() - 1);
+        long sealedEnd = samples.timestamps[lastBoundary - 1];
+        long end = samples.timestamps[samples.count - 1];
+        samples.assertRange(store, samples.timestamps[0], end);
+        samples.assertRange(store, sealedEnd - 60000, sealedEnd + 60000);
+        samples.assertRange(store, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        // Across midnight, so across two day logs
+        long midnight = samples.timestamps[samples.count - 1] / DAY * DAY;
+        samples.assertRange(store, midnight - 60000, midnight + 60000);
+
+        // All read back from the logs by a fresh store
+        store.flush();
+        TimelineStore reopened = newStore();
+        samples.assertRange(reopened, Long.MIN_VALUE, Long.MAX_VALUE);
+        samples.assertRange(reopened, sealedEnd - 60000, sealedEnd + 60000);
+        samples.assertRange(reopened, midnight - 60000, midnight + 60000);
+    }
+
+    @Test
+    public void opensFromTheIndexLogsOnly() throws IOException {
+        PeerIdInterner peerIdInterner = new PeerIdInterner();
+        TimelineStore store = newStore(peerIdInterner);
+        List<Samples> peers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Samples samples = new Samples("PEER-" + i, i);
+            samples.feed(store, peerIdInterner.intern(samples.peerId));
+            peers.add(samples);
+        }
+        store.flush();
+
+        CountingCipher cipher = new CountingCipher(key);
+        TimelineStore reopened = new TimelineStore(directory, new PeerIdInterner(), cipher, executor);
+        reopened.load();
+        long blockLogSize = 0;
+        long indexLogSize = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".chunks"))
+                blockLogSize += file.length();
+            else if (file.getName().endsWith(".index"))
+                indexLogSize += file.length();
+            // Peer ids are in both, sealed
+            assertFalse(new String(readAll(file), "ISO-8859-1").contains("PEER-"));
+        }
+        assertTrue(cipher.openedBytes > 0);
+        assertTrue(cipher.openedBytes <= indexLogSize);
+        assertTrue(indexLogSize < blockLogSize / 2);
+
+        for (Samples samples : peers)
+            samples.assertRange(reopened, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void indexesBlocksMissingFromTheIndexLog() throws IOException {
+        Samples samples = new Samples();
+        PeerIdInterner peerIdInterner = new PeerIdInterner();
+        TimelineStore store = newStore(peerIdInterner);
+        samples.feed(store, peerIdInterner.intern("PEER-A"));
+        store.flush();
+
+        // As if killed before the index chunks were written
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            if (file.getName().endsWith(".index"))
+                assertTrue(file.delete());
+        }
+
+        TimelineStore reopened = newStore();
+        samples.assertRange(reopened, Long.MIN_VALUE, Long.MAX_VALUE);
+        reopened.flush();
+        // Written back, and not indexed twice
+        int indexLogs = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".index"))
+                indexLogs++;
+        }
+        assertEquals(2, indexLogs);
+        samples.assertRange(newStore(), Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void keepsBlocksSealedWhileLoadingInTimeOrder() {
+        Samples samples = new Samples();
+        PeerIdInterner peerIdInterner = new PeerIdInterner();
+        TimelineStore store = newStore(peerIdInterner);
+        int peer = peerIdInterner.intern("PEER-A");
+        int half = samples.count / 2;
+        for (int i = 0; i < half; i++)
+            store.onNearbyDeviceFound(peer, samples.rssi[i], samples.timestamps[i]);
+        store.flush();
+
+        // The second half is sealed before the first is loaded back
+        PeerIdInterner reopenedInterner = new PeerIdInterner();
+        TimelineStore reopened = new TimelineStore(directory, reopenedInterner, new ChunkCipher(key), executor);
+        int reopenedPeer = reopenedInterner.intern("PEER-A");
+        for (int i = half; i < samples.count; i++)
+            reopened.onNearbyDeviceFound(reopenedPeer, samples.rssi[i], samples.timestamps[i]);
+        reopened.flush();
+        reopened.load();
+        samples.assertRange(reopened, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Counts what is decrypted.
+     */
+    private static class CountingCipher extends ChunkCipher {
+        long openedBytes;
+
+        CountingCipher(SecretKey key) {
+            super(key);
+        }
+
+        @Override
+        public byte[] open(long position, byte[] sealed, int offset, int length) throws GeneralSecurityException {
+            openedBytes += length;
+            return super.open(position, sealed, offset, length);
+        }
+    }
+
+    /**
+     * A peer seen every second for an hour across the last midnight, with a varying signal,
+     * and the sample indexes where a new block starts.
+     */
+    private static class Samples {
+        final String peerId;
+        final int count = 3600;
+        final long[] timestamps = new long[count];
+        final int[] rssi = new int[count];
+        final List<Integer> boundaries = new ArrayList<>();
+
+        Samples() {
+            this("PEER-A", 42);
+        }
+
+        Samples(String peerId, long seed) {
+            this.peerId = peerId;
+            long start = System.currentTimeMillis() / DAY * DAY - 30 * 60 * 1000;
+            Random random = new Random(seed);
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = start + i * 1000;
+                rssi[i] = -50 - random.nextInt(40);
+            }
+        }
+
+        void feed(TimelineStore store, int peer) {
+            TimelineBlock block = null;
+            for (int i = 0; i < count; i++) {
+                // Mirrors the store, to know where its blocks start
+                if (block == null || !block.append(timestamps[i], rssi[i])) {
+                    if (block != null)
+                        boundaries.add(i);
+                    block = new TimelineBlock(timestamps[i], rssi[i]);
+                }
+                store.onNearbyDeviceFound(peer, rssi[i], timestamps[i]);
+            }
+        }
+
+        void assertRange(TimelineStore store, long from, long to) {
+            Timeline timeline = store.getTimeline(peerId, from, to);
+            int matched = 0;
+            for (int i = 0; i < count; i++) {
+                if (timestamps[i] < from || timestamps[i] > to)
+                    continue;
+                assertEquals(timestamps[i], timeline.getTimestamp(matched));
+                assertEquals(rssi[i], timeline.getRssi(matched));
+                matched++;
+            }
+            assertEquals(matched, timeline.size());
+        }
+    }
+
+    private TimelineStore newStore() {
+        return newStore(new PeerIdInterner());
+    }
+
+    private TimelineStore newStore(PeerIdInterner peerIdInterner) {
+        TimelineStore store = new TimelineStore(directory, peerIdInterner, new ChunkCipher(key), executor);
+        store.load();
+        return store;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.nuuneoi.lib.contacttracer.upload;
+
+import com.nuuneoi.lib.contacttracer.crypto.ChunkCipher;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads staged batches to a stub server on localhost that fails chosen chunks.
+ */
+public class ChunkedUploaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String BATCH_ID = "0b6a3d3e-5c1f-4f6e-9d4b-2a7c8e1f0a11";
+
+    private HttpServer server;
+    private String endpoint;
+    private File directory;
+
+    // Written by the server thread
+    private final Map<Integer, Integer> failures = new HashMap<>();
+    private final Map<String, byte[]> stored = new HashMap<>();
+    private final List<String> requests = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/batches/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                onRequest(exchange);
+            }
+        });
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort() + "/batches/";
+
+        directory = File.createTempFile("upload", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        new UploadBatch(directory, new ChunkCipher(null)).delete();
+    }
+
+    @Test
+    public void resumesAfterAFailedChunkAndDeliversEachChunkOnce() throws IOException {
+        UploadBatch batch = new UploadBatch(directory, new ChunkCipher(null));
+        List<String> lines = stage(batch, 20000);
+        int chunkCount = countChunks();
+        assertTrue(chunkCount >= 4);
+        failOnce(2, 503);
+
+        ChunkedUploader uploader = new ChunkedUploader(endpoint, "device-1");
+        final int[] acknowledged = new int[1];
+        ChunkedUploader.Progress progress = new ChunkedUploader.Progress() {
+            @Override
+            public void onChunkAcknowledged(int index) {
+                assertEquals(acknowledged[0], index);
+                acknowledged[0] = index + 1;
+            }
+        };
+        assertEquals(ChunkedUploader.RESULT_RETRY, uploader.upload(BATCH_ID, batch, chunkCount, 0, progress));
+        assertEquals(2, acknowledged[0]);
+
+        // Next run resumes from the first unacknowledged chunk
+        assertEquals(ChunkedUploader.RESULT_DONE,
+                uploader.upload(BATCH_ID, batch, chunkCount, acknowledged[0], progress));
+        assertEquals(chunkCount, acknowledged[0]);
+
+        synchronized (this) {
+            // Every chunk once, plus the failed attempt at chunk 2
+            assertEquals(chunkCount + 1, requests.size());
+            Set<String> delivered = new HashSet<>();
+            for (String request : requests) {
+                if (request.endsWith(" 2xx"))
+                    assertTrue("Delivered twice: " + request, delivered.add(request));
+            }
+            assertEquals(chunkCount, delivered.size());
+            assertEquals(lines, receivedLines(chunkCount));
+        }
+    }
+
+    @Test
+    public void stopsAtARejectedChunk() throws IOException {
+        UploadBatch batch = new UploadBatch(directory, new ChunkCipher(null));
+        stage(batch, 20000);
+        int chunkCount = countChunks();
+        failOnce(1, 400);
+
+        final int[] acknowledged = new int[1];
+        int result = new ChunkedUploader(endpoint, "device-1").upload(BATCH_ID, batch, chunkCount, 0,
+                new ChunkedUploader.Progress() {
+                    @Override
+                    public void onChunkAcknowledged(int index) {
+                        acknowledged[0] = index + 1;
+                    }
+                });
+        assertEquals(ChunkedUploader.RESULT_REJECTED, result);
+        assertEquals(1, acknowledged[0]);
+        synchronized (this) {
+            assertEquals(2, requests.size());
+        }
+    }
+
+    @Test
+    public void sendsNothingOfAChunkThatCannotBeReadBack() throws IOException {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        stage(new UploadBatch(directory, new ChunkCipher(new SecretKeySpec(keyBytes, "AES"))), 20000);
+        int chunkCount = countChunks();
+
+        // As when the store key was lost
+        new SecureRandom().nextBytes(keyBytes);
+        UploadBatch batch = new UploadBatch(directory, new ChunkCipher(new SecretKeySpec(keyBytes, "AES")));
+        int result = new ChunkedUploader(endpoint, "device-1").upload(BATCH_ID, batch, chunkCount, 0,
+                new ChunkedUploader.Progress() {
+                    @Override
+                    public void onChunkAcknowledged(int index) {
+                        throw new AssertionError("Acknowledged " + index);
+                    }
+                });
+        assertEquals(ChunkedUploader.RESULT_UNREADABLE, result);
+        synchronized (this) {
+            assertTrue(requests.isEmpty());
+        }
+    }
+
+    private synchronized void failOnce(int index, int status) {
+        failures.put(index, status);
+    }
+
+    private void onRequest(HttpExchange exchange) throws IOException {
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        String batchId = path[path.length - 2];
+        int index = Integer.parseInt(path[path.length - 1]);
+        byte[] body = readAll(exchange.getRequestBody());
+
+        int status;
+        synchronized (this) {
+            Integer failure = failures.remove(index);
+            if (!"PUT".equals(exchange.getRequestMethod())
+                    || !ChunkedUploader.sha256(body).equals(exchange.getRequestHeaders().getFirst("X-Content-SHA256"))) {
+                status = 400;
+            } else if (failure != null) {
+                status = failure;
+            } else {
+                status = 204;
+                stored.put(batchId + "/" + index, body);
+            }
+            requests.add(String.format(Locale.US, "%s/%d %s", batchId, index, status < 300 ? "2xx" : String.valueOf(status)));
+        }
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    private List<String> stage(UploadBatch batch, int samples) throws IOException {
+        List<String> lines = new ArrayList<>();
+        UploadBatch.Writer writer = batch.newWriter();
+        for (int i = 0; i < samples; i++) {
+            String peerId = String.format(Locale.US, "PEER%05d", i % 700);
+            long timestamp = 1600000000000L + i * 1000L;
+            int rssi = -40 - i % 50;
+            writer.addSample(peerId, timestamp, rssi);
+            lines.add(peerId + "," + timestamp + "," + rssi);
+        }
+        writer.finish();
+        return lines;
+    }
+
+    private int countChunks() {
+        String[] files = directory.list();
+        return files != null ? files.length : 0;
+    }
+
+    private List<String> receivedLines(int chunkCount) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int index = 0; index < chunkCount; index++) {
+            byte[] chunk = stored.get(BATCH_ID + "/" + index);
+            String text = new String(readAll(new GZIPInputStream(new ByteArrayInputStream(chunk))), UTF_8);
+            for (String line : text.split("\n")) {
+                if (!line.isEmpty())
+                    lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+        in.close();
+        return out.toByteArray();
+    }
+}
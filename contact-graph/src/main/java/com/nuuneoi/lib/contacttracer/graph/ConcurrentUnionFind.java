@@ -0,0 +1,69 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Lock-free union-find for labelling connected clusters from many threads at once.
+ * <p>
+ * A root is only ever linked below a root with a smaller id, with a compare-and-set that fails
+ * if it stopped being a root meanwhile, so concurrent unions cannot create cycles. Finds halve
+ * the paths they walk.
+ */
+public class ConcurrentUnionFind {
+
+    private final AtomicIntegerArray parents;
+
+    public ConcurrentUnionFind(int size) {
+        parents = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++)
+            parents.set(i, i);
+    }
+
+    public int find(int node) {
+        while (true) {
+            int parent = parents.get(node);
+            if (parent == node)
+                return node;
+            int grandparent = parents.get(parent);
+            if (grandparent != parent)
+                parents.compareAndSet(node, parent, grandparent);
+            node = grandparent;
+        }
+    }
+
+    public void union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b)
+                return;
+            if (a < b) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            if (parents.compareAndSet(a, a, b))
+                return;
+        }
+    }
+
+    /**
+     * Unions the ends of every edge in parallel.
+     */
+    public void unionAll(long[] edges) {
+        IntStream.range(0, edges.length).parallel()
+                .forEach(i -> union(EncounterIngest.low(edges[i]), EncounterIngest.high(edges[i])));
+    }
+
+    /**
+     * Cluster of every node, named after its smallest node id: roots only link below smaller
+     * ones, so each cluster's root is its smallest node. With the ids of
+     * {@link EncounterIngest} that is the member whose name sorts first.
+     */
+    public int[] clusters() {
+        int[] clusters = new int[parents.length()];
+        IntStream.range(0, clusters.length).parallel().forEach(i -> clusters[i] = find(i));
+        return clusters;
+    }
+}
@@ -0,0 +1,66 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+/**
+ * Undirected contact graph in compressed sparse row form: the neighbours of node {@code u} are
+ * {@code neighbors[offsets[u] .. offsets[u + 1])}. Two int arrays, no per-node objects, so
+ * tens of millions of contacts fit in a few hundred megabytes.
+ */
+public class ContactGraph {
+
+    private final int nodeCount;
+    private final int[] offsets;
+    private final int[] neighbors;
+
+    private ContactGraph(int nodeCount, int[] offsets, int[] neighbors) {
+        this.nodeCount = nodeCount;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * @param edges de-duplicated edge keys, see {@link EncounterIngest}
+     */
+    public static ContactGraph fromEdges(int nodeCount, long[] edges) {
+        if ((long) edges.length * 2 > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Too many contacts for one graph: " + edges.length);
+
+        int[] offsets = new int[nodeCount + 1];
+        for (long edge : edges) {
+            offsets[EncounterIngest.low(edge) + 1]++;
+            offsets[EncounterIngest.high(edge) + 1]++;
+        }
+        for (int u = 0; u < nodeCount; u++)
+            offsets[u + 1] += offsets[u];
+
+        int[] cursor = new int[nodeCount];
+        System.arraycopy(offsets, 0, cursor, 0, nodeCount);
+        int[] neighbors = new int[edges.length * 2];
+        for (long edge : edges) {
+            int low = EncounterIngest.low(edge);
+            int high = EncounterIngest.high(edge);
+            neighbors[cursor[low]++] = high;
+            neighbors[cursor[high]++] = low;
+        }
+        return new ContactGraph(nodeCount, offsets, neighbors);
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getEdgeCount() {
+        return neighbors.length / 2;
+    }
+
+    public int getDegree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    public int getFirstNeighbor(int node) {
+        return offsets[node];
+    }
+
+    public int getNeighbor(int index) {
+        return neighbors[index];
+    }
+}
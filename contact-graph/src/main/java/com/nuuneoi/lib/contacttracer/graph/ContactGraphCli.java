@@ -0,0 +1,230 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Command line entry point.
+ * <pre>
+ * contact-graph [options] &lt;file or directory&gt;...
+ *   --min-rssi N       ignore samples weaker than N dBm (default -70)
+ *   --min-samples N    samples a device needs of a peer to count as a contact (default 1)
+ *   --from MS --to MS  only samples within this time range, milliseconds since epoch
+ *   --threads N        worker threads (default: available processors)
+ *   --top N            largest clusters to list (default 10)
+ *   --clusters FILE    write "id,cluster" for every person
+ *   --seeds ID[,ID]    seed cases for the exposure search
+ *   --hops K           exposure search depth (default 2)
+ *   --exposure FILE    write "id,hops" for everyone within K hops of a seed
+ *
+ * contact-graph generate &lt;directory&gt; [devices] [contactsPerDevice] [samplesPerContact]
+ * </pre>
+ * Every export belongs to the device named after it: a file directly in a given directory
+ * (or given itself) is named by its file name up to the first dot, a file further down by the
+ * first directory below the given one, e.g. {@code <device>/<batch>/<chunk>} as uploaded.
+ */
+public class ContactGraphCli {
+
+    private static final PrintStream out = System.out;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("generate")) {
+            generate(args);
+            return;
+        }
+
+        EncounterIngest.Options options = new EncounterIngest.Options();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 10;
+        int maxHops = 2;
+        String[] seeds = null;
+        Path clustersFile = null;
+        Path exposureFile = null;
+        List<Path> inputs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                inputs.add(Paths.get(arg));
+                continue;
+            }
+            if (i + 1 >= args.length)
+                usage("Missing value for " + arg);
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--min-rssi": options.minRssi = Integer.parseInt(value); break;
+                    case "--min-samples": options.minSamples = Integer.parseInt(value); break;
+                    case "--from": options.from = Long.parseLong(value); break;
+                    case "--to": options.to = Long.parseLong(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--top": top = Integer.parseInt(value); break;
+                    case "--hops": maxHops = Integer.parseInt(value); break;
+                    case "--seeds": seeds = value.split(","); break;
+                    case "--clusters": clustersFile = Paths.get(value); break;
+                    case "--exposure": exposureFile = Paths.get(value); break;
+                    default: usage("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                usage("Not a number for " + arg + ": " + value);
+            }
+        }
+        if (inputs.isEmpty())
+            usage("No input");
+
+        long start = System.nanoTime();
+        Map<String, List<Path>> devices = collectDevices(inputs);
+        int files = 0;
+        for (List<Path> deviceFiles : devices.values())
+            files += deviceFiles.size();
+        EncounterIngest.Result ingested = new EncounterIngest(options).ingest(devices, threads);
+        out.printf(Locale.US, "Ingested %,d files from %,d devices in %.2f s: %,d samples, %,d malformed lines%n",
+                files, devices.size(), seconds(start), ingested.samples, ingested.malformedLines);
+
+        start = System.nanoTime();
+        ContactGraph graph = ContactGraph.fromEdges(ingested.ids.size(), ingested.edges);
+        out.printf(Locale.US, "Graph: %,d people, %,d contacts, built in %.2f s%n",
+                graph.getNodeCount(), graph.getEdgeCount(), seconds(start));
+
+        start = System.nanoTime();
+        ConcurrentUnionFind unionFind = new ConcurrentUnionFind(graph.getNodeCount());
+        unionFind.unionAll(ingested.edges);
+        int[] clusters = unionFind.clusters();
+        String[] names = ingested.ids.names();
+        printClusters(clusters, names, top, seconds(start));
+        if (clustersFile != null)
+            writeColumn(clustersFile, names, clusters, false);
+
+        if (seeds != null) {
+            start = System.nanoTime();
+            List<Integer> seedIds = new ArrayList<>();
+            for (String seed : seeds) {
+                int id = ingested.ids.lookup(seed.trim());
+                if (id < 0)
+                    out.println("Unknown seed " + seed.trim());
+                else
+                    seedIds.add(id);
+            }
+            int[] hops = ExposureSearch.search(graph, seedIds.stream().mapToInt(Integer::intValue).toArray(), maxHops);
+            int[] perHop = new int[maxHops + 1];
+            for (int hop : hops) {
+                if (hop != ExposureSearch.UNREACHED)
+                    perHop[hop]++;
+            }
+            StringBuilder summary = new StringBuilder();
+            for (int hop = 1; hop <= maxHops; hop++)
+                summary.append(String.format(Locale.US, "%s%d hop%s %,d", hop > 1 ? ", " : "", hop, hop > 1 ? "s" : "", perHop[hop]));
+            out.printf(Locale.US, "Exposure within %d hops of %d seeds in %.2f s: %s%n",
+                    maxHops, seedIds.size(), seconds(start), summary);
+            if (exposureFile != null)
+                writeColumn(exposureFile, names, hops, true);
+        }
+    }
+
+    private static void printClusters(int[] clusters, String[] names, int top, double seconds) {
+        int[] sizes = new int[clusters.length];
+        for (int cluster : clusters)
+            sizes[cluster]++;
+
+        int count = 0;
+        int singletons = 0;
+        for (int node = 0; node < sizes.length; node++) {
+            if (sizes[node] > 1)
+                count++;
+            else if (sizes[node] == 1)
+                singletons++;
+        }
+        out.printf(Locale.US, "Clusters: %,d with contacts, %,d people without, labelled in %.2f s%n",
+                count, singletons, seconds);
+
+        // Largest first; cluster ids are their smallest node, so sorting (size, id) pairs is enough
+        long[] ranked = new long[count];
+        int index = 0;
+        for (int node = 0; node < sizes.length; node++) {
+            if (sizes[node] > 1)
+                ranked[index++] = ((long) sizes[node] << 32) | node;
+        }
+        Arrays.parallelSort(ranked);
+        for (int rank = 0; rank < Math.min(top, ranked.length); rank++) {
+            long entry = ranked[ranked.length - 1 - rank];
+            int cluster = (int) entry;
+            out.printf(Locale.US, "  #%-3d %,9d people, e.g. %s%n", rank + 1, (int) (entry >>> 32), names[cluster]);
+        }
+    }
+
+    private static void writeColumn(Path file, String[] names, int[] values, boolean skipUnreached) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int node = 0; node < values.length; node++) {
+                if (skipUnreached && values[node] == ExposureSearch.UNREACHED)
+                    continue;
+                writer.write(names[node]);
+                writer.write(',');
+                writer.write(skipUnreached ? Integer.toString(values[node]) : names[values[node]]);
+                writer.newLine();
+            }
+        }
+    }
+
+    static Map<String, List<Path>> collectDevices(List<Path> inputs) throws IOException {
+        Map<String, List<Path>> devices = new TreeMap<>();
+        for (Path input : inputs) {
+            if (!Files.isDirectory(input)) {
+                devices.computeIfAbsent(stem(input), key -> new ArrayList<>()).add(input);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(input)) {
+                walk.filter(Files::isRegularFile)
+                        .filter(path -> !path.getFileName().toString().startsWith("."))
+                        .forEach(path -> {
+                            Path relative = input.relativize(path);
+                            String device = relative.getNameCount() == 1 ? stem(path) : relative.getName(0).toString();
+                            devices.computeIfAbsent(device, key -> new ArrayList<>()).add(path);
+                        });
+            }
+        }
+        return devices;
+    }
+
+    private static String stem(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static void generate(String[] args) throws IOException {
+        if (args.length < 2)
+            usage("generate needs a directory");
+        int devices = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int contacts = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+        int samples = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+        long start = System.nanoTime();
+        SyntheticExport.generate(Paths.get(args[1]), devices, contacts, samples);
+        out.printf(Locale.US, "Wrote %,d device exports, %,d samples, in %.2f s%n",
+                devices, (long) devices * contacts * samples, seconds(start));
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: contact-graph [--min-rssi N] [--min-samples N] [--from MS] [--to MS] [--threads N]"
+                + " [--top N] [--clusters FILE] [--seeds ID,...] [--hops K] [--exposure FILE] <file or directory>...");
+        System.err.println("       contact-graph generate <directory> [devices] [contactsPerDevice] [samplesPerContact]");
+        System.exit(2);
+    }
+}
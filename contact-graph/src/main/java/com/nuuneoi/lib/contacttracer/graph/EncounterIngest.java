@@ -0,0 +1,231 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the encounter exports of many devices in parallel and turns them into contact edges.
+ * <p>
+ * Each export line is {@code peerId,timestampMs,rssi}, as staged by the library's uploader,
+ * which writes {@code ,}, {@code %}, CR and LF in peer ids as {@code %XX} escapes; files may be
+ * gzip-compressed, blank lines and lines starting with {@code #} are skipped.
+ * All files of a device are read by one worker, which counts qualifying samples (within the
+ * time range and at least {@code minRssi}) per peer. A device and a peer with at least
+ * {@code minSamples} of them are in contact.
+ * <p>
+ * Edges are returned as sorted, de-duplicated {@code (low id << 32) | high id} keys, so a
+ * contact seen from both sides counts once. Ids are in name order, see {@link IdTable}, so the
+ * same exports give the same ids however many threads read them.
+ */
+public class EncounterIngest {
+
+    public static class Options {
+        public int minRssi = -70;
+        public int minSamples = 1;
+        public long from = Long.MIN_VALUE;
+        public long to = Long.MAX_VALUE;
+    }
+
+    public static class Result {
+        public final IdTable ids;
+        public final long[] edges;
+        public final long samples;
+        public final long malformedLines;
+
+        Result(IdTable ids, long[] edges, long samples, long malformedLines) {
+            this.ids = ids;
+            this.edges = edges;
+            this.samples = samples;
+            this.malformedLines = malformedLines;
+        }
+    }
+
+    private final Options options;
+    private final IdTable ids = new IdTable();
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong malformedLines = new AtomicLong();
+
+    public EncounterIngest(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * @param devices export files of each device, keyed by the device's own peer id
+     */
+    public Result ingest(Map<String, List<Path>> devices, int threads) throws IOException {
+        List<Map.Entry<String, List<Path>>> entries = new ArrayList<>(devices.entrySet());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<long[]> perDevice;
+        try {
+            perDevice = pool.submit(() -> entries.parallelStream()
+                    .map(entry -> ingestDevice(entry.getKey(), entry.getValue()))
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            throw new IOException(cause);
+        }
+
+        long total = 0;
+        for (long[] edges : perDevice)
+            total += edges.length;
+        if (total > Integer.MAX_VALUE - 8)
+            throw new IOException("Too many contacts for one graph: " + total);
+        long[] edges = new long[(int) total];
+        int position = 0;
+        for (long[] deviceEdges : perDevice) {
+            System.arraycopy(deviceEdges, 0, edges, position, deviceEdges.length);
+            position += deviceEdges.length;
+        }
+        perDevice.clear();
+
+        int[] remap = ids.sortByName();
+        IntStream.range(0, edges.length).parallel()
+                .forEach(i -> edges[i] = edgeKey(remap[low(edges[i])], remap[high(edges[i])]));
+        Arrays.parallelSort(edges);
+        int unique = 0;
+        for (int i = 0; i < edges.length; i++) {
+            if (unique == 0 || edges[i] != edges[unique - 1])
+                edges[unique++] = edges[i];
+        }
+        return new Result(ids, unique == edges.length ? edges : Arrays.copyOf(edges, unique),
+                samples.get(), malformedLines.get());
+    }
+
+    private long[] ingestDevice(String device, List<Path> files) {
+        HashMap<String, int[]> counts = new HashMap<>();
+        for (Path file : files) {
+            try {
+                readFile(file, counts);
+            } catch (IOException e) {
+                throw new UncheckedIOException(new IOException("Cannot read " + file + ": " + e.getMessage(), e));
+            }
+        }
+
+        int self = ids.intern(device);
+        long[] edges = new long[counts.size()];
+        int count = 0;
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            if (entry.getValue()[0] < options.minSamples)
+                continue;
+            int peer = ids.intern(entry.getKey());
+            if (peer == self)
+                continue;
+            edges[count++] = edgeKey(self, peer);
+        }
+        return count == edges.length ? edges : Arrays.copyOf(edges, count);
+    }
+
+    private void readFile(Path file, HashMap<String, int[]> counts) throws IOException {
+        long fileSamples = 0;
+        long fileMalformed = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8),
+                64 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.charAt(0) == '#')
+                    continue;
+                int first = line.indexOf(',');
+                int second = first < 0 ? -1 : line.indexOf(',', first + 1);
+                if (first <= 0 || second < 0) {
+                    fileMalformed++;
+                    continue;
+                }
+                long timestamp;
+                int rssi;
+                try {
+                    timestamp = Long.parseLong(line, first + 1, second, 10);
+                    rssi = Integer.parseInt(line, second + 1, line.length(), 10);
+                } catch (NumberFormatException e) {
+                    fileMalformed++;
+                    continue;
+                }
+                String peer = unescape(line, 0, first);
+                if (peer == null) {
+                    fileMalformed++;
+                    continue;
+                }
+                fileSamples++;
+                if (timestamp < options.from || timestamp > options.to || rssi < options.minRssi)
+                    continue;
+
+                int[] count = counts.get(peer);
+                if (count == null)
+                    counts.put(peer, count = new int[1]);
+                count[0]++;
+            }
+        }
+        samples.addAndGet(fileSamples);
+        malformedLines.addAndGet(fileMalformed);
+    }
+
+    /**
+     * Peer id in line[start, end) with its {@code %XX} escapes decoded, null if one is malformed.
+     */
+    static String unescape(String line, int start, int end) {
+        int percent = line.indexOf('%', start);
+        if (percent < 0 || percent >= end)
+            return line.substring(start, end);
+
+        StringBuilder out = new StringBuilder(end - start);
+        out.append(line, start, percent);
+        for (int i = percent; i < end; i++) {
+            char c = line.charAt(i);
+            if (c != '%') {
+                out.append(c);
+                continue;
+            }
+            int high = i + 2 < end ? Character.digit(line.charAt(i + 1), 16) : -1;
+            int low = high >= 0 ? Character.digit(line.charAt(i + 2), 16) : -1;
+            if (low < 0)
+                return null;
+            out.append((char) (high << 4 | low));
+            i += 2;
+        }
+        return out.toString();
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024);
+        in.mark(2);
+        int magic = in.read() | (in.read() << 8);
+        in.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    static long edgeKey(int a, int b) {
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        return ((long) low << 32) | (high & 0xFFFFFFFFL);
+    }
+
+    static int low(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int high(long key) {
+        return (int) key;
+    }
+}
@@ -0,0 +1,41 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * k-hop exposure sets: everyone within {@code maxHops} contacts of a set of seed cases.
+ * <p>
+ * Level-synchronous breadth-first search. Each level expands the whole frontier in parallel;
+ * a node joins the next frontier through the thread that wins the compare-and-set on its hop
+ * count, so it is visited once.
+ */
+public class ExposureSearch {
+
+    public static final int UNREACHED = -1;
+
+    /**
+     * @return hops from the nearest seed for every node, {@link #UNREACHED} beyond maxHops
+     */
+    public static int[] search(ContactGraph graph, int[] seeds, int maxHops) {
+        AtomicIntegerArray hops = new AtomicIntegerArray(graph.getNodeCount());
+        for (int node = 0; node < graph.getNodeCount(); node++)
+            hops.set(node, UNREACHED);
+
+        int[] frontier = Arrays.stream(seeds).filter(seed -> hops.compareAndSet(seed, UNREACHED, 0)).toArray();
+        for (int level = 1; level <= maxHops && frontier.length > 0; level++) {
+            final int hop = level;
+            frontier = Arrays.stream(frontier).parallel()
+                    .flatMap(node -> IntStream.range(graph.getFirstNeighbor(node),
+                            graph.getFirstNeighbor(node) + graph.getDegree(node)).map(graph::getNeighbor))
+                    .filter(neighbor -> hops.get(neighbor) == UNREACHED && hops.compareAndSet(neighbor, UNREACHED, hop))
+                    .toArray();
+        }
+
+        int[] result = new int[graph.getNodeCount()];
+        for (int node = 0; node < result.length; node++)
+            result[node] = hops.get(node);
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dense int ids for device and peer ids, assigned concurrently by ingest workers and then
+ * renumbered in name order with {@link #sortByName()}, so they do not depend on which worker
+ * came first. Graph arrays are indexed by these ids; {@link #names()} maps them back.
+ */
+public class IdTable {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        return ids.computeIfAbsent(name, key -> next.getAndIncrement());
+    }
+
+    public int size() {
+        return next.get();
+    }
+
+    /**
+     * Id to name, once every id has been interned.
+     */
+    public String[] names() {
+        String[] names = new String[size()];
+        for (Map.Entry<String, Integer> entry : ids.entrySet())
+            names[entry.getValue()] = entry.getKey();
+        return names;
+    }
+
+    /**
+     * Renumbers the ids in name order, once every id has been interned.
+     *
+     * @return the new id of every former id
+     */
+    public int[] sortByName() {
+        String[] sorted = names();
+        Arrays.parallelSort(sorted);
+        int[] remap = new int[sorted.length];
+        for (int id = 0; id < sorted.length; id++)
+            remap[ids.put(sorted[id], id)] = id;
+        return remap;
+    }
+
+    /**
+     * @return the id of the name, or -1 if it never occurred
+     */
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+}
@@ -0,0 +1,68 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes one gzip export per synthetic device, to exercise the tool at scale without real data.
+ * <p>
+ * Devices belong to communities of {@link #COMMUNITY_SIZE}; most contacts are drawn within the
+ * device's community, a few across, so the resulting graph has clusters of varying size.
+ * <p>
+ * Communities are joined by bridges like the nodes of a random graph by edges, which merge
+ * into one giant component once there is more than one bridge per two communities. The share
+ * of contacts drawn across is set for {@link #BRIDGES_PER_COMMUNITY} whatever the device and
+ * contact counts, below that threshold.
+ */
+public class SyntheticExport {
+
+    public static final int COMMUNITY_SIZE = 500;
+    // Contacts drawn outside their community, per community
+    public static final double BRIDGES_PER_COMMUNITY = 0.4;
+
+    public static void generate(Path directory, int devices, int contactsPerDevice, int samplesPerContact)
+            throws IOException {
+        Files.createDirectories(directory);
+        long start = 1600000000000L;
+        double bridgeRate = BRIDGES_PER_COMMUNITY / ((double) COMMUNITY_SIZE * contactsPerDevice);
+        IntStream.range(0, devices).parallel().forEach(device -> {
+            Random random = new Random(device);
+            Path file = directory.resolve(deviceId(device) + ".csv.gz");
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+                int community = device / COMMUNITY_SIZE;
+                int communityStart = community * COMMUNITY_SIZE;
+                int communitySize = Math.min(COMMUNITY_SIZE, devices - communityStart);
+                for (int contact = 0; contact < contactsPerDevice; contact++) {
+                    int peer = random.nextDouble() < bridgeRate
+                            ? random.nextInt(devices)
+                            : communityStart + random.nextInt(communitySize);
+                    long timestamp = start + random.nextInt(14 * 24 * 60) * 60000L;
+                    for (int sample = 0; sample < samplesPerContact; sample++) {
+                        out.write(deviceId(peer));
+                        out.write(',');
+                        out.write(Long.toString(timestamp + sample * 10000L));
+                        out.write(',');
+                        out.write(Integer.toString(-45 - random.nextInt(50)));
+                        out.write('\n');
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    static String deviceId(int device) {
+        return "device-" + device;
+    }
+}
@@ -0,0 +1,74 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ConcurrentUnionFindTest {
+
+    @Test
+    public void matchesSequentialUnionFind() {
+        Random random = new Random(7);
+        int[][] shapes = {
+                // nodes, community size, degree, bridges
+                { 1000, 50, 1, 0 },
+                { 20000, 500, 2, 10 },
+                { 100000, 1000, 3, 200 },
+                { 50000, 50000, 1, 0 },
+        };
+        for (int[] shape : shapes) {
+            long[] edges = RandomGraphs.communities(random, shape[0], shape[1], shape[2], shape[3]);
+            ConcurrentUnionFind unionFind = new ConcurrentUnionFind(shape[0]);
+            unionFind.unionAll(edges);
+            assertArrayEquals(sequentialClusters(shape[0], edges), unionFind.clusters());
+        }
+    }
+
+    @Test
+    public void isStableUnderRepeatedRuns() {
+        Random random = new Random(11);
+        long[] edges = RandomGraphs.communities(random, 30000, 300, 2, 50);
+        int[] expected = sequentialClusters(30000, edges);
+        for (int run = 0; run < 20; run++) {
+            ConcurrentUnionFind unionFind = new ConcurrentUnionFind(30000);
+            unionFind.unionAll(edges);
+            assertArrayEquals(expected, unionFind.clusters());
+        }
+    }
+
+    /**
+     * Textbook union-find; each cluster is then named after its smallest node.
+     */
+    private static int[] sequentialClusters(int nodeCount, long[] edges) {
+        int[] parents = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            parents[i] = i;
+        for (long edge : edges) {
+            int a = find(parents, EncounterIngest.low(edge));
+            int b = find(parents, EncounterIngest.high(edge));
+            if (a != b)
+                parents[a] = b;
+        }
+
+        int[] smallest = new int[nodeCount];
+        java.util.Arrays.fill(smallest, Integer.MAX_VALUE);
+        for (int i = 0; i < nodeCount; i++) {
+            int root = find(parents, i);
+            smallest[root] = Math.min(smallest[root], i);
+        }
+        int[] clusters = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++)
+            clusters[i] = smallest[find(parents, i)];
+        return clusters;
+    }
+
+    private static int find(int[] parents, int node) {
+        while (parents[node] != node) {
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+        return node;
+    }
+}
@@ -0,0 +1,100 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EncounterIngestTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("ingest");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void decodesEscapedPeerIds() throws IOException {
+        // As UploadBatch writes them: , % LF CR as lowercase %XX
+        Path export = directory.resolve("device-a");
+        Files.write(export, Arrays.asList(
+                "plain,1000,-50",
+                "comma%2cin%2cid,1000,-50",
+                "percent%25,1000,-50",
+                "line%0abreak%0d,1000,-50",
+                "upper%2Ccase,1000,-50",
+                "bad%2,1000,-50",
+                "bad%zz,1000,-50"), StandardCharsets.UTF_8);
+
+        Map<String, List<Path>> devices = new HashMap<>();
+        devices.put("device-a", Arrays.asList(export));
+        EncounterIngest.Result result = new EncounterIngest(new EncounterIngest.Options()).ingest(devices, 2);
+
+        List<String> peers = new ArrayList<>();
+        int self = result.ids.lookup("device-a");
+        String[] names = result.ids.names();
+        for (long edge : result.edges) {
+            int low = EncounterIngest.low(edge);
+            int high = EncounterIngest.high(edge);
+            peers.add(names[low == self ? high : low]);
+        }
+        peers.sort(null);
+        assertEquals(Arrays.asList("comma,in,id", "line\nbreak\r", "percent%", "plain", "upper,case"), peers);
+        assertEquals(5, result.samples);
+        assertEquals(2, result.malformedLines);
+    }
+
+    @Test
+    public void assignsIdsInNameOrderWhateverTheThreads() throws IOException {
+        Map<String, List<Path>> devices = new HashMap<>();
+        for (int device = 0; device < 200; device++) {
+            String name = String.format("device-%03d", 199 - device);
+            Path export = directory.resolve(name);
+            Files.write(export, Arrays.asList("peer-" + device % 7 + ",1000,-50",
+                    String.format("device-%03d,1000,-50", device)), StandardCharsets.UTF_8);
+            devices.put(name, Arrays.asList(export));
+        }
+
+        EncounterIngest.Result expected = null;
+        for (int threads : new int[] { 1, 4, 8 }) {
+            EncounterIngest.Result result = new EncounterIngest(new EncounterIngest.Options()).ingest(devices, threads);
+            String[] names = result.ids.names();
+            String[] sorted = names.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(sorted, names);
+            if (expected != null)
+                assertArrayEquals(expected.edges, result.edges);
+            expected = result;
+        }
+    }
+
+    @Test
+    public void unescapesOnlyTheGivenRange() {
+        assertEquals("a,b", EncounterIngest.unescape("xa%2cb,1,2", 1, 6));
+        assertEquals("ab", EncounterIngest.unescape("ab,1%2c", 0, 2));
+        assertNull(EncounterIngest.unescape("a%2,1,2", 0, 3));
+    }
+}
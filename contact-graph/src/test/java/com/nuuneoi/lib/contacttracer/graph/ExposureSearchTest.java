@@ -0,0 +1,61 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ExposureSearchTest {
+
+    @Test
+    public void matchesSequentialBreadthFirstSearch() {
+        Random random = new Random(13);
+        int[][] shapes = {
+                // nodes, community size, degree, bridges
+                { 1000, 100, 2, 5 },
+                { 20000, 500, 3, 50 },
+                { 100000, 2000, 4, 500 },
+        };
+        for (int[] shape : shapes) {
+            ContactGraph graph = ContactGraph.fromEdges(shape[0],
+                    RandomGraphs.communities(random, shape[0], shape[1], shape[2], shape[3]));
+            for (int maxHops : new int[] { 0, 1, 2, 5, Integer.MAX_VALUE }) {
+                int[] seeds = new int[1 + random.nextInt(10)];
+                for (int i = 0; i < seeds.length; i++)
+                    seeds[i] = random.nextInt(shape[0]);
+                // Duplicate seeds count once
+                seeds[seeds.length - 1] = seeds[0];
+                assertArrayEquals("maxHops " + maxHops, bfs(graph, seeds, maxHops),
+                        ExposureSearch.search(graph, seeds, maxHops));
+            }
+        }
+    }
+
+    private static int[] bfs(ContactGraph graph, int[] seeds, int maxHops) {
+        int[] hops = new int[graph.getNodeCount()];
+        Arrays.fill(hops, ExposureSearch.UNREACHED);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int seed : seeds) {
+            if (hops[seed] == ExposureSearch.UNREACHED) {
+                hops[seed] = 0;
+                queue.add(seed);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            if (hops[node] == maxHops)
+                continue;
+            for (int i = graph.getFirstNeighbor(node); i < graph.getFirstNeighbor(node) + graph.getDegree(node); i++) {
+                int neighbor = graph.getNeighbor(i);
+                if (hops[neighbor] == ExposureSearch.UNREACHED) {
+                    hops[neighbor] = hops[node] + 1;
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return hops;
+    }
+}
@@ -0,0 +1,42 @@
+package com.nuuneoi.lib.contacttracer.graph;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Sparse random graphs as de-duplicated edge keys, like {@link EncounterIngest} returns.
+ */
+class RandomGraphs {
+
+    /**
+     * Nodes in communities of communitySize with about degree contacts each inside their
+     * community, plus a few bridges between communities, so there are many clusters of very
+     * different sizes and some isolated nodes.
+     */
+    static long[] communities(Random random, int nodeCount, int communitySize, double degree, int bridges) {
+        int edgesWithin = (int) (nodeCount * degree / 2);
+        long[] edges = new long[edgesWithin + bridges];
+        int count = 0;
+        for (int i = 0; i < edgesWithin; i++) {
+            int a = random.nextInt(nodeCount);
+            int community = a / communitySize * communitySize;
+            int b = community + random.nextInt(Math.min(communitySize, nodeCount - community));
+            if (a != b)
+                edges[count++] = EncounterIngest.edgeKey(a, b);
+        }
+        for (int i = 0; i < bridges; i++) {
+            int a = random.nextInt(nodeCount);
+            int b = random.nextInt(nodeCount);
+            if (a != b)
+                edges[count++] = EncounterIngest.edgeKey(a, b);
+        }
+        edges = Arrays.copyOf(edges, count);
+        Arrays.sort(edges);
+        int unique = 0;
+        for (int i = 0; i < edges.length; i++) {
+            if (unique == 0 || edges[i] != edges[unique - 1])
+                edges[unique++] = edges[i];
+        }
+        return Arrays.copyOf(edges, unique);
+    }
+}
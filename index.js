@@ -1,5 +1,9 @@
-import {NativeModules} from "react-native"
+import {NativeModules, NativeEventEmitter} from "react-native"
 
 const {ContactTracerModule} = NativeModules
 
+// Subscribing through this emitter lets the native side register its
+// receivers only while there are active listeners
+export const ContactTracerEvents = new NativeEventEmitter(ContactTracerModule)
+
 export default ContactTracerModule